@@ -20,6 +20,18 @@ public class JOGLFrame extends JFrame {
   private View view;
   private TextRenderer textRenderer;
   private GLCanvas canvas;
+  private JFrame raytraceFrame;
+  private RaytracePreview raytracePreview;
+  /**
+   * Whether dragging the trackball ray traces drafts as the camera moves,
+   * which are refined to a full image once it stops
+   */
+  private boolean interactiveRaytrace;
+  /**
+   * Starts the full image once the trackball has stopped for a moment
+   */
+  private Timer refineTimer;
+  private static final int REFINE_DELAY_MILLISECONDS = 300;
 
   public JOGLFrame(String title) {
     //routine JFrame setting stuff
@@ -45,6 +57,14 @@ public class JOGLFrame extends JFrame {
     canvas.addMouseMotionListener(mouseAdapter);
     canvas.addKeyListener(new KeyboardListener());
 
+    refineTimer = new Timer(REFINE_DELAY_MILLISECONDS, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        view.raytrace(raytracePreview);
+      }
+    });
+    refineTimer.setRepeats(false);
+
     canvas.addGLEventListener(new GLEventListener() {
       @Override
       public void init(GLAutoDrawable glAutoDrawable) { //called the first time this canvas is created. Do your initialization here
@@ -96,16 +116,37 @@ public class JOGLFrame extends JFrame {
     public void keyReleased(KeyEvent e) {
       switch (e.getKeyCode()) {
         case KeyEvent.VK_R:
-          new Thread(() -> {
-            view.raytrace();
-            JOptionPane.showMessageDialog(JOGLFrame.this, "Ray " +
-                    "tracing complete.", "Success!", JOptionPane.INFORMATION_MESSAGE);
-          }).start();
+          showRaytracePreview();
+          view.raytrace(raytracePreview);
+          break;
+        case KeyEvent.VK_I:
+          interactiveRaytrace = !interactiveRaytrace;
+          if (interactiveRaytrace) {
+            showRaytracePreview();
+            view.raytrace(raytracePreview);
+          } else {
+            refineTimer.stop();
+          }
           break;
       }
     }
   }
 
+  /**
+   * Show the window that ray traced images are previewed in while they are
+   * traced, creating it the first time
+   */
+  private void showRaytracePreview() {
+    if (raytraceFrame == null) {
+      raytracePreview = new RaytracePreview(800, 800);
+      raytraceFrame = new JFrame("Ray tracing");
+      raytraceFrame.add(raytracePreview);
+      raytraceFrame.pack();
+      raytraceFrame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+    }
+    raytraceFrame.setVisible(true);
+  }
+
   private class MyMouseAdapter extends MouseAdapter {
     @Override
     public void mousePressed(MouseEvent e) {
@@ -118,11 +159,23 @@ public class JOGLFrame extends JFrame {
     public void mouseReleased(MouseEvent e) {
       if (e.getButton() == MouseEvent.BUTTON1)
         JOGLFrame.this.view.mouseReleased(e.getX(), e.getY());
+      if (interactiveRaytrace) {
+        refineTimer.stop();
+        view.raytrace(raytracePreview);
+      }
     }
 
     @Override
     public void mouseDragged(MouseEvent e) {
       JOGLFrame.this.view.mouseDragged(e.getX(), e.getY());
+      if (interactiveRaytrace) {
+        //trace drafts while the camera moves, and the full image once it stops
+        JOGLFrame.this.view.raytraceDraft(raytracePreview);
+        refineTimer.restart();
+      } else {
+        //the camera moves, so a ray traced image in progress is out of date
+        JOGLFrame.this.view.cancelRaytrace();
+      }
       JOGLFrame.this.canvas.repaint();
     }
   }
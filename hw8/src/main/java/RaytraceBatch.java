@@ -0,0 +1,350 @@
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import sgraph.INode;
+import sgraph.IScenegraph;
+import sgraph.RTAnimation;
+import sgraph.RTScenegraphRenderer;
+import sgraph.SceneXMLReader;
+import sgraph.TileOrder;
+import sgraph.TransformNode;
+
+/**
+ * Ray traces a scene graph without a window. The scene is loaded and its
+ * meshes are prepared once, and then any number of frames are traced from it,
+ * so that the cost of loading is shared by all of them. Frames are traced as
+ * one sequence, so frames that only move the camera or turn a node update the
+ * compiled scene instead of compiling it again.
+ *
+ * Run without arguments to see the options.
+ */
+public class RaytraceBatch {
+  private static final String USAGE =
+          "usage: RaytraceBatch [options] scene.xml\n"
+                  + "  -size WxH          image size in pixels (default 800x800)\n"
+                  + "  -fov degrees       vertical field of view (default 120)\n"
+                  + "  -threads n         worker threads (default: one per processor)\n"
+                  + "  -format name       image format: png, jpg, bmp... (default png)\n"
+                  + "  -output pattern    output file, with %d for the frame number\n"
+                  + "                     (default output/raytrace-%03d.<format>)\n"
+                  + RaytraceSettings.USAGE
+                  + "  -tileorder name    trace tiles in rows, morton or hilbert order\n"
+                  + "                     (default rows)\n"
+                  + "  -reuse             reuse the colors of the last frame where only the\n"
+                  + "                     camera moved\n"
+                  + "  -stats             print what was traced for each frame\n"
+                  + "  -heatmap pattern   also write an image of what each pixel cost, with\n"
+                  + "                     %d for the frame number, as png\n"
+                  + "  -camera ex,ey,ez,cx,cy,cz[,ux,uy,uz]\n"
+                  + "                     eye, center and up of a camera; repeat for more\n"
+                  + "                     frames (default -50,120,200,0,0,0)\n"
+                  + "  -cameras file      a file with one camera per line, as above\n"
+                  + "  -frames n          trace n frames of each camera (default 1)\n"
+                  + "  -orbit n           trace n frames of each camera, turning it about\n"
+                  + "                     the vertical axis through its center\n"
+                  + "  -spin name,degrees turn the transform node of that name about its\n"
+                  + "                     vertical axis by that much in each frame\n"
+                  + "The scene is read from a file, or else from the classpath.";
+
+  public static void main(String[] args) {
+    System.setProperty("java.awt.headless", "true");
+
+    int width = 800, height = 800;
+    float fovy = 120.0f;
+    int threads = Runtime.getRuntime().availableProcessors();
+    String format = "png";
+    String output = null;
+    RaytraceSettings settings = new RaytraceSettings();
+    TileOrder tileOrder = TileOrder.ROWS;
+    boolean stats = false;
+    boolean reuse = false;
+    String heatmap = null;
+    int frames = 1;
+    boolean orbit = false;
+    String spinName = null;
+    float spinDegrees = 0;
+    String scenePath = null;
+    List<Matrix4f> cameras = new ArrayList<Matrix4f>();
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (!arg.startsWith("-")) {
+          scenePath = arg;
+          continue;
+        }
+        int taken = settings.parse(args, i);
+        if (taken > 0) {
+          i += taken - 1;
+          continue;
+        }
+        if (arg.equals("-reuse")) {
+          reuse = true;
+          continue;
+        }
+        if (arg.equals("-stats")) {
+          stats = true;
+          continue;
+        }
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value for " + arg);
+        }
+        String value = args[++i];
+        switch (arg) {
+          case "-size": {
+            String[] size = value.toLowerCase().split("x");
+            if (size.length != 2) {
+              throw new IllegalArgumentException("Size must be WxH: " + value);
+            }
+            width = Integer.parseInt(size[0]);
+            height = Integer.parseInt(size[1]);
+            break;
+          }
+          case "-fov":
+            fovy = Float.parseFloat(value);
+            break;
+          case "-threads":
+            threads = Integer.parseInt(value);
+            break;
+          case "-format":
+            format = value;
+            break;
+          case "-output":
+            output = value;
+            break;
+          case "-camera":
+            cameras.add(parseCamera(value));
+            break;
+          case "-cameras":
+            for (String line : Files.readAllLines(new File(value).toPath(), StandardCharsets.UTF_8)) {
+              line = line.trim();
+              if ((line.length() > 0) && !line.startsWith("#")) {
+                cameras.add(parseCamera(line));
+              }
+            }
+            break;
+          case "-frames":
+            frames = Integer.parseInt(value);
+            break;
+          case "-orbit":
+            frames = Integer.parseInt(value);
+            orbit = true;
+            break;
+          case "-tileorder":
+            tileOrder = parseTileOrder(value);
+            break;
+          case "-heatmap":
+            heatmap = value;
+            break;
+          case "-spin": {
+            int comma = value.lastIndexOf(',');
+            if (comma < 0) {
+              throw new IllegalArgumentException("Spin must be name,degrees: " + value);
+            }
+            spinName = value.substring(0, comma).trim();
+            spinDegrees = Float.parseFloat(value.substring(comma + 1).trim());
+            break;
+          }
+          default:
+            throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+      if (scenePath == null) {
+        throw new IllegalArgumentException("No scene given");
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(1);
+      return;
+    }
+
+    if (cameras.isEmpty()) {
+      cameras.add(parseCamera("-50,120,200,0,0,0"));
+    }
+    if (output == null) {
+      output = "output/raytrace-%03d." + format;
+    }
+
+    RTScenegraphRenderer renderer = new RTScenegraphRenderer(threads);
+    try {
+      long start = System.nanoTime();
+      IScenegraph<VertexAttrib> scenegraph;
+      try (InputStream in = openScene(scenePath)) {
+        scenegraph = SceneXMLReader.importScenegraph(in, new VertexAttribProducer());
+      }
+      renderer.setSize(width, height);
+      renderer.setFieldOfView(fovy);
+      settings.apply(renderer);
+      renderer.setTileOrder(tileOrder);
+      renderer.setTemporalReuse(reuse);
+      scenegraph.setRenderer(renderer);
+      System.out.printf("Loaded %s in %.2f s%n", scenePath, (System.nanoTime() - start) / 1e9);
+
+      renderer.setOutput(String.format(output, 0), format);
+      renderer.drawSequence(scenegraph.getRoot(), 0, cameras.size() * frames - 1,
+              new Animation(renderer, cameras, frames, orbit,
+                      findTransform(scenegraph, spinName), spinDegrees, output, stats, heatmap),
+              output);
+    } catch (Exception e) {
+      System.err.println("Ray tracing failed: " + e.getMessage());
+      System.exit(1);
+    } finally {
+      renderer.dispose();
+    }
+  }
+
+  /**
+   * The frames of every camera in turn, with the spinning node turned and the
+   * camera orbited for each
+   */
+  private static class Animation implements RTAnimation {
+    private final RTScenegraphRenderer renderer;
+    private final List<Matrix4f> cameras;
+    private final int frames;
+    private final boolean orbit;
+    private final TransformNode spinNode;
+    private final float spinDegrees;
+    private final String output;
+    private final boolean stats;
+    private final String heatmap;
+
+    Animation(RTScenegraphRenderer renderer, List<Matrix4f> cameras, int frames, boolean orbit,
+              TransformNode spinNode, float spinDegrees, String output, boolean stats,
+              String heatmap) {
+      this.renderer = renderer;
+      this.cameras = cameras;
+      this.frames = frames;
+      this.orbit = orbit;
+      this.spinNode = spinNode;
+      this.spinDegrees = spinDegrees;
+      this.output = output;
+      this.stats = stats;
+      this.heatmap = heatmap;
+    }
+
+    @Override
+    public Matrix4f animate(int frame) {
+      if (spinNode != null) {
+        spinNode.setAnimationTransform(new Matrix4f()
+                .rotateY((float) Math.toRadians(spinDegrees * frame)));
+      }
+      Matrix4f camera = cameras.get(frame / frames);
+      return orbit ? orbit(camera, frame % frames, frames) : new Matrix4f(camera);
+    }
+
+    @Override
+    public void frameFinished(int frame, boolean rebuilt, float compileSeconds, float seconds) {
+      System.out.printf("Frame %d: %s in %.2f s (%s in %.3f s)%n", frame,
+              String.format(output, frame), seconds, rebuilt ? "compiled" : "refitted",
+              compileSeconds);
+      if (stats) {
+        System.out.println(renderer.getStatistics());
+      }
+      if (heatmap != null) {
+        File file = new File(String.format(heatmap, frame));
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+          parent.mkdirs();
+        }
+        try {
+          ImageIO.write(renderer.getHeatmap(), "png", file);
+        } catch (IOException e) {
+          throw new IllegalArgumentException("Could not write heatmap " + file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the transform node of the given name, or return null if the name is
+   * null
+   */
+  private static TransformNode findTransform(IScenegraph<VertexAttrib> scenegraph, String name) {
+    if (name == null) {
+      return null;
+    }
+    INode node = scenegraph.getNodes().get(name);
+    if (!(node instanceof TransformNode)) {
+      throw new IllegalArgumentException("No transform node named " + name);
+    }
+    return (TransformNode) node;
+  }
+
+  /**
+   * Open a scene file, or a resource of the same name if there is no such
+   * file, as the viewer does
+   */
+  static InputStream openScene(String path) throws IOException {
+    File file = new File(path);
+    if (file.isFile()) {
+      return new FileInputStream(file);
+    }
+    InputStream in = RaytraceBatch.class.getClassLoader().getResourceAsStream(path);
+    if (in == null) {
+      throw new IOException("Scene " + path + " not found");
+    }
+    return in;
+  }
+
+  static TileOrder parseTileOrder(String name) {
+    if (name.equals("rows")) {
+      return TileOrder.ROWS;
+    } else if (name.equals("morton")) {
+      return TileOrder.MORTON;
+    } else if (name.equals("hilbert")) {
+      return TileOrder.HILBERT;
+    }
+    throw new IllegalArgumentException("Unknown tile order " + name);
+  }
+
+  /**
+   * Make the world-to-view transformation of a camera given as
+   * ex,ey,ez,cx,cy,cz[,ux,uy,uz]
+   */
+  static Matrix4f parseCamera(String spec) {
+    String[] parts = spec.split(",");
+    if ((parts.length != 6) && (parts.length != 9)) {
+      throw new IllegalArgumentException("Camera must be ex,ey,ez,cx,cy,cz[,ux,uy,uz]: " + spec);
+    }
+    float[] v = new float[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      v[i] = Float.parseFloat(parts[i].trim());
+    }
+    Vector3f up = (v.length == 9) ? new Vector3f(v[6], v[7], v[8]) : new Vector3f(0, 1, 0);
+    return new Matrix4f().lookAt(new Vector3f(v[0], v[1], v[2]),
+            new Vector3f(v[3], v[4], v[5]), up);
+  }
+
+  /**
+   * The camera turned by the given fraction of a full circle about the
+   * vertical axis through the point it looks at
+   */
+  private static Matrix4f orbit(Matrix4f camera, int step, int steps) {
+    if (steps <= 1) {
+      return new Matrix4f(camera);
+    }
+    //the point looked at is on the view axis, at the depth of the world origin
+    Vector3f center = new Vector3f();
+    camera.transformPosition(center);
+    center.set(0, 0, center.z);
+    new Matrix4f(camera).invert().transformPosition(center);
+
+    float angle = (float) (2 * Math.PI * step / steps);
+    return new Matrix4f(camera)
+            .translate(center)
+            .rotateY(angle)
+            .translate(-center.x, -center.y, -center.z);
+  }
+}
@@ -0,0 +1,159 @@
+import org.joml.Matrix4f;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Stack;
+
+import sgraph.IScenegraph;
+import sgraph.RTScenegraphRenderer;
+import sgraph.RTStatistics;
+import sgraph.SceneXMLReader;
+import sgraph.TileOrder;
+
+/**
+ * Times the ray tracing of a scene with each order of tiles, to compare how
+ * well they use the caches of the processor. Every order traces the same
+ * rays, so any difference in time comes from how the memory of the scene is
+ * reached. The orders are traced in turn, round after round, so that they
+ * share any slowdown of the machine, after a round that warms up the compiler
+ * and is not counted. Only the passes that trace each image are timed, and
+ * no image is written.
+ *
+ * Java cannot read the cache counters of the processor. To see them, run
+ * this one order at a time under a profiler, like
+ * "perf stat -e cache-references,cache-misses java ... RaytraceBenchmark
+ * -orders hilbert scene.xml".
+ */
+public class RaytraceBenchmark {
+  private static final String USAGE =
+          "usage: RaytraceBenchmark [options] scene.xml\n"
+                  + "  -size WxH          image size in pixels (default 800x800)\n"
+                  + "  -threads n         worker threads (default: one per processor)\n"
+                  + "  -antialias n       n x n samples on edge pixels, 1 for none (default 1)\n"
+                  + "  -runs n            timed runs of each order (default 5)\n"
+                  + "  -orders list       comma separated orders to compare\n"
+                  + "                     (default rows,morton,hilbert)\n"
+                  + "  -camera ex,ey,ez,cx,cy,cz[,ux,uy,uz]\n"
+                  + "                     the camera (default -50,120,200,0,0,0)";
+
+  public static void main(String[] args) {
+    System.setProperty("java.awt.headless", "true");
+
+    int width = 800, height = 800;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int antialias = 1;
+    int runs = 5;
+    String orders = "rows,morton,hilbert";
+    Matrix4f camera = RaytraceBatch.parseCamera("-50,120,200,0,0,0");
+    String scenePath = null;
+    List<String> names = new ArrayList<String>();
+    List<TileOrder> tileOrders = new ArrayList<TileOrder>();
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (!arg.startsWith("-")) {
+          scenePath = arg;
+          continue;
+        }
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value for " + arg);
+        }
+        String value = args[++i];
+        switch (arg) {
+          case "-size": {
+            String[] size = value.toLowerCase().split("x");
+            if (size.length != 2) {
+              throw new IllegalArgumentException("Size must be WxH: " + value);
+            }
+            width = Integer.parseInt(size[0]);
+            height = Integer.parseInt(size[1]);
+            break;
+          }
+          case "-threads":
+            threads = Integer.parseInt(value);
+            break;
+          case "-antialias":
+            antialias = Integer.parseInt(value);
+            break;
+          case "-runs":
+            runs = Math.max(1, Integer.parseInt(value));
+            break;
+          case "-orders":
+            orders = value;
+            break;
+          case "-camera":
+            camera = RaytraceBatch.parseCamera(value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+      if (scenePath == null) {
+        throw new IllegalArgumentException("No scene given");
+      }
+      for (String name : orders.split(",")) {
+        names.add(name.trim());
+        tileOrders.add(RaytraceBatch.parseTileOrder(name.trim()));
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(1);
+      return;
+    }
+
+    RTScenegraphRenderer renderer = new RTScenegraphRenderer(threads);
+    try {
+      IScenegraph<VertexAttrib> scenegraph;
+      try (InputStream in = RaytraceBatch.openScene(scenePath)) {
+        scenegraph = SceneXMLReader.importScenegraph(in, new VertexAttribProducer());
+      }
+      renderer.setSize(width, height);
+      renderer.setAntialiasing(antialias, RaytraceSettings.ANTIALIAS_THRESHOLD);
+      renderer.setOutput(null, "png");
+      scenegraph.setRenderer(renderer);
+
+      int count = tileOrders.size();
+      float[][] seconds = new float[count][runs];
+      float[] tileSeconds = new float[count];
+      long rays = 0;
+      for (int run = -1; run < runs; run++) {
+        for (int k = 0; k < count; k++) {
+          renderer.setTileOrder(tileOrders.get(k));
+          Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+          modelView.push(new Matrix4f(camera));
+          renderer.draw(scenegraph.getRoot(), modelView);
+          RTStatistics statistics = renderer.getStatistics();
+          if (run >= 0) {
+            seconds[k][run] = statistics.getSeconds();
+            tileSeconds[k] += statistics.getAverageTileSeconds() / runs;
+            rays = statistics.getRayCount();
+          }
+        }
+      }
+
+      System.out.printf("%s at %dx%d on %d threads, %d rays, best of %d runs%n",
+              scenePath, width, height, threads, rays, runs);
+      System.out.printf("%-10s %10s %10s %12s %12s %10s%n",
+              "order", "best s", "median s", "rays/s", "ms per tile", "speedup");
+      float baseline = 0;
+      for (int k = 0; k < count; k++) {
+        Arrays.sort(seconds[k]);
+        float best = seconds[k][0];
+        if (k == 0) {
+          baseline = best;
+        }
+        System.out.printf("%-10s %10.3f %10.3f %12.0f %12.3f %9.2fx%n", names.get(k), best,
+                seconds[k][runs / 2], rays / best, 1e3f * tileSeconds[k], baseline / best);
+      }
+    } catch (Exception e) {
+      System.err.println("Benchmark failed: " + e.getMessage());
+      System.exit(1);
+    } finally {
+      renderer.dispose();
+    }
+  }
+}
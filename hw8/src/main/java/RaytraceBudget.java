@@ -0,0 +1,91 @@
+/**
+ * Chooses how coarse the ray traced drafts shown while the camera moves
+ * should be, so that each of them takes about a target time and the view
+ * keeps up with the mouse.
+ *
+ * A draft with a step of s traces one pixel in every s x s block, so its
+ * time is taken to be a fixed cost, for compiling the scene, plus the cost of
+ * the whole image divided by s squared. Both are measured from the drafts
+ * traced so far, smoothed over the last few of them, and the next draft gets
+ * the finest step whose predicted time fits the target. A finer step than
+ * the current one must fit with some room to spare, so that the step does not
+ * flip between two sizes from one draft to the next.
+ */
+public class RaytraceBudget {
+  /**
+   * How much the latest draft counts in the measured costs
+   */
+  private static final float SMOOTHING = 0.5f;
+  /**
+   * The share of the target time that a finer step must be predicted to fit
+   * in before it is taken
+   */
+  private static final float HEADROOM = 0.8f;
+
+  private final float targetSeconds;
+  private final int finestStep, coarsestStep;
+  private int step;
+  /**
+   * The fixed cost of a draft, and the cost of tracing every pixel of it, or
+   * NaN before the first draft
+   */
+  private float fixedSeconds, fullSeconds;
+
+  /**
+   * @param targetSeconds how long each draft should take
+   * @param finestStep    the smallest step to trace drafts with, a power of
+   *                      two
+   * @param coarsestStep  the largest step to trace drafts with, a power of
+   *                      two, which is used however slow the scene is
+   * @param firstStep     the step of the first draft, before anything has
+   *                      been measured
+   */
+  public RaytraceBudget(float targetSeconds, int finestStep, int coarsestStep, int firstStep) {
+    if ((targetSeconds <= 0) || (finestStep < 1) || (coarsestStep < finestStep)) {
+      throw new IllegalArgumentException("Invalid frame time budget");
+    }
+    this.targetSeconds = targetSeconds;
+    this.finestStep = finestStep;
+    this.coarsestStep = coarsestStep;
+    step = Math.max(finestStep, Math.min(firstStep, coarsestStep));
+    fixedSeconds = Float.NaN;
+    fullSeconds = Float.NaN;
+  }
+
+  /**
+   * Get the step to trace the next draft with
+   */
+  public synchronized int getStep() {
+    return step;
+  }
+
+  /**
+   * Record how long a draft took, and choose the step of the next one
+   *
+   * @param step         the step the draft was traced with
+   * @param seconds      how long the draft took in all
+   * @param traceSeconds how much of that was spent tracing rays
+   */
+  public synchronized void draftFinished(int step, float seconds, float traceSeconds) {
+    float fixed = Math.max(0, seconds - traceSeconds);
+    float full = traceSeconds * step * step;
+    if (Float.isNaN(fixedSeconds)) {
+      fixedSeconds = fixed;
+      fullSeconds = full;
+    } else {
+      fixedSeconds += SMOOTHING * (fixed - fixedSeconds);
+      fullSeconds += SMOOTHING * (full - fullSeconds);
+    }
+
+    int next = coarsestStep;
+    for (int s = coarsestStep; s >= finestStep; s /= 2) {
+      float predicted = fixedSeconds + fullSeconds / (s * s);
+      float allowed = (s < this.step) ? HEADROOM * targetSeconds : targetSeconds;
+      if (predicted > allowed) {
+        break;
+      }
+      next = s;
+    }
+    this.step = next;
+  }
+}
@@ -0,0 +1,516 @@
+import org.joml.Matrix4f;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Traces one image on several {@link RaytraceWorker} processes, which may
+ * run on this machine or others. The image is cut into square tiles, which
+ * are handed to the workers one at a time as they finish the last one, so
+ * faster workers trace more of them. Once every tile has been handed out, a
+ * worker that runs out of tiles traces a copy of a tile that another worker
+ * is still tracing, and whichever finishes first is used. A slow or stuck
+ * worker then cannot hold up the image. If a worker fails, its tile is
+ * handed to another.
+ *
+ * The time that each worker took, and how many tiles per second it traced,
+ * are reported at the end, so that the scaling can be seen.
+ *
+ * Run without arguments to see the options.
+ */
+public class RaytraceCoordinator {
+  private static final String USAGE =
+          "usage: RaytraceCoordinator [options] scene.xml\n"
+                  + "  -workers host:port,...\n"
+                  + "                     the workers to use\n"
+                  + "  -spawn n           start n workers on this machine instead\n"
+                  + "  -port p            the first port of spawned workers (default "
+                  + RaytraceProtocol.DEFAULT_PORT + ")\n"
+                  + "  -threads n         threads of each spawned worker (default: the\n"
+                  + "                     processors shared equally)\n"
+                  + "  -tile n            the size of the tiles handed out (default 64)\n"
+                  + "  -size WxH          image size in pixels (default 800x800)\n"
+                  + "  -fov degrees       vertical field of view (default 120)\n"
+                  + RaytraceSettings.USAGE
+                  + "  -camera ex,ey,ez,cx,cy,cz[,ux,uy,uz]\n"
+                  + "                     the camera (default -50,120,200,0,0,0)\n"
+                  + "  -output file       the image to write (default output/raytrace.png)\n"
+                  + "The scene must be a file. The models and textures it uses are loaded\n"
+                  + "from the classpath of each worker.";
+  /**
+   * How many workers may trace the same tile at once
+   */
+  private static final int MAXIMUM_ATTEMPTS = 2;
+  /**
+   * How long to wait for a spawned worker to start listening
+   */
+  private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+
+  private static class Tile {
+    final int x0, y0, x1, y1;
+    /**
+     * How many workers are tracing this tile now
+     */
+    int attempts;
+    int[] pixels;
+
+    Tile(int x0, int y0, int x1, int y1) {
+      this.x0 = x0;
+      this.y0 = y0;
+      this.x1 = x1;
+      this.y1 = y1;
+    }
+  }
+
+  /**
+   * What one worker did
+   */
+  private static class WorkerReport {
+    final String address;
+    int traced, used;
+    float seconds;
+    String error;
+
+    WorkerReport(String address) {
+      this.address = address;
+    }
+  }
+
+  private final byte[] xml;
+  private final String hash;
+  private final Matrix4f camera;
+  private final int width, height;
+  private final float fovy;
+  private final RaytraceSettings settings;
+
+  private final List<Tile> tiles;
+  /**
+   * The tiles that no worker has started, and those that are being traced
+   */
+  private final Deque<Tile> waiting;
+  private final List<Tile> running;
+  private int remaining;
+  private int liveWorkers;
+  /**
+   * When the first tile was handed out and the last one finished
+   */
+  private long traceStart, traceEnd;
+
+  public RaytraceCoordinator(byte[] xml, Matrix4f camera, int width, int height, float fovy,
+                             RaytraceSettings settings, int tileSize) {
+    this.xml = xml;
+    this.hash = RaytraceProtocol.hash(xml);
+    this.camera = new Matrix4f(camera);
+    this.width = width;
+    this.height = height;
+    this.fovy = fovy;
+    this.settings = settings;
+
+    tiles = new ArrayList<Tile>();
+    for (int y = 0; y < height; y += tileSize) {
+      for (int x = 0; x < width; x += tileSize) {
+        tiles.add(new Tile(x, y, Math.min(x + tileSize, width), Math.min(y + tileSize, height)));
+      }
+    }
+    waiting = new ArrayDeque<Tile>(tiles);
+    running = new ArrayList<Tile>();
+    remaining = tiles.size();
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    List<String> workers = new ArrayList<String>();
+    int spawn = 0;
+    int port = RaytraceProtocol.DEFAULT_PORT;
+    int threads = 0;
+    int tileSize = 64;
+    int width = 800, height = 800;
+    float fovy = 120;
+    RaytraceSettings settings = new RaytraceSettings();
+    Matrix4f camera = RaytraceBatch.parseCamera("-50,120,200,0,0,0");
+    String output = "output/raytrace.png";
+    String scenePath = null;
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (!arg.startsWith("-")) {
+          scenePath = arg;
+          continue;
+        }
+        int taken = settings.parse(args, i);
+        if (taken > 0) {
+          i += taken - 1;
+          continue;
+        }
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value for " + arg);
+        }
+        String value = args[++i];
+        switch (arg) {
+          case "-workers":
+            for (String address : value.split(",")) {
+              workers.add(address.trim());
+            }
+            break;
+          case "-spawn":
+            spawn = Integer.parseInt(value);
+            break;
+          case "-port":
+            port = Integer.parseInt(value);
+            break;
+          case "-threads":
+            threads = Integer.parseInt(value);
+            break;
+          case "-tile":
+            tileSize = Integer.parseInt(value);
+            break;
+          case "-size": {
+            String[] size = value.toLowerCase().split("x");
+            if (size.length != 2) {
+              throw new IllegalArgumentException("Size must be WxH: " + value);
+            }
+            width = Integer.parseInt(size[0]);
+            height = Integer.parseInt(size[1]);
+            break;
+          }
+          case "-fov":
+            fovy = Float.parseFloat(value);
+            break;
+          case "-camera":
+            camera = RaytraceBatch.parseCamera(value);
+            break;
+          case "-output":
+            output = value;
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+      if (scenePath == null) {
+        throw new IllegalArgumentException("No scene given");
+      }
+      if (workers.isEmpty() == (spawn == 0)) {
+        throw new IllegalArgumentException("Give either -workers or -spawn");
+      }
+      if ((tileSize <= 0) || (width <= 0) || (height <= 0)) {
+        throw new IllegalArgumentException("Sizes must be positive");
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(1);
+      return;
+    }
+
+    byte[] xml = Files.readAllBytes(new File(scenePath).toPath());
+    List<Process> processes = new ArrayList<Process>();
+    if (spawn > 0) {
+      if (threads <= 0) {
+        threads = Math.max(1, Runtime.getRuntime().availableProcessors() / spawn);
+      }
+      for (int i = 0; i < spawn; i++) {
+        processes.add(spawnWorker(port + i, threads));
+        workers.add(InetAddress.getLoopbackAddress().getHostAddress() + ":" + (port + i));
+      }
+    }
+
+    try {
+      RaytraceCoordinator coordinator = new RaytraceCoordinator(xml, camera, width, height, fovy,
+              settings, tileSize);
+      long start = System.nanoTime();
+      List<WorkerReport> reports = coordinator.trace(workers, spawn > 0);
+      float seconds = (System.nanoTime() - start) / 1e9f;
+
+      int tiles = coordinator.getTileCount();
+      float tracing = coordinator.getTraceSeconds();
+      for (WorkerReport report : reports) {
+        if (report.error != null) {
+          System.out.printf("%s: failed: %s%n", report.address, report.error);
+        }
+        System.out.printf("%s: %d tiles (%d used) in %.2f s, %.1f tiles/s%n", report.address,
+                report.traced, report.used, report.seconds,
+                (report.seconds > 0) ? report.traced / report.seconds : 0);
+      }
+      System.out.printf("%d tiles traced in %.2f s, %.1f tiles/s, %.2f s with starting up%n",
+              tiles, tracing, (tracing > 0) ? tiles / tracing : 0, seconds);
+
+      if (!coordinator.isFinished()) {
+        System.err.println("The workers failed before the image was finished");
+        System.exit(1);
+      }
+      File parent = new File(output).getAbsoluteFile().getParentFile();
+      if (parent != null) {
+        parent.mkdirs();
+      }
+      String format = output.substring(output.lastIndexOf('.') + 1);
+      if (!ImageIO.write(coordinator.getImage(), format, new File(output))) {
+        System.err.println("No writer for image format " + format);
+        System.exit(1);
+      }
+    } finally {
+      for (Process process : processes) {
+        process.destroy();
+      }
+    }
+  }
+
+  /**
+   * Start a worker on this machine with the same classpath as this process.
+   * Its output goes to a log file in the temporary directory.
+   */
+  private static Process spawnWorker(int port, int threads) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    ProcessBuilder builder = new ProcessBuilder(java,
+            "-cp", System.getProperty("java.class.path"),
+            "RaytraceWorker", "-port", Integer.toString(port), "-threads", Integer.toString(threads));
+    File log = new File(System.getProperty("java.io.tmpdir"), "raytrace-worker-" + port + ".log");
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(ProcessBuilder.Redirect.to(log));
+    return builder.start();
+  }
+
+  /**
+   * Get the number of tiles the image is cut into
+   */
+  public int getTileCount() {
+    return tiles.size();
+  }
+
+  /**
+   * Get how long the tiles took to trace, from when the first was handed out
+   * until the last was finished
+   */
+  public synchronized float getTraceSeconds() {
+    return (remaining == 0) ? (traceEnd - traceStart) / 1e9f : 0;
+  }
+
+  /**
+   * Whether every tile of the image has been traced
+   */
+  public synchronized boolean isFinished() {
+    return remaining == 0;
+  }
+
+  /**
+   * Get the image, stitched from the tiles that have been traced
+   */
+  public synchronized BufferedImage getImage() {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] raster = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    for (Tile tile : tiles) {
+      if (tile.pixels == null) {
+        continue;
+      }
+      int w = tile.x1 - tile.x0;
+      for (int y = tile.y0; y < tile.y1; y++) {
+        System.arraycopy(tile.pixels, (y - tile.y0) * w, raster, y * width + tile.x0, w);
+      }
+    }
+    return image;
+  }
+
+  /**
+   * Trace the image on the given workers, and wait until it is finished or
+   * every worker has failed
+   *
+   * @param workers the workers, as host:port
+   * @param retry   whether to keep trying to connect to workers that are not
+   *                listening yet, because they are still starting
+   * @return what each worker did
+   */
+  private List<WorkerReport> trace(List<String> workers, boolean retry) throws InterruptedException {
+    List<WorkerReport> reports = new ArrayList<WorkerReport>();
+    List<Thread> threads = new ArrayList<Thread>();
+    synchronized (this) {
+      liveWorkers = workers.size();
+    }
+    for (String address : workers) {
+      WorkerReport report = new WorkerReport(address);
+      reports.add(report);
+      Thread thread = new Thread(() -> serve(report, retry), "worker " + address);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return reports;
+  }
+
+  /**
+   * Get the next tile for a worker to trace: a tile that no one has started
+   * if there is one, and otherwise a copy of the tile that the fewest
+   * workers are tracing, which were handed out first. Wait while every tile
+   * left is already traced by as many workers as it may be.
+   *
+   * @return the tile, or null if the image is finished
+   */
+  private synchronized Tile next() throws InterruptedException {
+    while (remaining > 0) {
+      Tile tile = waiting.poll();
+      if (tile == null) {
+        for (Tile candidate : running) {
+          if ((candidate.attempts < MAXIMUM_ATTEMPTS)
+                  && ((tile == null) || (candidate.attempts < tile.attempts))) {
+            tile = candidate;
+          }
+        }
+      } else {
+        running.add(tile);
+      }
+      if (tile != null) {
+        if (traceStart == 0) {
+          traceStart = System.nanoTime();
+        }
+        tile.attempts++;
+        return tile;
+      }
+      wait();
+    }
+    return null;
+  }
+
+  /**
+   * Record the pixels a worker traced for a tile
+   *
+   * @return true if they are used, false if another worker finished the
+   * tile first
+   */
+  private synchronized boolean finished(Tile tile, int[] pixels) {
+    tile.attempts--;
+    if (tile.pixels != null) {
+      return false;
+    }
+    tile.pixels = pixels;
+    running.remove(tile);
+    remaining--;
+    if (remaining == 0) {
+      traceEnd = System.nanoTime();
+    }
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Give back a tile that a worker failed to trace, so that another can take
+   * it if no one else is tracing it
+   */
+  private synchronized void failed(Tile tile) {
+    tile.attempts--;
+    if ((tile.pixels == null) && (tile.attempts == 0)) {
+      running.remove(tile);
+      waiting.addFirst(tile);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Stop handing out tiles once no worker is left to trace them
+   */
+  private synchronized void workerEnded() {
+    liveWorkers--;
+    if (liveWorkers == 0) {
+      waiting.clear();
+      running.clear();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Trace tiles on one worker until the image is finished or the worker
+   * fails
+   */
+  private void serve(WorkerReport report, boolean retry) {
+    Tile tile = null;
+    try (Socket socket = connect(report.address, retry)) {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      out.writeUTF(hash);
+      out.flush();
+      if (!in.readBoolean()) {
+        out.writeInt(xml.length);
+        out.write(xml);
+      }
+      float[] matrix = camera.get(new float[16]);
+      for (float value : matrix) {
+        out.writeFloat(value);
+      }
+      out.writeInt(camera.properties());
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeFloat(fovy);
+      settings.write(out);
+      out.flush();
+      String error = in.readUTF();
+      if (error.length() > 0) {
+        throw new IOException(error);
+      }
+
+      long start = System.nanoTime();
+      while ((tile = next()) != null) {
+        out.writeInt(RaytraceProtocol.TRACE);
+        out.writeInt(tile.x0);
+        out.writeInt(tile.y0);
+        out.writeInt(tile.x1);
+        out.writeInt(tile.y1);
+        out.flush();
+        int[] pixels = RaytraceProtocol.readPixels(in, (tile.x1 - tile.x0) * (tile.y1 - tile.y0));
+        report.traced++;
+        if (finished(tile, pixels)) {
+          report.used++;
+        }
+        tile = null;
+        report.seconds = (System.nanoTime() - start) / 1e9f;
+      }
+      out.writeInt(RaytraceProtocol.END);
+      out.flush();
+    } catch (IOException e) {
+      report.error = e.getMessage();
+    } catch (InterruptedException e) {
+      report.error = "interrupted";
+    } finally {
+      if (tile != null) {
+        failed(tile);
+      }
+      workerEnded();
+    }
+  }
+
+  private static Socket connect(String address, boolean retry)
+          throws IOException, InterruptedException {
+    int colon = address.lastIndexOf(':');
+    String host = (colon >= 0) ? address.substring(0, colon) : address;
+    int port = (colon >= 0) ? Integer.parseInt(address.substring(colon + 1))
+            : RaytraceProtocol.DEFAULT_PORT;
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+    while (true) {
+      try {
+        return new Socket(host, port);
+      } catch (ConnectException e) {
+        if (!retry || (System.currentTimeMillis() > deadline)) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+}
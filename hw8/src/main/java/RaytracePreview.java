@@ -0,0 +1,65 @@
+import javax.swing.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Shows a ray traced image while it is being traced. Finished tiles are
+ * copied into the image as they are reported, and a line of text shows the
+ * progress of the job.
+ */
+public class RaytracePreview extends JComponent implements RaytraceScheduler.Progress {
+  private static final long serialVersionUID = 1L;
+  private BufferedImage image;
+  private volatile String status;
+
+  public RaytracePreview(int width, int height) {
+    image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    status = "";
+    setPreferredSize(new Dimension(width, height));
+  }
+
+  @Override
+  public void tileFinished(int[] pixels, int width, int height, int x0, int y0, int x1, int y1,
+                           float percent, float tilesPerSecond) {
+    synchronized (this) {
+      if ((image.getWidth() != width) || (image.getHeight() != height)) {
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      }
+      image.setRGB(x0, y0, x1 - x0, y1 - y0, pixels, y0 * width + x0, width);
+    }
+    status = String.format("%.0f%% traced, %.0f tiles/s", percent, tilesPerSecond);
+    repaint();
+  }
+
+  @Override
+  public void draftFinished(int step, float seconds) {
+    status = String.format("Draft at 1/%d resolution in %.0f ms", step, 1e3f * seconds);
+    repaint();
+  }
+
+  @Override
+  public void finished(boolean completed, float seconds) {
+    if (completed) {
+      status = String.format("Ray tracing complete in %.2f s", seconds);
+    } else {
+      status = "Ray tracing cancelled";
+    }
+    repaint();
+  }
+
+  @Override
+  public void failed(String message, float seconds) {
+    status = "Ray tracing failed: " + message;
+    repaint();
+  }
+
+  @Override
+  protected void paintComponent(Graphics g) {
+    synchronized (this) {
+      g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+    }
+    g.setColor(Color.WHITE);
+    g.drawString(status, 10, getHeight() - 10);
+  }
+}
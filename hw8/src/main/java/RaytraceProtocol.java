@@ -0,0 +1,92 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * What a {@link RaytraceCoordinator} and its {@link RaytraceWorker}s say to
+ * each other. For each image, the coordinator connects to a worker and
+ * sends:
+ *
+ * <ol>
+ * <li>the hash of the scene XML, to which the worker answers whether it has
+ * the scene already. If it does not, the length of the XML and the XML
+ * follow.</li>
+ * <li>the world-to-view matrix in column-major order and the properties that
+ * JOML knows it to have, the width and height of the image, the field of
+ * view and the {@link RaytraceSettings} of the image.
+ * The worker answers with an empty string once it is ready, or with what went
+ * wrong.</li>
+ * <li>any number of {@link #TRACE} commands, each with the left, top, right and
+ * bottom of a rectangle of the image, to which the worker answers with the
+ * pixels of the rectangle. An {@link #END} command, or closing the
+ * connection, ends the job.</li>
+ * </ol>
+ */
+class RaytraceProtocol {
+  static final int DEFAULT_PORT = 4300;
+  static final int END = 0;
+  static final int TRACE = 1;
+  /**
+   * The longest scene XML and the most pixels of an image or a rectangle of
+   * it that either side accepts. Lengths are checked against these before
+   * anything is allocated for them.
+   */
+  static final int MAXIMUM_SCENE_LENGTH = 64 << 20;
+  static final int MAXIMUM_PIXELS = 1 << 26;
+
+  /**
+   * Write the number of pixels and then the pixels
+   */
+  static void writePixels(DataOutputStream out, int[] pixels) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(4 * pixels.length);
+    buffer.asIntBuffer().put(pixels);
+    out.writeInt(pixels.length);
+    out.write(buffer.array());
+  }
+
+  /**
+   * Read the pixels of a rectangle, which must be as many as expected
+   */
+  static int[] readPixels(DataInputStream in, int expected) throws IOException {
+    int count = readLength(in, MAXIMUM_PIXELS);
+    if (count != expected) {
+      throw new IOException("Expected " + expected + " pixels but got " + count);
+    }
+    byte[] bytes = new byte[4 * count];
+    in.readFully(bytes);
+    int[] pixels = new int[count];
+    ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+    return pixels;
+  }
+
+  /**
+   * Read a length sent by the other side, which must be between 0 and the
+   * given maximum
+   */
+  static int readLength(DataInputStream in, int maximum) throws IOException {
+    int length = in.readInt();
+    if ((length < 0) || (length > maximum)) {
+      throw new IOException("Length " + length + " is not between 0 and " + maximum);
+    }
+    return length;
+  }
+
+  /**
+   * Get the SHA-256 hash of the given text, in hexadecimal
+   */
+  static String hash(byte[] text) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(text);
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
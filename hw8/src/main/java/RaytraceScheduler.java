@@ -0,0 +1,259 @@
+import org.joml.Matrix4f;
+
+import java.util.Stack;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sgraph.INode;
+import sgraph.RTRenderListener;
+import sgraph.RTScenegraphRenderer;
+
+/**
+ * Runs ray tracing jobs one at a time on a background thread, so that the
+ * window stays responsive while an image is traced.
+ *
+ * Requests are coalesced: a request for the image that is already being
+ * traced is ignored, and a request for a different camera cancels the job in
+ * progress and replaces any request still waiting. Only the latest waiting
+ * request is ever traced. The progress of the job, as a percentage and in
+ * tiles per second, is reported to the {@link Progress} of its request along
+ * with every finished tile.
+ *
+ * While the camera moves, quick drafts are requested instead, whose
+ * resolution a {@link RaytraceBudget} chooses from how long the drafts before
+ * them took. A draft in progress is not cancelled by a newer draft, only
+ * replaced once it is done, so that the view keeps showing new drafts while
+ * the camera moves on. A full image for the camera of a draft in progress
+ * waits for the draft too.
+ */
+public class RaytraceScheduler {
+  /**
+   * Receives the progress of a ray tracing job. Tiles are reported from the
+   * worker threads of the renderer.
+   */
+  public interface Progress {
+    /**
+     * A tile of the image has been traced
+     *
+     * @param pixels         the RGB pixels of the whole image, row by row from
+     *                       the top
+     * @param width          the width of the image
+     * @param height         the height of the image
+     * @param x0             the left edge of the tile, inclusive
+     * @param y0             the top edge of the tile, inclusive
+     * @param x1             the right edge of the tile, exclusive
+     * @param y1             the bottom edge of the tile, exclusive
+     * @param percent        how much of the job is done, from 0 to 100
+     * @param tilesPerSecond how many tiles the job has traced per second
+     */
+    void tileFinished(int[] pixels, int width, int height, int x0, int y0, int x1, int y1,
+                      float percent, float tilesPerSecond);
+
+    /**
+     * A draft has been traced completely
+     *
+     * @param step    the size of the blocks of pixels that the draft traced
+     *                one pixel for
+     * @param seconds how long the draft took
+     */
+    void draftFinished(int step, float seconds);
+
+    /**
+     * The job has ended, either because it was traced completely or because
+     * it was cancelled
+     *
+     * @param completed true if the image was traced and written completely
+     * @param seconds   how long the job ran
+     */
+    void finished(boolean completed, float seconds);
+
+    /**
+     * The job has ended because tracing or writing the image failed
+     *
+     * @param message what went wrong
+     * @param seconds how long the job ran
+     */
+    void failed(String message, float seconds);
+  }
+
+  private static class Job implements RTRenderListener {
+    final INode root;
+    final Matrix4f camera;
+    final Progress progress;
+    /**
+     * The budget that chooses the resolution of this job if it is a draft,
+     * or null if it is a full image
+     */
+    final RaytraceBudget budget;
+    final AtomicBoolean cancelled;
+    final AtomicInteger tilesFinished;
+    volatile int totalTiles;
+    volatile long start;
+
+    Job(INode root, Matrix4f camera, Progress progress, RaytraceBudget budget) {
+      this.root = root;
+      this.camera = new Matrix4f(camera);
+      this.progress = progress;
+      this.budget = budget;
+      cancelled = new AtomicBoolean(false);
+      tilesFinished = new AtomicInteger(0);
+    }
+
+    @Override
+    public void passStarted(int pass, int passes, int tiles) {
+      totalTiles = passes * tiles;
+    }
+
+    @Override
+    public void tileFinished(int pass, int[] pixels, int width, int height,
+                             int x0, int y0, int x1, int y1) {
+      int finished = tilesFinished.incrementAndGet();
+      float seconds = Math.max(1e-3f, (System.nanoTime() - start) / 1e9f);
+      progress.tileFinished(pixels, width, height, x0, y0, x1, y1,
+              100.0f * finished / totalTiles, finished / seconds);
+    }
+  }
+
+  private final RTScenegraphRenderer renderer;
+  private Job running, waiting;
+  private Thread worker;
+
+  public RaytraceScheduler(RTScenegraphRenderer renderer) {
+    this.renderer = renderer;
+  }
+
+  /**
+   * Request an image of the scene graph from the given camera
+   *
+   * @param root     the root of the scene graph
+   * @param camera   the world-to-view transformation
+   * @param progress where to report the progress of the job
+   */
+  public synchronized void request(INode root, Matrix4f camera, Progress progress) {
+    boolean same = (running != null) && !running.cancelled.get()
+            && (running.root == root) && running.camera.equals(camera);
+    if (same && (running.budget == null)) {
+      return;
+    }
+    if ((running != null) && !same) {
+      running.cancelled.set(true);
+    }
+    start(new Job(root, camera, progress, null));
+  }
+
+  /**
+   * Request a quick draft of the scene graph from the given camera, while
+   * the camera moves
+   *
+   * @param root     the root of the scene graph
+   * @param camera   the world-to-view transformation
+   * @param budget   chooses the resolution of the draft, and is told how long
+   *                 it took
+   * @param progress where to report the progress of the job
+   */
+  public synchronized void requestDraft(INode root, Matrix4f camera, RaytraceBudget budget,
+                                        Progress progress) {
+    if ((running != null) && (running.budget == null)) {
+      running.cancelled.set(true);
+    }
+    start(new Job(root, camera, progress, budget));
+  }
+
+  private void start(Job job) {
+    waiting = job;
+    if (worker == null) {
+      worker = new Thread(this::work, "raytrace");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Cancel the job in progress and any job waiting to start
+   */
+  public synchronized void cancel() {
+    if (running != null) {
+      running.cancelled.set(true);
+    }
+    waiting = null;
+  }
+
+  /**
+   * Whether a job is in progress or waiting to start
+   */
+  public synchronized boolean isBusy() {
+    return (running != null) || (waiting != null);
+  }
+
+  /**
+   * Run jobs until none is waiting. If reporting a job throws, the thread
+   * ends, but the scheduler is left idle and a new thread is started for
+   * any job still waiting.
+   */
+  private void work() {
+    boolean idle = false;
+    try {
+      while (true) {
+        Job job;
+        synchronized (this) {
+          job = waiting;
+          waiting = null;
+          running = job;
+          if (job == null) {
+            worker = null;
+            idle = true;
+            return;
+          }
+        }
+        run(job);
+      }
+    } finally {
+      if (!idle) {
+        synchronized (this) {
+          running = null;
+          worker = null;
+          if (waiting != null) {
+            start(waiting);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Trace one job and report how it ended. Anything thrown while tracing,
+   * errors included, is reported to the job as a failure.
+   */
+  private void run(Job job) {
+    Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+    modelView.push(new Matrix4f(job.camera));
+    job.start = System.nanoTime();
+    boolean completed = false;
+    int step = 0;
+    Throwable failure = null;
+    try {
+      if (job.budget != null) {
+        step = job.budget.getStep();
+        completed = renderer.drawDraft(job.root, modelView, step, job, job.cancelled);
+      } else {
+        completed = renderer.draw(job.root, modelView, job, job.cancelled);
+      }
+    } catch (Throwable e) {
+      failure = e;
+    } finally {
+      synchronized (this) {
+        running = null;
+      }
+    }
+    float seconds = (System.nanoTime() - job.start) / 1e9f;
+    if (failure != null) {
+      job.progress.failed((failure.getMessage() != null) ? failure.getMessage()
+              : failure.toString(), seconds);
+    } else if ((job.budget != null) && completed) {
+      job.budget.draftFinished(step, seconds, renderer.getStatistics().getSeconds());
+      job.progress.draftFinished(step, seconds);
+    } else {
+      job.progress.finished(completed, seconds);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import sgraph.RTScenegraphRenderer;
+import sgraph.ToneMapper;
+
+/**
+ * The options that change what a ray traced image looks like, as
+ * {@link RaytraceBatch} and {@link RaytraceCoordinator} take them on the
+ * command line. The coordinator sends them to its workers with every job,
+ * so that an image traced on workers is the one that RaytraceBatch traces
+ * with the same options.
+ */
+class RaytraceSettings {
+  /**
+   * The difference in color, from 0 to 1, beyond which neighboring pixels
+   * are antialiased
+   */
+  static final float ANTIALIAS_THRESHOLD = 0.1f;
+  /**
+   * The most samples a side of an edge pixel, photons and photons gathered
+   * at a point that are accepted, so that a worker cannot be asked for more
+   * than it can hold
+   */
+  static final int MAXIMUM_ANTIALIAS = 16;
+  static final int MAXIMUM_PHOTONS = 1 << 24;
+  static final int MAXIMUM_GATHER = 1024;
+
+  static final String USAGE =
+          "  -antialias n       n x n samples on edge pixels, 1 for none (default 1)\n"
+                  + "  -tonemap name      clamp, reinhard or exposure:stops (default clamp)\n"
+                  + "  -gamma g           gamma of the display (default 1)\n"
+                  + "  -roulette          end faint reflected and refracted rays at random\n"
+                  + "  -lights k          shade each point with k lights picked at random,\n"
+                  + "                     or 0 for every light that reaches it (default 0)\n"
+                  + "  -shadingcache s    trace shadow rays only at points about s pixels\n"
+                  + "                     apart, and share them with the points around\n"
+                  + "                     them (default 0, every point traces its own)\n"
+                  + "  -caustics n[,k]    emit n photons for caustics, and light each point\n"
+                  + "                     with the k nearest (default 0, none; k 50)\n"
+                  + "  -packets           trace the primary and shadow rays of 8x8 pixels\n"
+                  + "                     together\n";
+
+  int antialias = 1;
+  float antialiasThreshold = ANTIALIAS_THRESHOLD;
+  /**
+   * The tone mapping by name, as -tonemap takes it, so that it can be sent
+   */
+  String toneMapping = "clamp";
+  float gamma = 1.0f;
+  boolean roulette;
+  int lightSamples;
+  float shadingCache;
+  int causticPhotons;
+  int causticGather = 50;
+  boolean packets;
+
+  /**
+   * Take the option at the given index of the arguments if it is one of
+   * these settings
+   *
+   * @return how many arguments it took, with its value, or 0 if it is not
+   * one of these settings
+   */
+  int parse(String[] args, int i) {
+    String arg = args[i];
+    if (arg.equals("-roulette")) {
+      roulette = true;
+      return 1;
+    }
+    if (arg.equals("-packets")) {
+      packets = true;
+      return 1;
+    }
+    if (!arg.equals("-antialias") && !arg.equals("-tonemap") && !arg.equals("-gamma")
+            && !arg.equals("-lights") && !arg.equals("-shadingcache")
+            && !arg.equals("-caustics")) {
+      return 0;
+    }
+    if (i + 1 >= args.length) {
+      throw new IllegalArgumentException("Missing value for " + arg);
+    }
+    String value = args[i + 1];
+    switch (arg) {
+      case "-antialias":
+        antialias = Integer.parseInt(value);
+        break;
+      case "-tonemap":
+        parseToneMapper(value);
+        toneMapping = value;
+        break;
+      case "-gamma":
+        gamma = Float.parseFloat(value);
+        break;
+      case "-lights":
+        lightSamples = Integer.parseInt(value);
+        break;
+      case "-shadingcache":
+        shadingCache = Float.parseFloat(value);
+        break;
+      default: {
+        String[] caustics = value.split(",");
+        causticPhotons = Integer.parseInt(caustics[0]);
+        if (caustics.length > 1) {
+          causticGather = Integer.parseInt(caustics[1]);
+        }
+        break;
+      }
+    }
+    check();
+    return 2;
+  }
+
+  /**
+   * Check that every setting is in range
+   */
+  void check() {
+    if ((antialias < 1) || (antialias > MAXIMUM_ANTIALIAS)) {
+      throw new IllegalArgumentException("Antialiasing must be from 1 to " + MAXIMUM_ANTIALIAS);
+    }
+    if (!(antialiasThreshold >= 0) || !(gamma > 0) || !(shadingCache >= 0)
+            || Float.isInfinite(gamma) || Float.isInfinite(shadingCache)) {
+      throw new IllegalArgumentException("Threshold, gamma and shading cache are out of range");
+    }
+    if (lightSamples < 0) {
+      throw new IllegalArgumentException("Lights cannot be negative");
+    }
+    if ((causticPhotons < 0) || (causticPhotons > MAXIMUM_PHOTONS)
+            || (causticGather < 1) || (causticGather > MAXIMUM_GATHER)) {
+      throw new IllegalArgumentException("Caustics must be at most " + MAXIMUM_PHOTONS
+              + " photons, gathered by 1 to " + MAXIMUM_GATHER);
+    }
+    parseToneMapper(toneMapping);
+  }
+
+  /**
+   * Set these on a renderer
+   */
+  void apply(RTScenegraphRenderer renderer) {
+    renderer.setAntialiasing(antialias, antialiasThreshold);
+    renderer.setToneMapping(parseToneMapper(toneMapping), gamma);
+    renderer.setRussianRoulette(roulette);
+    renderer.setLightSampling(lightSamples);
+    renderer.setShadingCache(shadingCache);
+    renderer.setCaustics(causticPhotons, causticGather);
+    renderer.setPacketTracing(packets);
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(antialias);
+    out.writeFloat(antialiasThreshold);
+    out.writeUTF(toneMapping);
+    out.writeFloat(gamma);
+    out.writeBoolean(roulette);
+    out.writeInt(lightSamples);
+    out.writeFloat(shadingCache);
+    out.writeInt(causticPhotons);
+    out.writeInt(causticGather);
+    out.writeBoolean(packets);
+  }
+
+  /**
+   * Read settings written by {@link #write}. They are not checked, so that
+   * the worker can answer with what is out of range
+   */
+  static RaytraceSettings read(DataInputStream in) throws IOException {
+    RaytraceSettings settings = new RaytraceSettings();
+    settings.antialias = in.readInt();
+    settings.antialiasThreshold = in.readFloat();
+    settings.toneMapping = in.readUTF();
+    settings.gamma = in.readFloat();
+    settings.roulette = in.readBoolean();
+    settings.lightSamples = in.readInt();
+    settings.shadingCache = in.readFloat();
+    settings.causticPhotons = in.readInt();
+    settings.causticGather = in.readInt();
+    settings.packets = in.readBoolean();
+    return settings;
+  }
+
+  static ToneMapper parseToneMapper(String name) {
+    if (name.equals("clamp")) {
+      return ToneMapper.CLAMP;
+    } else if (name.equals("reinhard")) {
+      return ToneMapper.REINHARD;
+    } else if (name.startsWith("exposure:")) {
+      return ToneMapper.exposure(Float.parseFloat(name.substring("exposure:".length())));
+    }
+    throw new IllegalArgumentException("Unknown tone mapping " + name);
+  }
+}
@@ -0,0 +1,185 @@
+import org.joml.Matrix4f;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Stack;
+
+import sgraph.IScenegraph;
+import sgraph.RTScenegraphRenderer;
+import sgraph.SceneXMLReader;
+
+/**
+ * Traces parts of images for a {@link RaytraceCoordinator}. A worker listens
+ * on a local port and serves one coordinator at a time, using every processor
+ * of its machine for each part it is asked for. It only listens on the
+ * loopback interface unless told to listen on another address, since anyone
+ * who can connect to it can make it load a scene.
+ *
+ * Scenes are sent as the text of their XML file, and are kept by the hash of
+ * that text, so a worker only loads a scene the first time it is used, even
+ * across several coordinators. Models and textures that the scene refers to
+ * are loaded from the classpath of the worker.
+ *
+ * Run with -port n to choose the port, -bind address to choose the address
+ * to listen on, like 0.0.0.0 for every interface, and -threads n to choose
+ * how many threads to trace with.
+ */
+public class RaytraceWorker {
+  /**
+   * How many scenes to keep loaded
+   */
+  private static final int CACHED_SCENES = 4;
+
+  private final RTScenegraphRenderer renderer;
+  private final Map<String, IScenegraph<VertexAttrib>> scenes;
+  private IScenegraph<VertexAttrib> current;
+
+  public RaytraceWorker(int threads) {
+    renderer = new RTScenegraphRenderer(threads);
+    scenes = new LinkedHashMap<String, IScenegraph<VertexAttrib>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, IScenegraph<VertexAttrib>> eldest) {
+        return size() > CACHED_SCENES;
+      }
+    };
+  }
+
+  public static void main(String[] args) {
+    System.setProperty("java.awt.headless", "true");
+    int port = RaytraceProtocol.DEFAULT_PORT;
+    InetAddress address = InetAddress.getLoopbackAddress();
+    int threads = Runtime.getRuntime().availableProcessors();
+    try {
+      for (int i = 0; i < args.length; i += 2) {
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException("Missing value for " + args[i]);
+        }
+        if (args[i].equals("-port")) {
+          port = Integer.parseInt(args[i + 1]);
+        } else if (args[i].equals("-bind")) {
+          address = InetAddress.getByName(args[i + 1]);
+        } else if (args[i].equals("-threads")) {
+          threads = Integer.parseInt(args[i + 1]);
+        } else {
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+        }
+      }
+    } catch (IllegalArgumentException | UnknownHostException e) {
+      System.err.println(e.getMessage());
+      System.err.println("usage: RaytraceWorker [-port n] [-bind address] [-threads n]");
+      System.exit(1);
+      return;
+    }
+
+    RaytraceWorker worker = new RaytraceWorker(threads);
+    try (ServerSocket server = new ServerSocket(port, 0, address)) {
+      System.out.println("RaytraceWorker listening on " + address.getHostAddress()
+              + " port " + server.getLocalPort());
+      while (true) {
+        try (Socket socket = server.accept()) {
+          worker.serve(socket);
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Connection failed: " + e.getMessage());
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Could not listen on port " + port + ": " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Serve one job of a coordinator, until it ends the job or closes the
+   * connection
+   */
+  private void serve(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+    //the scene, sent only if it is not cached here
+    String hash = in.readUTF();
+    IScenegraph<VertexAttrib> scenegraph = scenes.get(hash);
+    out.writeBoolean(scenegraph != null);
+    out.flush();
+    byte[] xml = null;
+    if (scenegraph == null) {
+      xml = new byte[RaytraceProtocol.readLength(in, RaytraceProtocol.MAXIMUM_SCENE_LENGTH)];
+      in.readFully(xml);
+    }
+
+    //the camera and image
+    float[] camera = new float[16];
+    for (int i = 0; i < 16; i++) {
+      camera[i] = in.readFloat();
+    }
+    int cameraProperties = in.readInt();
+    int width = in.readInt();
+    int height = in.readInt();
+    float fovy = in.readFloat();
+    RaytraceSettings settings = RaytraceSettings.read(in);
+
+    try {
+      if ((width <= 0) || (height <= 0)
+              || ((long) width * height > RaytraceProtocol.MAXIMUM_PIXELS)) {
+        throw new IllegalArgumentException("Image size " + width + "x" + height
+                + " is out of range");
+      }
+      settings.check();
+      if (scenegraph == null) {
+        //a scene is cached under its hash, so it must be the one named
+        if (!RaytraceProtocol.hash(xml).equals(hash)) {
+          throw new IllegalArgumentException("the scene does not match its hash");
+        }
+        scenegraph = SceneXMLReader.importScenegraph(new ByteArrayInputStream(xml),
+                new VertexAttribProducer());
+        scenes.put(hash, scenegraph);
+        System.out.println("Loaded scene " + hash);
+      }
+      if (scenegraph != current) {
+        scenegraph.setRenderer(renderer);
+        current = scenegraph;
+      }
+      renderer.setSize(width, height);
+      renderer.setFieldOfView(fovy);
+      settings.apply(renderer);
+      Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+      //with the properties of the matrix, the same arithmetic is used on it
+      //as on the matrix that the coordinator made
+      modelView.push(new Matrix4f().set(camera).assume(cameraProperties));
+      renderer.prepareFrame(scenegraph.getRoot(), modelView);
+    } catch (Exception e) {
+      out.writeUTF("Could not prepare the scene: " + e.getMessage());
+      out.flush();
+      return;
+    }
+    out.writeUTF("");
+    out.flush();
+
+    while (true) {
+      int command;
+      try {
+        command = in.readInt();
+      } catch (EOFException e) {
+        return;
+      }
+      if (command != RaytraceProtocol.TRACE) {
+        return;
+      }
+      int x0 = in.readInt(), y0 = in.readInt(), x1 = in.readInt(), y1 = in.readInt();
+      RaytraceProtocol.writePixels(out, renderer.traceRegion(x0, y0, x1, y1));
+      out.flush();
+    }
+  }
+}
@@ -26,7 +26,9 @@ public class View {
   private Matrix4f projection, trackballTransform;
   private float trackballRadius;
   private Vector2f mousePos;
-  sgraph.IScenegraphRenderer openGLRenderer, raytraceRenderer;
+  sgraph.IScenegraphRenderer openGLRenderer;
+  sgraph.RTScenegraphRenderer raytraceRenderer;
+  private RaytraceScheduler raytraceScheduler;
 
 
   private util.ShaderProgram program;
@@ -35,6 +37,19 @@ public class View {
   private sgraph.IScenegraph scenegraph;
   private int angleOfRotation;
   private float FOVY;
+  /**
+   * The size of the blocks that the first pass of a ray traced image traces
+   * one pixel for
+   */
+  private static final int RAYTRACE_PREVIEW_STEP = 16;
+  /**
+   * How long each ray traced draft shown while dragging the trackball should
+   * take, and the finest and coarsest blocks they trace one pixel for
+   */
+  private static final float RAYTRACE_DRAFT_SECONDS = 1 / 15.0f;
+  private static final int RAYTRACE_DRAFT_FINEST_STEP = 4;
+  private static final int RAYTRACE_DRAFT_COARSEST_STEP = 16;
+  private RaytraceBudget raytraceBudget;
 
 
   public View() {
@@ -53,9 +68,25 @@ public class View {
 
     if (scenegraph != null)
       scenegraph.dispose();
+    if (raytraceScheduler != null)
+      raytraceScheduler.cancel();
+    if (raytraceRenderer != null)
+      raytraceRenderer.dispose();
 
     scenegraph = sgraph.SceneXMLReader.importScenegraph(in, new VertexAttribProducer());
 
+    //give the ray tracer the meshes and textures now, so that ray tracing
+    //never has to swap the renderer of the scene graph
+    raytraceRenderer = new sgraph.RTScenegraphRenderer();
+    raytraceRenderer.setPreviewStep(RAYTRACE_PREVIEW_STEP);
+    //an image traced after only the camera moved reuses what it can of the
+    //last one
+    raytraceRenderer.setTemporalReuse(true);
+    scenegraph.setRenderer(raytraceRenderer);
+    raytraceScheduler = new RaytraceScheduler(raytraceRenderer);
+    raytraceBudget = new RaytraceBudget(RAYTRACE_DRAFT_SECONDS, RAYTRACE_DRAFT_FINEST_STEP,
+            RAYTRACE_DRAFT_COARSEST_STEP, 2 * RAYTRACE_DRAFT_FINEST_STEP);
+
     openGLRenderer = new sgraph.GL3ScenegraphRenderer();
     openGLRenderer.setContext(gla);
     Map<String, String> shaderVarsToVertexAttribs = new HashMap<String, String>();
@@ -64,11 +95,6 @@ public class View {
     shaderVarsToVertexAttribs.put("vTexCoord", "texcoord");
     openGLRenderer.initShaderProgram(program, shaderVarsToVertexAttribs);
     scenegraph.setRenderer(openGLRenderer);
-
-
-    raytraceRenderer = new sgraph.RTScenegraphRenderer();
-
-
   }
 
   public void init(GLAutoDrawable gla) throws Exception {
@@ -145,31 +171,41 @@ public class View {
 
   }
 
-  public void raytrace() {
+  /**
+   * Ray trace the scene graph from the current camera in the background. A
+   * coarse image is reported first and then refined. The final image is
+   * written to output/raytrace.png.
+   *
+   * @param progress where to report the progress of the trace
+   */
+  public void raytrace(RaytraceScheduler.Progress progress) {
+    raytraceScheduler.request(scenegraph.getRoot(), getCamera(), progress);
+  }
 
-    Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+  /**
+   * Ray trace a quick, coarse draft of the scene graph from the current
+   * camera in the background, while the trackball is dragged. The resolution
+   * of the draft is chosen so that drafts keep up with the mouse.
+   *
+   * @param progress where to report the progress of the trace
+   */
+  public void raytraceDraft(RaytraceScheduler.Progress progress) {
+    raytraceScheduler.requestDraft(scenegraph.getRoot(), getCamera(), raytraceBudget, progress);
+  }
 
-    while (!modelView.empty())
-      modelView.pop();
-        /*
-         *In order to change the shape of this triangle, we can either move the vertex positions above, or "transform" them
-         * We use a modelview matrix to store the transformations to be applied to our triangle.
-         * Right now this matrix is identity, which means "no transformations"
-         */
-    modelView.push(new Matrix4f());
-    modelView.peek().lookAt(new Vector3f(new Vector3f(-50, 120, 200)), new Vector3f(0, 0, 0), new Vector3f(0, 1, 0))
+  private Matrix4f getCamera() {
+    Matrix4f camera = new Matrix4f();
+    camera.lookAt(new Vector3f(new Vector3f(-50, 120, 200)), new Vector3f(0, 0, 0), new Vector3f(0, 1, 0))
             .mul(trackballTransform);
+    return camera;
+  }
 
-    try {
-      scenegraph.setRenderer(raytraceRenderer);
-    } catch (Exception e) {
-    }
-    scenegraph.draw(modelView);
-    modelView.pop();
-
-    try {
-      scenegraph.setRenderer(openGLRenderer);
-    } catch (Exception e) {
+  /**
+   * Stop any ray tracing in progress, because what it traces is out of date
+   */
+  public void cancelRaytrace() {
+    if (raytraceScheduler != null) {
+      raytraceScheduler.cancel();
     }
   }
 
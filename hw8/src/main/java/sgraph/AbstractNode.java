@@ -163,7 +163,14 @@ public abstract class AbstractNode implements INode {
     List<Light> listLights = new ArrayList<Light>();
 
     for (Light l : this.lights) {
-      Light lnew = new Light(l);
+      Light lnew;
+      if (l instanceof AreaLight) {
+        AreaLight area = new AreaLight((AreaLight) l);
+        area.transformShape(modelview.peek());
+        lnew = area;
+      } else {
+        lnew = new Light(l);
+      }
       Vector4f pos = lnew.getPosition();
       pos = modelview.peek().transform(pos);
       lnew.setPosition(pos);
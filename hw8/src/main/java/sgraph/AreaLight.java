@@ -0,0 +1,101 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+
+import util.Light;
+
+/**
+ * A light that shines from a rectangle or a sphere around its position,
+ * instead of from a single point, so that the shadows it casts are soft.
+ * The ray tracer traces shadow rays to points all over it. Renderers that
+ * only know point lights light with it as if it were a point at its
+ * position.
+ *
+ * A rectangle is centered at the position of the light and spanned by two
+ * edges, and shines to both sides. The spot of the light, if it has one,
+ * is a cone from its position, as it is for a point light.
+ */
+public class AreaLight extends Light {
+  public enum Shape {
+    RECTANGLE, SPHERE
+  }
+
+  private Shape shape;
+  /**
+   * The two edges of a rectangle, as directions, and the radius of a sphere
+   */
+  private Vector4f edge1, edge2;
+  private float radius;
+
+  /**
+   * Make an area light with the colors, position and spot of the given
+   * light, as a sphere of no size until its shape is set
+   */
+  public AreaLight(Light light) {
+    super(light);
+    shape = Shape.SPHERE;
+    edge1 = new Vector4f(0, 0, 0, 0);
+    edge2 = new Vector4f(0, 0, 0, 0);
+    radius = 0;
+  }
+
+  public AreaLight(AreaLight light) {
+    super(light);
+    shape = light.shape;
+    edge1 = new Vector4f(light.edge1);
+    edge2 = new Vector4f(light.edge2);
+    radius = light.radius;
+  }
+
+  /**
+   * Make this light a rectangle centered at its position, with the given
+   * edges
+   */
+  public void setRectangle(float x1, float y1, float z1, float x2, float y2, float z2) {
+    shape = Shape.RECTANGLE;
+    edge1.set(x1, y1, z1, 0);
+    edge2.set(x2, y2, z2, 0);
+    radius = 0;
+  }
+
+  /**
+   * Make this light a sphere of the given radius around its position
+   */
+  public void setSphere(float radius) {
+    if (radius < 0) {
+      throw new IllegalArgumentException("The radius of a light cannot be negative");
+    }
+    shape = Shape.SPHERE;
+    edge1.set(0, 0, 0, 0);
+    edge2.set(0, 0, 0, 0);
+    this.radius = radius;
+  }
+
+  public Shape getShape() {
+    return shape;
+  }
+
+  public Vector4f getEdge1() {
+    return new Vector4f(edge1);
+  }
+
+  public Vector4f getEdge2() {
+    return new Vector4f(edge2);
+  }
+
+  public float getRadius() {
+    return radius;
+  }
+
+  /**
+   * Move the shape of this light by the given transformation, as its
+   * position is moved into the view. A sphere stays a sphere, scaled by the
+   * average scale of the transformation.
+   */
+  public void transformShape(Matrix4f transformation) {
+    transformation.transform(edge1);
+    transformation.transform(edge2);
+    radius *= (float) Math.cbrt(Math.abs(transformation.determinant3x3()));
+  }
+}
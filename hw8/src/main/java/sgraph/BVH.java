@@ -0,0 +1,705 @@
+package sgraph;
+
+/**
+ * A bounding volume hierarchy over a set of primitives that are known only by
+ * their index and axis-aligned bounding box. The hierarchy is built with
+ * binned surface area heuristic (SAH) splits and stored in flat arrays, so
+ * that traversal does not chase object references.
+ *
+ * The hierarchy does not know what the primitives are. It is traversed with
+ * a {@link PrimitiveIntersector} that intersects a single primitive when a
+ * ray reaches a leaf of the hierarchy.
+ */
+public class BVH {
+  /**
+   * Intersects individual primitives of a hierarchy
+   */
+  interface PrimitiveIntersector {
+    /**
+     * Intersect the given ray with the primitive of the given index, and if
+     * it is closer than the time already in the hit record, update the hit
+     * record. The context is the scratch state of the worker tracing the
+     * ray, for primitives that have hierarchies of their own.
+     */
+    void intersect(int primitive, Ray ray, HitRecord hitRecord, TraceContext context);
+
+    /**
+     * Determine whether the given ray hits the primitive of the given index
+     * before the given time
+     */
+    boolean occluded(int primitive, Ray ray, float maximumTime, TraceContext context);
+  }
+
+  /**
+   * Intersects individual primitives of a hierarchy with every ray of a
+   * packet at once
+   */
+  interface PacketIntersector {
+    /**
+     * Intersect the rays of the packet from first to last, exclusive, with
+     * the primitive of the given index, and for each ray that hits it before
+     * its time, make it the closest hit of the ray
+     */
+    void intersect(int primitive, RayPacket packet, int first, int last, TraceContext context);
+
+    /**
+     * Find the rays of the packet from first to last, exclusive, that hit the
+     * primitive of the given index before their time, and give them a
+     * negative time
+     */
+    void occluded(int primitive, RayPacket packet, int first, int last, TraceContext context);
+  }
+
+  /**
+   * Scratch space for traversing a hierarchy without allocating. It grows to
+   * fit the deepest hierarchy it is used with. Each thread must use its own.
+   */
+  public static class Traversal {
+    private int[] nodes;
+    private float[] entries;
+    /**
+     * For packets, the first ray that may hit each node on the stack
+     */
+    private int[] firsts;
+
+    public Traversal() {
+      nodes = new int[64];
+      entries = new float[64];
+      firsts = new int[64];
+    }
+
+    void ensureDepth(int depth) {
+      if (nodes.length < depth + 1) {
+        nodes = new int[depth + 1];
+        entries = new float[depth + 1];
+        firsts = new int[depth + 1];
+      }
+    }
+  }
+
+  private static final int BINS = 16;
+  private static final int MAXIMUM_LEAF_SIZE = 4;
+  private static final float TRAVERSAL_COST = 1.0f;
+  private static final float INTERSECTION_COST = 2.0f;
+
+  /**
+   * The bounds of each node, stored as minX,minY,minZ,maxX,maxY,maxZ
+   */
+  private float[] nodeBounds;
+  /**
+   * For interior nodes, the index of the left child (the right child follows
+   * the whole left subtree). For leaves, the index of the first primitive in
+   * {@link #primitives}
+   */
+  private int[] nodeStart;
+  /**
+   * The number of primitives in each leaf, 0 for interior nodes
+   */
+  private int[] nodeCount;
+  /**
+   * For interior nodes, the index of the right child
+   */
+  private int[] nodeRight;
+  /**
+   * The primitive indices, ordered so that each leaf refers to a contiguous
+   * range of them
+   */
+  private int[] primitives;
+  private int nodes;
+  private int depth;
+  /**
+   * The total surface area of the nodes when the hierarchy was built, which
+   * refitting is measured against
+   */
+  private float builtArea;
+
+  /**
+   * Build a hierarchy over the primitives whose bounding boxes are given.
+   *
+   * @param bounds the bounding box of each primitive, stored as
+   *               minX,minY,minZ,maxX,maxY,maxZ
+   * @param count  the number of primitives
+   */
+  public BVH(float[] bounds, int count) {
+    primitives = new int[count];
+    float[] centroids = new float[3 * count];
+    for (int i = 0; i < count; i++) {
+      primitives[i] = i;
+      for (int k = 0; k < 3; k++) {
+        centroids[3 * i + k] = 0.5f * (bounds[6 * i + k] + bounds[6 * i + 3 + k]);
+      }
+    }
+
+    int capacity = Math.max(1, 2 * count - 1);
+    nodeBounds = new float[6 * capacity];
+    nodeStart = new int[capacity];
+    nodeCount = new int[capacity];
+    nodeRight = new int[capacity];
+    nodes = 0;
+    depth = 0;
+
+    if (count > 0) {
+      build(bounds, centroids, 0, count, 1);
+    }
+    builtArea = totalArea();
+  }
+
+  /**
+   * Update the bounds of every node to those of the given primitive bounds,
+   * keeping the structure of the hierarchy. This is much cheaper than
+   * building it again, and as good when the primitives have moved only a
+   * little, but the hierarchy gets looser as they move further from where
+   * they were when it was built.
+   *
+   * @param bounds the new bounding box of each primitive, in the same order
+   *               as when the hierarchy was built
+   * @return the total surface area of the nodes relative to when the
+   * hierarchy was built. Traversal gets slower as this grows.
+   */
+  public float refit(float[] bounds) {
+    //children always come after their parents, so a reverse sweep sees both
+    //children of a node before the node itself
+    for (int node = nodes - 1; node >= 0; node--) {
+      int b = 6 * node;
+      emptyBox(nodeBounds, b);
+      if (nodeCount[node] > 0) {
+        for (int i = nodeStart[node]; i < nodeStart[node] + nodeCount[node]; i++) {
+          int p = primitives[i];
+          growBox(nodeBounds, b, bounds, 6 * p, 6 * p + 3);
+        }
+      } else {
+        growBox(nodeBounds, b, nodeBounds, 6 * nodeStart[node], 6 * nodeStart[node] + 3);
+        growBox(nodeBounds, b, nodeBounds, 6 * nodeRight[node], 6 * nodeRight[node] + 3);
+      }
+    }
+    return (builtArea > 0) ? totalArea() / builtArea : 1;
+  }
+
+  private float totalArea() {
+    float total = 0;
+    float[] box = new float[6];
+    for (int node = 0; node < nodes; node++) {
+      System.arraycopy(nodeBounds, 6 * node, box, 0, 6);
+      total += area(box);
+    }
+    return total;
+  }
+
+  /**
+   * Get the number of primitives in this hierarchy
+   */
+  public int getPrimitiveCount() {
+    return primitives.length;
+  }
+
+  /**
+   * Get the length of the longest path from the root to a leaf
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  private int build(float[] bounds, float[] centroids, int start, int end, int level) {
+    int node = nodes++;
+    depth = Math.max(depth, level);
+
+    float[] box = new float[6];
+    float[] centroidBox = new float[6];
+    emptyBox(box);
+    emptyBox(centroidBox);
+    for (int i = start; i < end; i++) {
+      int p = primitives[i];
+      growBox(box, bounds, 6 * p, 6 * p + 3);
+      growBox(centroidBox, centroids, 3 * p, 3 * p);
+    }
+    System.arraycopy(box, 0, nodeBounds, 6 * node, 6);
+
+    int count = end - start;
+    if (count <= 1) {
+      makeLeaf(node, start, count);
+      return node;
+    }
+
+    //find the best split over all axes with binned SAH
+    float bestCost = Float.POSITIVE_INFINITY;
+    int bestAxis = -1;
+    int bestBin = -1;
+    int[] binCount = new int[BINS];
+    float[] binBounds = new float[6 * BINS];
+    float[] rightArea = new float[BINS];
+    float[] accumulated = new float[6];
+
+    for (int axis = 0; axis < 3; axis++) {
+      float cmin = centroidBox[axis];
+      float cmax = centroidBox[3 + axis];
+      if (cmax - cmin < 1e-6f) {
+        continue;
+      }
+      float scale = BINS / (cmax - cmin);
+
+      for (int b = 0; b < BINS; b++) {
+        binCount[b] = 0;
+        emptyBox(binBounds, 6 * b);
+      }
+      for (int i = start; i < end; i++) {
+        int p = primitives[i];
+        int b = binOf(centroids[3 * p + axis], cmin, scale);
+        binCount[b]++;
+        growBox(binBounds, 6 * b, bounds, 6 * p, 6 * p + 3);
+      }
+
+      //sweep from the right to find the area of everything right of each plane
+      emptyBox(accumulated);
+      for (int b = BINS - 1; b > 0; b--) {
+        growBox(accumulated, binBounds, 6 * b, 6 * b + 3);
+        rightArea[b] = area(accumulated);
+      }
+
+      //sweep from the left and evaluate each plane
+      emptyBox(accumulated);
+      int leftCount = 0;
+      for (int b = 0; b < BINS - 1; b++) {
+        growBox(accumulated, binBounds, 6 * b, 6 * b + 3);
+        leftCount += binCount[b];
+        int rightCount = count - leftCount;
+        if (leftCount == 0 || rightCount == 0) {
+          continue;
+        }
+        float cost = leftCount * area(accumulated) + rightCount * rightArea[b + 1];
+        if (cost < bestCost) {
+          bestCost = cost;
+          bestAxis = axis;
+          bestBin = b;
+        }
+      }
+    }
+
+    float boxArea = area(box);
+    float leafCost = INTERSECTION_COST * count;
+    float splitCost = boxArea > 0
+            ? TRAVERSAL_COST + INTERSECTION_COST * bestCost / boxArea
+            : Float.POSITIVE_INFINITY;
+
+    int middle;
+    if (bestAxis >= 0 && (splitCost < leafCost || count > MAXIMUM_LEAF_SIZE)) {
+      float cmin = centroidBox[bestAxis];
+      float scale = BINS / (centroidBox[3 + bestAxis] - cmin);
+      middle = partition(centroids, start, end, bestAxis, cmin, scale, bestBin);
+    } else if (count > MAXIMUM_LEAF_SIZE) {
+      //all centroids coincide, so no plane separates them: split by index
+      middle = (start + end) / 2;
+    } else {
+      makeLeaf(node, start, count);
+      return node;
+    }
+
+    nodeCount[node] = 0;
+    nodeStart[node] = build(bounds, centroids, start, middle, level + 1);
+    nodeRight[node] = build(bounds, centroids, middle, end, level + 1);
+    return node;
+  }
+
+  private int partition(float[] centroids, int start, int end, int axis, float cmin, float scale, int bin) {
+    int i = start;
+    int j = end - 1;
+    while (i <= j) {
+      if (binOf(centroids[3 * primitives[i] + axis], cmin, scale) <= bin) {
+        i++;
+      } else {
+        int temp = primitives[i];
+        primitives[i] = primitives[j];
+        primitives[j] = temp;
+        j--;
+      }
+    }
+    return i;
+  }
+
+  private void makeLeaf(int node, int start, int count) {
+    nodeStart[node] = start;
+    nodeCount[node] = count;
+  }
+
+  private static int binOf(float centroid, float cmin, float scale) {
+    int b = (int) ((centroid - cmin) * scale);
+    return Math.max(0, Math.min(BINS - 1, b));
+  }
+
+  /**
+   * Find the closest intersection of the given ray with the primitives in
+   * this hierarchy, using the given scratch space for the traversal stack.
+   * Children are visited nearest first, and any node that starts beyond the
+   * closest hit found so far (the time in the hit record) is skipped.
+   */
+  void intersect(Ray ray, HitRecord hitRecord, PrimitiveIntersector intersector,
+                 Traversal traversal, TraceContext context) {
+    if (nodes == 0) {
+      return;
+    }
+
+    float ox = ray.start.x, oy = ray.start.y, oz = ray.start.z;
+    float invX = 1.0f / ray.direction.x;
+    float invY = 1.0f / ray.direction.y;
+    float invZ = 1.0f / ray.direction.z;
+
+    traversal.ensureDepth(depth);
+    int[] stack = traversal.nodes;
+    float[] entries = traversal.entries;
+    int top = 0;
+
+    int node = 0;
+    float entry = slab(0, ox, oy, oz, invX, invY, invZ, hitRecord.time);
+
+    while (true) {
+      if (entry < hitRecord.time) {
+        context.statistics.tests[RTStatistics.NODE]++;
+        if (nodeCount[node] > 0) {
+          int first = nodeStart[node];
+          for (int i = first; i < first + nodeCount[node]; i++) {
+            intersector.intersect(primitives[i], ray, hitRecord, context);
+          }
+        } else {
+          int left = nodeStart[node];
+          int right = nodeRight[node];
+          float leftEntry = slab(left, ox, oy, oz, invX, invY, invZ, hitRecord.time);
+          float rightEntry = slab(right, ox, oy, oz, invX, invY, invZ, hitRecord.time);
+
+          if (leftEntry > rightEntry) {
+            int tempNode = left;
+            left = right;
+            right = tempNode;
+            float tempEntry = leftEntry;
+            leftEntry = rightEntry;
+            rightEntry = tempEntry;
+          }
+
+          if (leftEntry < Float.POSITIVE_INFINITY) {
+            if (rightEntry < Float.POSITIVE_INFINITY) {
+              stack[top] = right;
+              entries[top] = rightEntry;
+              top++;
+            }
+            node = left;
+            entry = leftEntry;
+            continue;
+          }
+        }
+      }
+
+      if (top == 0) {
+        return;
+      }
+      top--;
+      node = stack[top];
+      entry = entries[top];
+    }
+  }
+
+  /**
+   * Determine whether the given ray hits any primitive in this hierarchy
+   * before the given time. The traversal stops at the first such hit, so
+   * the order in which children are visited does not matter.
+   */
+  boolean occluded(Ray ray, float maximumTime, PrimitiveIntersector intersector,
+                   Traversal traversal, TraceContext context) {
+    if (nodes == 0) {
+      return false;
+    }
+
+    float ox = ray.start.x, oy = ray.start.y, oz = ray.start.z;
+    float invX = 1.0f / ray.direction.x;
+    float invY = 1.0f / ray.direction.y;
+    float invZ = 1.0f / ray.direction.z;
+
+    traversal.ensureDepth(depth);
+    int[] stack = traversal.nodes;
+    int top = 0;
+    stack[top++] = 0;
+
+    while (top > 0) {
+      int node = stack[--top];
+      context.statistics.tests[RTStatistics.NODE]++;
+      if (slab(node, ox, oy, oz, invX, invY, invZ, maximumTime) == Float.POSITIVE_INFINITY) {
+        continue;
+      }
+      if (nodeCount[node] > 0) {
+        int first = nodeStart[node];
+        for (int i = first; i < first + nodeCount[node]; i++) {
+          if (intersector.occluded(primitives[i], ray, maximumTime, context)) {
+            return true;
+          }
+        }
+      } else {
+        stack[top++] = nodeRight[node];
+        stack[top++] = nodeStart[node];
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Find the closest intersection of each ray of the packet with the
+   * primitives in this hierarchy. The packet goes down a node if any of its
+   * rays hits the box of the node, and only the rays from the first to the
+   * last that hit it are looked at below it. The nearer child is visited
+   * first, as seen along the first ray that hits the node.
+   */
+  void intersect(RayPacket packet, PacketIntersector intersector, Traversal traversal,
+                 TraceContext context) {
+    traverse(packet, intersector, traversal, false, context);
+  }
+
+  /**
+   * Find the rays of the packet that hit any primitive in this hierarchy
+   * before their time, and give them a negative time. The traversal stops as
+   * soon as every ray is blocked.
+   */
+  void occluded(RayPacket packet, PacketIntersector intersector, Traversal traversal,
+                TraceContext context) {
+    traverse(packet, intersector, traversal, true, context);
+  }
+
+  private void traverse(RayPacket packet, PacketIntersector intersector, Traversal traversal,
+                        boolean occlusion, TraceContext context) {
+    if ((nodes == 0) || (packet.size == 0)) {
+      return;
+    }
+
+    traversal.ensureDepth(depth);
+    int[] stack = traversal.nodes;
+    int[] firsts = traversal.firsts;
+    int top = 0;
+    stack[top] = 0;
+    firsts[top] = 0;
+    top++;
+
+    float maximumTime = packet.maximumTime();
+    while (top > 0) {
+      top--;
+      int node = stack[top];
+      int first = firstHit(node, packet, firsts[top], maximumTime, context);
+      if (first == packet.size) {
+        continue;
+      }
+      if (nodeCount[node] > 0) {
+        int last = lastHit(node, packet, first, context);
+        int start = nodeStart[node];
+        for (int i = start; i < start + nodeCount[node]; i++) {
+          if (occlusion) {
+            intersector.occluded(primitives[i], packet, first, last, context);
+          } else {
+            intersector.intersect(primitives[i], packet, first, last, context);
+          }
+        }
+        maximumTime = packet.maximumTime();
+        if (maximumTime < 0) {
+          return;
+        }
+        continue;
+      }
+
+      //push the farther child first, so that the nearer one is taken next
+      int left = nodeStart[node];
+      int right = nodeRight[node];
+      int l = 6 * left, r = 6 * right;
+      float toRight = packet.directionX[first]
+              * (nodeBounds[r] + nodeBounds[r + 3] - nodeBounds[l] - nodeBounds[l + 3])
+              + packet.directionY[first]
+              * (nodeBounds[r + 1] + nodeBounds[r + 4] - nodeBounds[l + 1] - nodeBounds[l + 4])
+              + packet.directionZ[first]
+              * (nodeBounds[r + 2] + nodeBounds[r + 5] - nodeBounds[l + 2] - nodeBounds[l + 5]);
+      stack[top] = (toRight < 0) ? left : right;
+      firsts[top] = first;
+      top++;
+      stack[top] = (toRight < 0) ? right : left;
+      firsts[top] = first;
+      top++;
+    }
+  }
+
+  /**
+   * Find the first ray of the packet, from the given one on, that hits the
+   * box of the given node before its time, or the size of the packet if none
+   * does. The ranges of the packet are tried first: the times at which rays
+   * cross the planes of the box lie between the products of the ends of
+   * those ranges, and if the earliest that any ray can enter the box comes
+   * after the latest that any can leave it, every ray misses and none is
+   * looked at.
+   *
+   * @param maximumTime at least the longest time of any ray of the packet
+   */
+  private int firstHit(int node, RayPacket packet, int first, float maximumTime,
+                       TraceContext context) {
+    int b = 6 * node;
+    float near = 0;
+    float far = maximumTime;
+    if (packet.boundedX) {
+      near = Math.max(near, earliestCrossing(nodeBounds[b], nodeBounds[b + 3],
+              packet.minimumStartX, packet.maximumStartX,
+              packet.minimumInverseX, packet.maximumInverseX));
+      far = Math.min(far, latestCrossing(nodeBounds[b], nodeBounds[b + 3],
+              packet.minimumStartX, packet.maximumStartX,
+              packet.minimumInverseX, packet.maximumInverseX));
+    }
+    if (packet.boundedY) {
+      near = Math.max(near, earliestCrossing(nodeBounds[b + 1], nodeBounds[b + 4],
+              packet.minimumStartY, packet.maximumStartY,
+              packet.minimumInverseY, packet.maximumInverseY));
+      far = Math.min(far, latestCrossing(nodeBounds[b + 1], nodeBounds[b + 4],
+              packet.minimumStartY, packet.maximumStartY,
+              packet.minimumInverseY, packet.maximumInverseY));
+    }
+    if (packet.boundedZ) {
+      near = Math.max(near, earliestCrossing(nodeBounds[b + 2], nodeBounds[b + 5],
+              packet.minimumStartZ, packet.maximumStartZ,
+              packet.minimumInverseZ, packet.maximumInverseZ));
+      far = Math.min(far, latestCrossing(nodeBounds[b + 2], nodeBounds[b + 5],
+              packet.minimumStartZ, packet.maximumStartZ,
+              packet.minimumInverseZ, packet.maximumInverseZ));
+    }
+    context.statistics.tests[RTStatistics.NODE]++;
+    if (!(near <= far)) {
+      return packet.size;
+    }
+
+    int n = packet.size;
+    int r = first;
+    while ((r < n) && !hits(b, packet, r)) {
+      r++;
+    }
+    context.statistics.tests[RTStatistics.NODE] += r - first + ((r < n) ? 1 : 0);
+    return r;
+  }
+
+  /**
+   * Find the last ray of the packet that hits the box of the given node
+   * before its time, given that the first one does, and return the index
+   * after it
+   */
+  private int lastHit(int node, RayPacket packet, int first, TraceContext context) {
+    int b = 6 * node;
+    int r = packet.size - 1;
+    while ((r > first) && !hits(b, packet, r)) {
+      r--;
+    }
+    context.statistics.tests[RTStatistics.NODE] += packet.size - r;
+    return r + 1;
+  }
+
+  /**
+   * Whether a ray of the packet hits the box whose bounds start at the given
+   * offset before its time
+   */
+  private boolean hits(int b, RayPacket packet, int r) {
+    float ox = packet.startX[r], oy = packet.startY[r], oz = packet.startZ[r];
+    float invX = packet.inverseX[r], invY = packet.inverseY[r], invZ = packet.inverseZ[r];
+    float t1 = (nodeBounds[b] - ox) * invX;
+    float t2 = (nodeBounds[b + 3] - ox) * invX;
+    float tmin = Math.min(t1, t2);
+    float tmax = Math.max(t1, t2);
+
+    t1 = (nodeBounds[b + 1] - oy) * invY;
+    t2 = (nodeBounds[b + 4] - oy) * invY;
+    tmin = Math.max(tmin, Math.min(t1, t2));
+    tmax = Math.min(tmax, Math.max(t1, t2));
+
+    t1 = (nodeBounds[b + 2] - oz) * invZ;
+    t2 = (nodeBounds[b + 5] - oz) * invZ;
+    tmin = Math.max(tmin, Math.min(t1, t2));
+    tmax = Math.min(tmax, Math.max(t1, t2));
+
+    return Math.max(tmin, 0) <= Math.min(tmax, packet.time[r]);
+  }
+
+  /**
+   * The earliest time at which any ray with a start in [s0,s1] and an
+   * inverse direction in [i0,i1] along an axis enters the slab between the
+   * planes at min and max along it, and the latest time at which any leaves
+   * it. Both are bounded by the products of the ends of the ranges, and
+   * rounding never takes the time of a single ray past them.
+   */
+  private static float earliestCrossing(float min, float max, float s0, float s1,
+                                        float i0, float i1) {
+    return Math.min(lowerProduct(min - s1, min - s0, i0, i1),
+            lowerProduct(max - s1, max - s0, i0, i1));
+  }
+
+  private static float latestCrossing(float min, float max, float s0, float s1,
+                                      float i0, float i1) {
+    return Math.max(upperProduct(min - s1, min - s0, i0, i1),
+            upperProduct(max - s1, max - s0, i0, i1));
+  }
+
+  private static float lowerProduct(float a0, float a1, float b0, float b1) {
+    return Math.min(Math.min(a0 * b0, a0 * b1), Math.min(a1 * b0, a1 * b1));
+  }
+
+  private static float upperProduct(float a0, float a1, float b0, float b1) {
+    return Math.max(Math.max(a0 * b0, a0 * b1), Math.max(a1 * b0, a1 * b1));
+  }
+
+  /**
+   * Intersect the ray with the box of the given node, returning the time at
+   * which the ray enters it or infinity if it misses the box (or enters it
+   * only after maximum time)
+   */
+  private float slab(int node, float ox, float oy, float oz,
+                     float invX, float invY, float invZ, float maximumTime) {
+    int b = 6 * node;
+    float t1 = (nodeBounds[b] - ox) * invX;
+    float t2 = (nodeBounds[b + 3] - ox) * invX;
+    float tmin = Math.min(t1, t2);
+    float tmax = Math.max(t1, t2);
+
+    t1 = (nodeBounds[b + 1] - oy) * invY;
+    t2 = (nodeBounds[b + 4] - oy) * invY;
+    tmin = Math.max(tmin, Math.min(t1, t2));
+    tmax = Math.min(tmax, Math.max(t1, t2));
+
+    t1 = (nodeBounds[b + 2] - oz) * invZ;
+    t2 = (nodeBounds[b + 5] - oz) * invZ;
+    tmin = Math.max(tmin, Math.min(t1, t2));
+    tmax = Math.min(tmax, Math.max(t1, t2));
+
+    tmin = Math.max(tmin, 0);
+    tmax = Math.min(tmax, maximumTime);
+
+    //NaN (a zero direction on the plane of a face) fails this test too
+    if (tmin <= tmax) {
+      return tmin;
+    }
+    return Float.POSITIVE_INFINITY;
+  }
+
+  private static void emptyBox(float[] box) {
+    emptyBox(box, 0);
+  }
+
+  private static void emptyBox(float[] box, int offset) {
+    for (int k = 0; k < 3; k++) {
+      box[offset + k] = Float.POSITIVE_INFINITY;
+      box[offset + 3 + k] = Float.NEGATIVE_INFINITY;
+    }
+  }
+
+  private static void growBox(float[] box, float[] source, int minOffset, int maxOffset) {
+    growBox(box, 0, source, minOffset, maxOffset);
+  }
+
+  private static void growBox(float[] box, int offset, float[] source, int minOffset, int maxOffset) {
+    for (int k = 0; k < 3; k++) {
+      box[offset + k] = Math.min(box[offset + k], source[minOffset + k]);
+      box[offset + 3 + k] = Math.max(box[offset + 3 + k], source[maxOffset + k]);
+    }
+  }
+
+  private static float area(float[] box) {
+    float dx = box[3] - box[0];
+    float dy = box[4] - box[1];
+    float dz = box[5] - box[2];
+    if (dx < 0 || dy < 0 || dz < 0) {
+      return 0;
+    }
+    return 2 * (dx * dy + dy * dz + dz * dx);
+  }
+}
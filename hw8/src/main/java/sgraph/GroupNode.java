@@ -89,6 +89,29 @@ public class GroupNode extends AbstractNode {
     }
   }
 
+  @Override
+  public void flatten(Stack<Matrix4f> modelView, RTScene scene) {
+    if (scene.addInstance(this, modelView.peek())) {
+      return;
+    }
+    for (int i = 0; i < children.size(); i++) {
+      children.get(i).flatten(modelView, scene);
+    }
+  }
+
+  @Override
+  public int getSubgraphKey(InstanceTable table) {
+    Object[] contents = new Object[children.size() + 1];
+    int leaves = 0;
+    contents[0] = "group";
+    for (int i = 0; i < children.size(); i++) {
+      int key = children.get(i).getSubgraphKey(table);
+      contents[i + 1] = key;
+      leaves += table.getLeafCount(key);
+    }
+    return table.key(this, leaves, contents);
+  }
+
   /**
    * Makes a deep copy of the subtree rooted at this node
    *
@@ -9,19 +9,60 @@ import org.joml.Vector4f;
 public class HitRecord {
     public float time;
     public Vector4f point,normal;
+    /**
+     * The material of the closest leaf hit so far. This is the leaf's own
+     * material, not a copy, so it must not be modified
+     */
     public util.Material material;
+    /**
+     * The leaf that was hit, so that hits on different objects can be told
+     * apart
+     */
+    public LeafNode leaf;
+    /**
+     * The leaf or instance of the compiled scene that was hit, by its index
+     * at the top level of the scene, or -1 if nothing was hit
+     */
+    public int primitive;
     public String textureName;
+    /**
+     * The texture of the leaf that was hit, as resolved when the scene was
+     * compiled for ray tracing, or -1 if it has none
+     */
+    public int texture;
+    /**
+     * How far the texture coordinates move per unit of distance in the view
+     * at the hit point, on average
+     */
+    public float textureDensity;
     public Vector2f texcoord;
 
     public HitRecord() {
         time = Float.POSITIVE_INFINITY;
         point = new Vector4f(0,0,0,1);
         normal = new Vector4f(0,0,1,0);
-        material = new util.Material();
+        material = null;
+        leaf = null;
+        primitive = -1;
         textureName = "white";
+        texture = -1;
+        textureDensity = 0;
         texcoord = new Vector2f(0,0);
     }
 
+    /**
+     * Clear this record so that it can be reused for another ray. The point,
+     * normal and texture coordinate objects are kept and overwritten by the
+     * next hit
+     */
+    public void reset() {
+        time = Float.POSITIVE_INFINITY;
+        leaf = null;
+        primitive = -1;
+        textureName = "white";
+        texture = -1;
+    }
+
     public boolean intersected()
     {
         return time < Float.POSITIVE_INFINITY;
@@ -46,6 +46,27 @@ public interface INode {
    */
   void intersect(Ray ray, Stack<Matrix4f> modelView, HitRecord hitRecord);
 
+  /**
+   * Flatten the scene graph rooted at this node for ray tracing, by recording
+   * every leaf along with its leaf-to-view transformation in the supplied
+   * scene
+   *
+   * @param modelView the stack of modelview matrices
+   * @param scene     the flattened scene to which leaves are added
+   */
+  void flatten(Stack<Matrix4f> modelView, RTScene scene);
+
+  /**
+   * Get the key of the subgraph rooted at this node from the supplied table,
+   * after getting the keys of its children. Subgraphs with the same key look
+   * the same in their own coordinate system, so the ray tracer can share a
+   * hierarchy between them.
+   *
+   * @param table the table that assigns keys
+   * @return the key of the subgraph rooted at this node
+   */
+  int getSubgraphKey(InstanceTable table);
+
   /**
    * Return a deep copy of the scene graph subtree rooted at this node
    *
@@ -0,0 +1,194 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import util.Material;
+
+/**
+ * Finds the subgraphs of a scene graph that are copies of each other, so that
+ * the ray tracer can build one bottom-level hierarchy for each of them and
+ * place it in the scene once per copy. Scene files create such copies through
+ * <code>copyof</code> and <code>from</code>, and these are deep copies, so
+ * they cannot be found by comparing nodes.
+ *
+ * Instead, every subgraph is given a key from its contents: the keys of its
+ * children, the transformations below its root, and the object, material and
+ * texture of its leaves. Subgraphs with the same key have the same geometry
+ * in the coordinate system below their root, so copies that are moved
+ * differently, or animated, still share a hierarchy. Keys are kept from one render to the next as long as
+ * they are still in use, and so are the hierarchies built for them, so that
+ * only the top level is rebuilt when the scene graph is animated above its
+ * copies.
+ */
+class InstanceTable {
+  /**
+   * The smallest number of leaves in a subgraph that is worth tracing through
+   * a hierarchy of its own. Single leaves are already shared through their
+   * meshes.
+   */
+  private static final int MINIMUM_INSTANCE_LEAVES = 2;
+
+  private static class Entry {
+    final int key;
+    final int leaves;
+    int count;
+    int generation;
+    RTScene bottom;
+
+    Entry(int key, int leaves) {
+      this.key = key;
+      this.leaves = leaves;
+    }
+  }
+
+  private final Map<List<Object>, Entry> entries;
+  private final Map<Integer, Entry> keys;
+  private final Map<INode, Entry> nodes;
+  private final Map<String, TriangleMesh> meshes;
+  private final Map<String, Integer> textures;
+  private int nextKey;
+  private int generation;
+
+  /**
+   * @param meshes the triangles of each mesh, by the name of its object
+   *               instance, which bottom-level hierarchies are built with
+   * @param textures the index of each texture, by its name
+   */
+  InstanceTable(Map<String, TriangleMesh> meshes, Map<String, Integer> textures) {
+    this.meshes = meshes;
+    this.textures = textures;
+    entries = new HashMap<List<Object>, Entry>();
+    keys = new HashMap<Integer, Entry>();
+    nodes = new IdentityHashMap<INode, Entry>();
+    nextKey = 0;
+    generation = 0;
+  }
+
+  /**
+   * Assign keys to every subgraph of the scene graph rooted at the given node,
+   * and forget the keys and hierarchies of subgraphs no longer in it
+   */
+  void update(INode root) {
+    generation++;
+    nodes.clear();
+    for (Entry entry : entries.values()) {
+      entry.count = 0;
+    }
+
+    root.getSubgraphKey(this);
+
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.generation != generation) {
+        keys.remove(entry.key);
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Get the key of a subgraph with the given contents, and remember that the
+   * given node is the root of such a subgraph. This is called by {@link
+   * INode#getSubgraphKey(InstanceTable)}.
+   *
+   * @param node     the root of the subgraph, or null if the key is only
+   *                 used by the parent of a node
+   * @param leaves   the number of leaves in the subgraph
+   * @param contents the keys of the children of the node, and whatever else
+   *                 about the node decides what it looks like
+   * @return the key of the subgraph
+   */
+  int key(INode node, int leaves, Object... contents) {
+    List<Object> contentList = Arrays.asList(contents);
+    Entry entry = entries.get(contentList);
+    if (entry == null) {
+      entry = new Entry(nextKey++, leaves);
+      entries.put(contentList, entry);
+      keys.put(entry.key, entry);
+    }
+    entry.count++;
+    entry.generation = generation;
+    if (node != null) {
+      nodes.put(node, entry);
+    }
+    return entry.key;
+  }
+
+  /**
+   * Get the number of leaves in the subgraph with the given key
+   */
+  int getLeafCount(int key) {
+    Entry entry = keys.get(key);
+    return (entry != null) ? entry.leaves : 0;
+  }
+
+  /**
+   * The contents of a leaf that decide what it looks like. The material is
+   * copied into its values, since materials are compared by reference.
+   */
+  Object[] leafContents(String instanceName, String textureName, Material material) {
+    List<Object> contents = new ArrayList<Object>();
+    contents.add("leaf");
+    contents.add(instanceName);
+    contents.add(meshes.get(instanceName));
+    contents.add(textureName);
+    if (material != null) {
+      for (Vector4f v : new Vector4f[]{material.getAmbient(), material.getDiffuse(),
+              material.getSpecular(), material.getEmission()}) {
+        contents.add(new Vector4f(v));
+      }
+      contents.add(material.getShininess());
+      contents.add(material.getAbsorption());
+      contents.add(material.getReflection());
+      contents.add(material.getTransparency());
+      contents.add(material.getRefractiveIndex());
+    }
+    return contents.toArray();
+  }
+
+  /**
+   * Get the bottom-level hierarchy of the subgraph rooted at the given node,
+   * or null if it is not copied elsewhere in the scene graph and so should
+   * be flattened into the top level. Hierarchies are built the first time
+   * they are asked for, in the coordinate system below the transformations
+   * of the node, which place each copy.
+   */
+  RTScene getBottomLevel(INode node) {
+    Entry entry = nodes.get(node);
+    if ((entry == null) || (entry.count < 2) || (entry.leaves < MINIMUM_INSTANCE_LEAVES)) {
+      return null;
+    }
+    if (entry.bottom == null) {
+      Stack<Matrix4f> identity = new Stack<Matrix4f>();
+      identity.push(new Matrix4f());
+      INode contents = (node instanceof TransformNode) ? ((TransformNode) node).child : node;
+      entry.bottom = new RTScene(contents, identity, meshes, textures, null);
+    }
+    return entry.bottom;
+  }
+
+  /**
+   * Get the number of bottom-level hierarchies that have been built and are
+   * still in use
+   */
+  int getBottomLevelCount() {
+    int count = 0;
+    for (Entry entry : entries.values()) {
+      if (entry.bottom != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
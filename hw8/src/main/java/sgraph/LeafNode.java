@@ -1,8 +1,6 @@
 package sgraph;
 
 import org.joml.Matrix4f;
-import org.joml.Vector2f;
-import org.joml.Vector3f;
 import org.joml.Vector4f;
 
 import java.util.Stack;
@@ -30,9 +28,51 @@ public class LeafNode extends AbstractNode {
 
   protected String textureName;
 
+  /**
+   * The kind of geometry the ray tracer intersects this leaf with, decided
+   * once from the name of the object instance
+   */
+  private final int shape;
+
+  private static final int NONE = 0;
+  private static final int SPHERE = 1;
+  private static final int BOX = 2;
+  private static final int MESH = 3;
+
+  /**
+   * How far, relative to its scale, the leaf-to-view transformation of a
+   * sphere may be from a rotation with an even scale, and that of a box from
+   * a scale along each axis, for them to be tested in view coordinates
+   */
+  private static final float SIMILARITY_TOLERANCE = 1e-5f;
+
   public LeafNode(String instanceOf, IScenegraph graph, String name) {
     super(graph, name);
     this.objInstanceName = instanceOf;
+    if (instanceOf.equals("sphere")) {
+      shape = SPHERE;
+    } else if (instanceOf.equals("box")) {
+      shape = BOX;
+    } else if (instanceOf.length() > 0) {
+      shape = MESH;
+    } else {
+      shape = NONE;
+    }
+  }
+
+  /**
+   * Get the name of the object instance that this leaf contains
+   */
+  public String getInstanceName() {
+    return objInstanceName;
+  }
+
+  /**
+   * Whether the ray tracer intersects this leaf with the triangles of its
+   * mesh, rather than with an exact sphere or box
+   */
+  public boolean isMesh() {
+    return shape == MESH;
   }
 
 
@@ -52,6 +92,13 @@ public class LeafNode extends AbstractNode {
     textureName = name;
   }
 
+  /**
+   * Get the name of the texture of this leaf, or null if it has none
+   */
+  public String getTextureName() {
+    return textureName;
+  }
+
   /*
    * gets the material
    */
@@ -94,227 +141,733 @@ public class LeafNode extends AbstractNode {
   public void intersect(Ray rayView,
                         Stack<Matrix4f> modelView,
                         HitRecord hitRecord) {
-    Ray rayObject = new Ray();
-    Matrix4f leafToView = new Matrix4f(modelView.peek());
-    Matrix4f viewToLeaf = new Matrix4f(leafToView).invert();
-    rayObject.start = new Vector4f(rayView.start);
-    rayObject.direction = new Vector4f(rayView.direction);
-
-    rayObject.start = viewToLeaf.transform(rayObject.start);
-    rayObject.direction = viewToLeaf.transform(rayObject.direction);
-
-
-    if (objInstanceName.equals("sphere")) {
-      float a, b, c;
-
-      a = rayObject.direction.lengthSquared();
-      b = 2 * rayObject.start.dot(rayObject.direction);
-      c = rayObject.start.lengthSquared() - 1 - 1;
-
-      if ((b * b - 4 * a * c) >= 0) {
-        float t1 = (-b + (float) Math.sqrt(b * b - 4 * a * c)) / (2 * a);
-        float t2 = (-b - (float) Math.sqrt(b * b - 4 * a * c)) / (2 * a);
-
-        float t;
-        if (t1 >= 0) {
-          if (t2 >= 0) {
-            t = Math.min(t1, t2);
-          } else {
-            t = t1;
-          }
-        } else {
-          if (t2 >= 0)
-            t = t2;
-          else
-            return;
-        }
+    intersect(rayView, modelView.peek(), hitRecord);
+  }
+
+  @Override
+  public void flatten(Stack<Matrix4f> modelView, RTScene scene) {
+    scene.addLeaf(this, modelView.peek());
+  }
 
-        if (t<hitRecord.time)
-        {
-          hitRecord.time = t;
-          hitRecord.point = new Vector4f(rayView.start.x+t*rayView.direction.x,
-                  rayView.start.y+t*rayView.direction.y,
-                  rayView.start.z+t*rayView.direction.z,
-                  1);
-          hitRecord.normal = new Vector4f(rayObject.start.x+t*rayObject.direction.x,
-                  rayObject.start.y+t*rayObject.direction.y,
-                  rayObject.start.z+t*rayObject.direction.z,
-                  0);
-
-          hitRecord.texcoord = new Vector2f((float)((Math.PI+(float)Math.atan2(-hitRecord.normal.z,hitRecord.normal.x))/(2*Math.PI)),
-                  (float)((Math.PI/2+(float)Math.asin(hitRecord.normal.y))/Math.PI));
-          hitRecord.texcoord.x = (hitRecord.texcoord.x+0.5f)%1;
-
-          hitRecord.textureName = this.textureName;
-          hitRecord.normal = new Matrix4f(viewToLeaf).transpose().transform(hitRecord.normal);
-          hitRecord.normal = new Vector4f(new Vector3f(hitRecord
-                  .normal
-                  .x,hitRecord.normal.y,hitRecord.normal.z)
-                  .normalize(),0.0f);
-          hitRecord.material = new Material(this.material);
+  @Override
+  public int getSubgraphKey(InstanceTable table) {
+    return table.key(this, 1, table.leafContents(objInstanceName, textureName, material));
+  }
 
-        }
+  /**
+   * Get the minimum corner of the bounding box of this leaf's geometry in its
+   * own coordinate system, or null if the ray tracer cannot intersect it or
+   * it is a mesh, whose bounds only the mesh knows
+   */
+  public Vector4f getMinimumBounds() {
+    if (shape == SPHERE) {
+      return new Vector4f(-1, -1, -1, 1);
+    } else if (shape == BOX) {
+      return new Vector4f(-0.5f, -0.5f, -0.5f, 1);
+    }
+    return null;
+  }
+
+  /**
+   * Get the maximum corner of the bounding box of this leaf's geometry in its
+   * own coordinate system, or null if the ray tracer cannot intersect it or
+   * it is a mesh
+   */
+  public Vector4f getMaximumBounds() {
+    if (shape == SPHERE) {
+      return new Vector4f(1, 1, 1, 1);
+    } else if (shape == BOX) {
+      return new Vector4f(0.5f, 0.5f, 0.5f, 1);
+    }
+    return null;
+  }
 
+  /**
+   * Get how far the texture coordinates move per unit of distance on the
+   * surface of this leaf, in its own coordinate system. The sphere stretches
+   * the whole texture over its area of 4 pi, and each face of the box takes a
+   * quarter of the texture along each side. Meshes know their own.
+   */
+  float getTextureDensity() {
+    if (shape == SPHERE) {
+      return (float) (1 / Math.sqrt(4 * Math.PI));
+    } else if (shape == BOX) {
+      return 0.25f;
+    }
+    return 0;
+  }
+
+  /**
+   * Intersect the given ray in view coordinates with this leaf, given the
+   * transformation from this leaf's coordinate system to the view. Meshes
+   * are only intersected through a compiled {@link RTScene}, which knows
+   * their triangles.
+   */
+  void intersect(Ray rayView,
+                 Matrix4f leafToView,
+                 HitRecord hitRecord) {
+    float[] viewToLeaf = new Matrix4f(leafToView).invert().get(new float[16]);
+    float[] normalMatrix = new float[9];
+    getNormalMatrix(viewToLeaf, 0, normalMatrix, 0);
+    intersect(rayView, viewToLeaf, 0, normalMatrix, 0, null, null, 0, hitRecord,
+            TraceContext.forThread());
+  }
+
+  /**
+   * Extract the matrix that transforms normals from this leaf's coordinate
+   * system to the view, given the view-to-leaf matrix. This is the upper 3x3
+   * part of the transpose of the view-to-leaf matrix, stored row by row.
+   *
+   * @param viewToLeaf   the column-major view-to-leaf matrix
+   * @param offset       where the matrix starts in its array
+   * @param normalMatrix the array to write the 3x3 normal matrix to
+   * @param normalOffset where the normal matrix starts in its array
+   */
+  static void getNormalMatrix(float[] viewToLeaf, int offset,
+                              float[] normalMatrix, int normalOffset) {
+    for (int r = 0; r < 3; r++) {
+      for (int c = 0; c < 3; c++) {
+        normalMatrix[normalOffset + 3 * r + c] = viewToLeaf[offset + 4 * r + c];
       }
-    } else if (objInstanceName.equals("box")) {
-      float tmaxX, tmaxY, tmaxZ;
-      float tminX, tminY, tminZ;
+    }
+  }
+
+  /**
+   * Get the factor that converts distances along a surface in the view to
+   * distances along it in the coordinate system of a leaf. An area on a
+   * surface with unit normal n is scaled by det(M)|N n| when it is
+   * transformed by M, where N is the normal matrix, whose determinant is
+   * 1/det(M).
+   *
+   * @param normalMatrix the row-major 3x3 normal matrices of the leaves
+   * @param offset       where the normal matrix starts
+   * @param invLength    1/|N n| for the normal at the surface
+   */
+  static float surfaceScale(float[] normalMatrix, int offset, float invLength) {
+    float[] n = normalMatrix;
+    int o = offset;
+    float determinant = n[o] * (n[o + 4] * n[o + 8] - n[o + 5] * n[o + 7])
+            - n[o + 1] * (n[o + 3] * n[o + 8] - n[o + 5] * n[o + 6])
+            + n[o + 2] * (n[o + 3] * n[o + 7] - n[o + 4] * n[o + 6]);
+    return (float) Math.sqrt(Math.abs(determinant) * invLength);
+  }
 
-      if (Math.abs(rayObject.direction.x) < 0.0001f) {
-        if ((rayObject.start.x > 0.5f) || (rayObject.start.x < -0.5f))
+  /**
+   * Intersect the given ray in view coordinates with this leaf, given
+   * precomputed transformations. Nothing is inverted here, so this is what
+   * the ray tracer calls on its compiled scene.
+   *
+   * @param rayView      the ray in view coordinates
+   * @param viewToLeaf   the column-major view-to-leaf matrices of the leaves
+   * @param offset       where this leaf's view-to-leaf matrix starts
+   * @param normalMatrix the row-major 3x3 normal matrices of the leaves
+   * @param normalOffset where this leaf's normal matrix starts
+   * @param mesh         the triangles of this leaf if it is a mesh, or null
+   * @param viewShapes   the shapes of the leaves in view coordinates, as
+   *                     {@link #getViewShape} finds them, or null
+   * @param shapeOffset  where this leaf's shape starts
+   * @param hitRecord    the hit record to update if this leaf is closer
+   * @param context      the scratch state of the worker tracing the ray
+   */
+  void intersect(Ray rayView,
+                 float[] viewToLeaf, int offset,
+                 float[] normalMatrix, int normalOffset,
+                 TriangleMesh mesh,
+                 float[] viewShapes, int shapeOffset,
+                 HitRecord hitRecord,
+                 TraceContext context) {
+    if ((shape == NONE) || ((shape == MESH) && (mesh == null))) {
+      return;
+    }
+
+    float[] m = viewToLeaf;
+    int o = offset;
+    float sx = rayView.start.x, sy = rayView.start.y;
+    float sz = rayView.start.z, sw = rayView.start.w;
+    float dx = rayView.direction.x, dy = rayView.direction.y;
+    float dz = rayView.direction.z, dw = rayView.direction.w;
+
+    float t;
+    //the hit point in the coordinate system of this leaf
+    float hx = 0, hy = 0, hz = 0;
+
+    if ((viewShapes != null) && !Float.isNaN(viewShapes[shapeOffset])) {
+      //a sphere or box that is known in view coordinates is tested there, and
+      //only the point it is hit at is moved into this leaf's coordinate system
+      t = viewTime(rayView, viewShapes, shapeOffset, context);
+      if (t >= hitRecord.time) {
+        return;
+      }
+      float px = sx + t * dx, py = sy + t * dy, pz = sz + t * dz;
+      hx = m[o] * px + m[o + 4] * py + m[o + 8] * pz + m[o + 12];
+      hy = m[o + 1] * px + m[o + 5] * py + m[o + 9] * pz + m[o + 13];
+      hz = m[o + 2] * px + m[o + 6] * py + m[o + 10] * pz + m[o + 14];
+    } else {
+      //the ray in the coordinate system of this leaf
+      float ox = m[o] * sx + m[o + 4] * sy + m[o + 8] * sz + m[o + 12] * sw;
+      float oy = m[o + 1] * sx + m[o + 5] * sy + m[o + 9] * sz + m[o + 13] * sw;
+      float oz = m[o + 2] * sx + m[o + 6] * sy + m[o + 10] * sz + m[o + 14] * sw;
+      float ow = m[o + 3] * sx + m[o + 7] * sy + m[o + 11] * sz + m[o + 15] * sw;
+      float ux = m[o] * dx + m[o + 4] * dy + m[o + 8] * dz + m[o + 12] * dw;
+      float uy = m[o + 1] * dx + m[o + 5] * dy + m[o + 9] * dz + m[o + 13] * dw;
+      float uz = m[o + 2] * dx + m[o + 6] * dy + m[o + 10] * dz + m[o + 14] * dw;
+      float uw = m[o + 3] * dx + m[o + 7] * dy + m[o + 11] * dz + m[o + 15] * dw;
+
+      if (shape == MESH) {
+        //the transformation is affine, so times along the ray are the same in
+        //both coordinate systems
+        context.statistics.tests[RTStatistics.MESH]++;
+        context.leafRay.set(ox, oy, oz, ux, uy, uz);
+        if (!mesh.intersect(context.leafRay, hitRecord, context)) {
           return;
-        else {
-          tminX = Float.NEGATIVE_INFINITY;
-          tmaxX = Float.POSITIVE_INFINITY;
         }
+        t = hitRecord.time;
       } else {
-        float t1 = (-0.5f - rayObject.start.x) / rayObject.direction.x;
-        float t2 = (0.5f - rayObject.start.x) / rayObject.direction.x;
-        tminX = Math.min(t1, t2);
-        tmaxX = Math.max(t1, t2);
-      }
-
-      if (Math.abs(rayObject.direction.y) < 0.0001f) {
-        if ((rayObject.start.y > 0.5f) || (rayObject.start.y < -0.5f)) {
-          return;
+        if (shape == SPHERE) {
+          context.statistics.tests[RTStatistics.SPHERE]++;
+          t = sphereTime(ox, oy, oz, ow, ux, uy, uz, uw);
         } else {
-          tminY = Float.NEGATIVE_INFINITY;
-          tmaxY = Float.POSITIVE_INFINITY;
+          context.statistics.tests[RTStatistics.BOX]++;
+          t = boxTime(ox, oy, oz, ux, uy, uz);
         }
-      } else {
-        float t1 = (-0.5f - rayObject.start.y) / rayObject.direction.y;
-        float t2 = (0.5f - rayObject.start.y) / rayObject.direction.y;
-        tminY = Math.min(t1, t2);
-        tmaxY = Math.max(t1, t2);
-      }
 
-      if (Math.abs(rayObject.direction.z) < 0.0001f) {
-        if ((rayObject.start.z > 0.5f) || (rayObject.start.z < -0.5f)) {
+        //a miss is at infinity, so this also returns on a miss
+        if (t >= hitRecord.time) {
           return;
-        } else {
-          tminZ = Float.NEGATIVE_INFINITY;
-          tmaxZ = Float.POSITIVE_INFINITY;
         }
-      } else {
-        float t1 = (-0.5f - rayObject.start.z) / rayObject.direction.z;
-        float t2 = (0.5f - rayObject.start.z) / rayObject.direction.z;
-        tminZ = Math.min(t1, t2);
-        tmaxZ = Math.max(t1, t2);
+        hx = ox + t * ux;
+        hy = oy + t * uy;
+        hz = oz + t * uz;
       }
+    }
 
-      float tmin, tmax;
-
-      tmin = Math.max(tminX, Math.max(tminY, tminZ));
-      tmax = Math.min(tmaxX, Math.min(tmaxY, tmaxZ));
-
-      if ((tmin < tmax) && (tmax > 0)) {
-        float t;
-        if (tmin > 0)
-          t = tmin;
-        else
-          t = tmax;
-
-        if (t < hitRecord.time) {
-          hitRecord.time = t;
-
-          hitRecord.point = new Vector4f(
-                  rayView.start.x + t * rayView.direction.x,
-                  rayView.start.y + t * rayView.direction.y,
-                  rayView.start.z + t * rayView.direction.z,
-                  1);
-
-          Vector4f pointInLeaf = new Vector4f(
-                  rayObject.start.x + t * rayObject.direction.x,
-                  rayObject.start.y + t * rayObject.direction.y,
-                  rayObject.start.z + t * rayObject.direction.z,
-                  1);
-
-          if (Math.abs(pointInLeaf.x - 0.5f) < 0.001) { //right
-            hitRecord.normal.x = 1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.z,
-                            pointInLeaf.y),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.5f, 0.25f), new Vector2f(0.75f, 0.5f));
-
-          } else if (Math.abs(pointInLeaf.x + 0.5f) < 0.001) //left
-          {
-            hitRecord.normal.x = -1;
-
-
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.z,
-                            pointInLeaf.y),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.25f, 0.25f), new Vector2f(0, 0.5f));
-
-          } else
-            hitRecord.normal.x = 0;
-
-          if (Math.abs(pointInLeaf.y - 0.5f) < 0.001) //top
-          {
-            hitRecord.normal.y = 1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.x,
-                            pointInLeaf.z),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.25f, 0.5f), new Vector2f(0.5f, 0.75f));
-          } else if (Math.abs(pointInLeaf.y + 0.5f) < 0.001) //bottom
-          {
-            hitRecord.normal.y = -1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.z,
-                            pointInLeaf.z),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.25f, 0.25f), new Vector2f(0.5f, 0.0f));
-          } else
-            hitRecord.normal.y = 0;
-
-          if (Math.abs(pointInLeaf.z - 0.5f) < 0.001) //front
-          {
-            hitRecord.normal.z = 1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.x,
-                            pointInLeaf.y),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(1.0f, 0.25f), new Vector2f(0.75f, 0.5f));
-          } else if (Math.abs(pointInLeaf.z + 0.5f) < 0.001) //rear
-          {
-            hitRecord.normal.z = -1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.x,
-                            pointInLeaf.y),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.25f, 0.25f), new Vector2f(0.5f, 0.5f));
-          } else
-            hitRecord.normal.z = 0;
-
-          hitRecord.normal.w = 0;
-          hitRecord.normal.normalize();
-
-
-          hitRecord.normal = new Matrix4f(viewToLeaf).transpose()
-                                                     .transform(hitRecord.normal);
-          hitRecord.normal = new Vector4f(new Vector3f(hitRecord
-                  .normal
-                  .x, hitRecord.normal.y, hitRecord.normal.z)
-                  .normalize(), 0.0f);
-
-          hitRecord.material = new Material(this.material);
-          hitRecord.textureName = this.textureName;
-        }
+    record(t, hx, hy, hz, rayView, normalMatrix, normalOffset, mesh, hitRecord);
+  }
+
+  /**
+   * Fill the hit record with a hit on this leaf at the given time and at the
+   * given point in this leaf's coordinate system. Meshes have already left
+   * their own normal and texture coordinates in the record, and do not need
+   * the point.
+   */
+  private void record(float t, float hx, float hy, float hz, Ray rayView,
+                      float[] normalMatrix, int normalOffset, TriangleMesh mesh,
+                      HitRecord hitRecord) {
+    float nx, ny, nz;
+    float u, v;
+
+    if (shape == SPHERE) {
+      nx = hx;
+      ny = hy;
+      nz = hz;
+
+      u = (float)((Math.PI+(float)Math.atan2(-nz,nx))/(2*Math.PI));
+      v = (float)((Math.PI/2+(float)Math.asin(ny))/Math.PI);
+      u = (u+0.5f)%1;
+    } else if (shape == BOX) {
+      float px = hx;
+      float py = hy;
+      float pz = hz;
+
+      u = hitRecord.texcoord.x;
+      v = hitRecord.texcoord.y;
+
+      if (Math.abs(px - 0.5f) < 0.001) { //right
+        nx = 1;
+        u = windowTransform(pz, 0.5f, 0.75f);
+        v = windowTransform(py, 0.25f, 0.5f);
+      } else if (Math.abs(px + 0.5f) < 0.001) //left
+      {
+        nx = -1;
+        u = windowTransform(pz, 0.25f, 0);
+        v = windowTransform(py, 0.25f, 0.5f);
+      } else
+        nx = 0;
+
+      if (Math.abs(py - 0.5f) < 0.001) //top
+      {
+        ny = 1;
+        u = windowTransform(px, 0.25f, 0.5f);
+        v = windowTransform(pz, 0.5f, 0.75f);
+      } else if (Math.abs(py + 0.5f) < 0.001) //bottom
+      {
+        ny = -1;
+        u = windowTransform(pz, 0.25f, 0.5f);
+        v = windowTransform(pz, 0.25f, 0.0f);
+      } else
+        ny = 0;
+
+      if (Math.abs(pz - 0.5f) < 0.001) //front
+      {
+        nz = 1;
+        u = windowTransform(px, 1.0f, 0.75f);
+        v = windowTransform(py, 0.25f, 0.5f);
+      } else if (Math.abs(pz + 0.5f) < 0.001) //rear
+      {
+        nz = -1;
+        u = windowTransform(px, 0.25f, 0.5f);
+        v = windowTransform(py, 0.25f, 0.5f);
+      } else
+        nz = 0;
+
+      float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+      if (length > 0) {
+        nx /= length;
+        ny /= length;
+        nz /= length;
+      }
+    } else {
+      //the mesh has left its own normal and texture coordinates here
+      nx = hitRecord.normal.x;
+      ny = hitRecord.normal.y;
+      nz = hitRecord.normal.z;
+      u = hitRecord.texcoord.x;
+      v = hitRecord.texcoord.y;
+    }
+
+    hitRecord.time = t;
+    hitRecord.point.set(rayView.start.x+t*rayView.direction.x,
+            rayView.start.y+t*rayView.direction.y,
+            rayView.start.z+t*rayView.direction.z,
+            1);
+
+    //transform the normal to the view and normalize it
+    float[] n = normalMatrix;
+    int no = normalOffset;
+    float vx = n[no] * nx + n[no + 1] * ny + n[no + 2] * nz;
+    float vy = n[no + 3] * nx + n[no + 4] * ny + n[no + 5] * nz;
+    float vz = n[no + 6] * nx + n[no + 7] * ny + n[no + 8] * nz;
+    float invLength = 1.0f / (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+    hitRecord.normal.set(vx * invLength, vy * invLength, vz * invLength, 0.0f);
+
+    float density = (mesh != null) ? mesh.getTextureDensity() : getTextureDensity();
+    hitRecord.textureDensity = density * surfaceScale(n, no, invLength);
+    hitRecord.texcoord.set(u, v);
+    hitRecord.textureName = this.textureName;
+    hitRecord.material = this.material;
+    hitRecord.leaf = this;
+  }
+
+  /**
+   * Determine whether the given ray in view coordinates hits this leaf
+   * before the given time. This only finds out whether there is a hit, so it
+   * computes nothing else about it.
+   *
+   * @param rayView     the ray in view coordinates
+   * @param viewToLeaf  the column-major view-to-leaf matrices of the leaves
+   * @param offset      where this leaf's view-to-leaf matrix starts
+   * @param mesh        the triangles of this leaf if it is a mesh, or null
+   * @param viewShapes  the shapes of the leaves in view coordinates, or null
+   * @param shapeOffset where this leaf's shape starts
+   * @param maximumTime hits at or beyond this time are ignored
+   * @param context     the scratch state of the worker tracing the ray
+   * @return true if the ray hits this leaf before the maximum time
+   */
+  boolean occluded(Ray rayView, float[] viewToLeaf, int offset, TriangleMesh mesh,
+                   float[] viewShapes, int shapeOffset,
+                   float maximumTime, TraceContext context) {
+    if ((shape == NONE) || ((shape == MESH) && (mesh == null))) {
+      return false;
+    }
+    if ((viewShapes != null) && !Float.isNaN(viewShapes[shapeOffset])) {
+      return viewTime(rayView, viewShapes, shapeOffset, context) < maximumTime;
+    }
+
+    float[] m = viewToLeaf;
+    int o = offset;
+    float sx = rayView.start.x, sy = rayView.start.y;
+    float sz = rayView.start.z, sw = rayView.start.w;
+    float dx = rayView.direction.x, dy = rayView.direction.y;
+    float dz = rayView.direction.z, dw = rayView.direction.w;
+
+    float ox = m[o] * sx + m[o + 4] * sy + m[o + 8] * sz + m[o + 12] * sw;
+    float oy = m[o + 1] * sx + m[o + 5] * sy + m[o + 9] * sz + m[o + 13] * sw;
+    float oz = m[o + 2] * sx + m[o + 6] * sy + m[o + 10] * sz + m[o + 14] * sw;
+    float ux = m[o] * dx + m[o + 4] * dy + m[o + 8] * dz + m[o + 12] * dw;
+    float uy = m[o + 1] * dx + m[o + 5] * dy + m[o + 9] * dz + m[o + 13] * dw;
+    float uz = m[o + 2] * dx + m[o + 6] * dy + m[o + 10] * dz + m[o + 14] * dw;
+
+    if (shape == MESH) {
+      context.statistics.tests[RTStatistics.MESH]++;
+      context.leafRay.set(ox, oy, oz, ux, uy, uz);
+      return mesh.occluded(context.leafRay, maximumTime, context);
+    }
+    if (shape == SPHERE) {
+      context.statistics.tests[RTStatistics.SPHERE]++;
+      float ow = m[o + 3] * sx + m[o + 7] * sy + m[o + 11] * sz + m[o + 15] * sw;
+      float uw = m[o + 3] * dx + m[o + 7] * dy + m[o + 11] * dz + m[o + 15] * dw;
+      return sphereTime(ox, oy, oz, ow, ux, uy, uz, uw) < maximumTime;
+    }
+    context.statistics.tests[RTStatistics.BOX]++;
+    return boxTime(ox, oy, oz, ux, uy, uz) < maximumTime;
+  }
+
+  /**
+   * Find the time at which each ray of the packet from first to last,
+   * exclusive, first hits this leaf, if it is a sphere or a box, and write it
+   * into the hit times of the packet.
+   * The times are the same as those of a single ray, but each shape is
+   * tested in one loop over the packet, without branches that depend on the
+   * ray. Meshes are not tested here, since their triangles have a hierarchy
+   * of their own.
+   *
+   * @param packet      the rays in view coordinates
+   * @param first       the first ray to intersect
+   * @param last        the ray after the last one to intersect
+   * @param viewToLeaf  the column-major view-to-leaf matrices of the leaves
+   * @param offset      where this leaf's view-to-leaf matrix starts
+   * @param viewShapes  the shapes of the leaves in view coordinates, or null
+   * @param shapeOffset where this leaf's shape starts
+   * @param context     the scratch state of the worker tracing the packet
+   * @return false if this leaf is not a sphere or a box, and so must be
+   * intersected with one ray at a time
+   */
+  boolean hitTimes(RayPacket packet, int first, int last, float[] viewToLeaf, int offset,
+                   float[] viewShapes, int shapeOffset, TraceContext context) {
+    if ((shape != SPHERE) && (shape != BOX)) {
+      return false;
+    }
+    if ((viewShapes != null) && !Float.isNaN(viewShapes[shapeOffset])) {
+      viewTimes(packet, first, last, viewShapes, shapeOffset, context);
+      return true;
+    }
+    float[] m = viewToLeaf;
+    int o = offset;
+    float[] startX = packet.startX, startY = packet.startY, startZ = packet.startZ;
+    float[] directionX = packet.directionX, directionY = packet.directionY;
+    float[] directionZ = packet.directionZ;
+    float[] times = packet.hitTime;
+    //the w of every start and direction, as single rays have them
+    float sw = 1, dw = 0;
+
+    if (shape == SPHERE) {
+      context.statistics.tests[RTStatistics.SPHERE] += last - first;
+      for (int r = first; r < last; r++) {
+        float sx = startX[r], sy = startY[r], sz = startZ[r];
+        float dx = directionX[r], dy = directionY[r], dz = directionZ[r];
+        float ox = m[o] * sx + m[o + 4] * sy + m[o + 8] * sz + m[o + 12] * sw;
+        float oy = m[o + 1] * sx + m[o + 5] * sy + m[o + 9] * sz + m[o + 13] * sw;
+        float oz = m[o + 2] * sx + m[o + 6] * sy + m[o + 10] * sz + m[o + 14] * sw;
+        float ow = m[o + 3] * sx + m[o + 7] * sy + m[o + 11] * sz + m[o + 15] * sw;
+        float ux = m[o] * dx + m[o + 4] * dy + m[o + 8] * dz + m[o + 12] * dw;
+        float uy = m[o + 1] * dx + m[o + 5] * dy + m[o + 9] * dz + m[o + 13] * dw;
+        float uz = m[o + 2] * dx + m[o + 6] * dy + m[o + 10] * dz + m[o + 14] * dw;
+        float uw = m[o + 3] * dx + m[o + 7] * dy + m[o + 11] * dz + m[o + 15] * dw;
+
+        //as in sphereTime, where the nearer root is never the larger one
+        float a = ux * ux + uy * uy + uz * uz + uw * uw;
+        float b = 2 * (ox * ux + oy * uy + oz * uz + ow * uw);
+        float c = (ox * ox + oy * oy + oz * oz + ow * ow) - 1 - 1;
+        float root = (float) Math.sqrt(b * b - 4 * a * c);
+        float t1 = (-b + root) / (2 * a);
+        float t2 = (-b - root) / (2 * a);
+        times[r] = (t2 >= 0) ? t2 : (t1 >= 0) ? t1 : Float.POSITIVE_INFINITY;
+      }
+      return true;
+    }
+
+    context.statistics.tests[RTStatistics.BOX] += last - first;
+    for (int r = first; r < last; r++) {
+      float sx = startX[r], sy = startY[r], sz = startZ[r];
+      float dx = directionX[r], dy = directionY[r], dz = directionZ[r];
+      float ox = m[o] * sx + m[o + 4] * sy + m[o + 8] * sz + m[o + 12] * sw;
+      float oy = m[o + 1] * sx + m[o + 5] * sy + m[o + 9] * sz + m[o + 13] * sw;
+      float oz = m[o + 2] * sx + m[o + 6] * sy + m[o + 10] * sz + m[o + 14] * sw;
+      float ux = m[o] * dx + m[o + 4] * dy + m[o + 8] * dz + m[o + 12] * dw;
+      float uy = m[o + 1] * dx + m[o + 5] * dy + m[o + 9] * dz + m[o + 13] * dw;
+      float uz = m[o + 2] * dx + m[o + 6] * dy + m[o + 10] * dz + m[o + 14] * dw;
+
+      //as in boxTime: a direction that is almost parallel to a pair of faces
+      //misses if it starts outside them, and never leaves them otherwise
+      float t1 = (-0.5f - ox) / ux;
+      float t2 = (0.5f - ox) / ux;
+      boolean flat = Math.abs(ux) < 0.0001f;
+      boolean outside = (ox > 0.5f) || (ox < -0.5f);
+      float tmin = flat ? (outside ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY)
+              : Math.min(t1, t2);
+      float tmax = flat ? Float.POSITIVE_INFINITY : Math.max(t1, t2);
+
+      t1 = (-0.5f - oy) / uy;
+      t2 = (0.5f - oy) / uy;
+      flat = Math.abs(uy) < 0.0001f;
+      outside = (oy > 0.5f) || (oy < -0.5f);
+      float tminY = flat ? (outside ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY)
+              : Math.min(t1, t2);
+      float tmaxY = flat ? Float.POSITIVE_INFINITY : Math.max(t1, t2);
+
+      t1 = (-0.5f - oz) / uz;
+      t2 = (0.5f - oz) / uz;
+      flat = Math.abs(uz) < 0.0001f;
+      outside = (oz > 0.5f) || (oz < -0.5f);
+      float tminZ = flat ? (outside ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY)
+              : Math.min(t1, t2);
+      float tmaxZ = flat ? Float.POSITIVE_INFINITY : Math.max(t1, t2);
+
+      tmin = Math.max(tmin, Math.max(tminY, tminZ));
+      tmax = Math.min(tmax, Math.min(tmaxY, tmaxZ));
+      times[r] = ((tmin >= tmax) || (tmax <= 0)) ? Float.POSITIVE_INFINITY
+              : (tmin > 0) ? tmin : tmax;
+    }
+    return true;
+  }
+
+  /**
+   * Find the shape of this leaf in view coordinates, if it is a sphere whose
+   * leaf-to-view transformation only rotates, scales evenly and translates,
+   * or a box whose transformation only scales along the axes of the view and
+   * translates. Rays can be tested against such a leaf in view coordinates,
+   * with a few multiplications and no matrix. A sphere is written as its
+   * center and radius, and a box as its minimum and maximum corners. Any
+   * other leaf, like a sheared sphere or a rotated box, is written with a
+   * first value of NaN, and is tested through its matrices.
+   *
+   * @param leafToView the leaf-to-view transformation of this leaf
+   * @param viewShapes where to write the shape, 6 floats
+   * @param offset     where the shape starts
+   * @return true if the shape was written
+   */
+  boolean getViewShape(Matrix4f leafToView, float[] viewShapes, int offset) {
+    Matrix4f m = leafToView;
+    viewShapes[offset] = Float.NaN;
+    if (((shape != SPHERE) && (shape != BOX))
+            || (m.m03() != 0) || (m.m13() != 0) || (m.m23() != 0) || (m.m33() != 1)) {
+      return false;
+    }
+
+    if (shape == SPHERE) {
+      //the columns must be perpendicular and of the same length
+      float xx = m.m00() * m.m00() + m.m01() * m.m01() + m.m02() * m.m02();
+      float yy = m.m10() * m.m10() + m.m11() * m.m11() + m.m12() * m.m12();
+      float zz = m.m20() * m.m20() + m.m21() * m.m21() + m.m22() * m.m22();
+      float xy = m.m00() * m.m10() + m.m01() * m.m11() + m.m02() * m.m12();
+      float xz = m.m00() * m.m20() + m.m01() * m.m21() + m.m02() * m.m22();
+      float yz = m.m10() * m.m20() + m.m11() * m.m21() + m.m12() * m.m22();
+      float scale = (xx + yy + zz) / 3;
+      float tolerance = SIMILARITY_TOLERANCE * scale;
+      if (!(scale > 0) || (Math.abs(xx - scale) > tolerance)
+              || (Math.abs(yy - scale) > tolerance) || (Math.abs(zz - scale) > tolerance)
+              || (Math.abs(xy) > tolerance) || (Math.abs(xz) > tolerance)
+              || (Math.abs(yz) > tolerance)) {
+        return false;
       }
+      viewShapes[offset] = m.m30();
+      viewShapes[offset + 1] = m.m31();
+      viewShapes[offset + 2] = m.m32();
+      viewShapes[offset + 3] = (float) Math.sqrt(scale);
+      viewShapes[offset + 4] = 0;
+      viewShapes[offset + 5] = 0;
+      return true;
+    }
 
+    //the box must stay lined up with the axes
+    float scale = Math.max(Math.abs(m.m00()), Math.max(Math.abs(m.m11()), Math.abs(m.m22())));
+    float tolerance = SIMILARITY_TOLERANCE * scale;
+    if ((m.m00() == 0) || (m.m11() == 0) || (m.m22() == 0)
+            || (Math.abs(m.m01()) > tolerance) || (Math.abs(m.m02()) > tolerance)
+            || (Math.abs(m.m10()) > tolerance) || (Math.abs(m.m12()) > tolerance)
+            || (Math.abs(m.m20()) > tolerance) || (Math.abs(m.m21()) > tolerance)) {
+      return false;
     }
+    float ex = 0.5f * Math.abs(m.m00()), ey = 0.5f * Math.abs(m.m11());
+    float ez = 0.5f * Math.abs(m.m22());
+    viewShapes[offset] = m.m30() - ex;
+    viewShapes[offset + 1] = m.m31() - ey;
+    viewShapes[offset + 2] = m.m32() - ez;
+    viewShapes[offset + 3] = m.m30() + ex;
+    viewShapes[offset + 4] = m.m31() + ey;
+    viewShapes[offset + 5] = m.m32() + ez;
+    return true;
   }
 
-  private Vector2f windowTransform(Vector2f wcoords,
-                                   Vector2f minw1,
-                                   Vector2f maxw1,
-                                   Vector2f minw2,
-                                   Vector2f maxw2) {
-    Vector2f v = new Vector2f();
-
-    v.x = (wcoords.x - minw1.x) * (maxw2.x - minw2.x) / (maxw1.x - minw1.x)
-          + minw2.x;
-    v.y = (wcoords.y - minw1.y) * (maxw2.y - minw2.y) / (maxw1.y - minw1.y)
-          + minw2.y;
-    return v;
+  /**
+   * The time at which the given ray in view coordinates first hits this
+   * leaf, given its shape in view coordinates, or infinity if it misses
+   */
+  private float viewTime(Ray rayView, float[] viewShapes, int offset, TraceContext context) {
+    float sx = rayView.start.x, sy = rayView.start.y, sz = rayView.start.z;
+    float dx = rayView.direction.x, dy = rayView.direction.y, dz = rayView.direction.z;
+    if (shape == SPHERE) {
+      context.statistics.tests[RTStatistics.SPHERE]++;
+      return viewSphereTime(sx, sy, sz, dx, dy, dz, viewShapes, offset);
+    }
+    context.statistics.tests[RTStatistics.BOX]++;
+    return viewBoxTime(sx, sy, sz, dx, dy, dz, viewShapes, offset);
   }
 
+  /**
+   * Find the time at which each ray of the packet from first to last,
+   * exclusive, first hits this leaf, given its shape in view coordinates
+   */
+  private void viewTimes(RayPacket packet, int first, int last, float[] viewShapes,
+                         int offset, TraceContext context) {
+    float[] startX = packet.startX, startY = packet.startY, startZ = packet.startZ;
+    float[] directionX = packet.directionX, directionY = packet.directionY;
+    float[] directionZ = packet.directionZ;
+    float[] times = packet.hitTime;
+    if (shape == SPHERE) {
+      context.statistics.tests[RTStatistics.SPHERE] += last - first;
+      for (int r = first; r < last; r++) {
+        times[r] = viewSphereTime(startX[r], startY[r], startZ[r],
+                directionX[r], directionY[r], directionZ[r], viewShapes, offset);
+      }
+    } else {
+      context.statistics.tests[RTStatistics.BOX] += last - first;
+      for (int r = first; r < last; r++) {
+        times[r] = viewBoxTime(startX[r], startY[r], startZ[r],
+                directionX[r], directionY[r], directionZ[r], viewShapes, offset);
+      }
+    }
+  }
 
+  /**
+   * The time at which a ray in view coordinates first hits the sphere with
+   * the given center and radius, as sphereTime finds it in the coordinate
+   * system of the sphere
+   */
+  private static float viewSphereTime(float sx, float sy, float sz,
+                                      float dx, float dy, float dz,
+                                      float[] sphere, int o) {
+    float ox = sx - sphere[o], oy = sy - sphere[o + 1], oz = sz - sphere[o + 2];
+    float radius = sphere[o + 3];
+    float a = dx * dx + dy * dy + dz * dz;
+    float b = 2 * (ox * dx + oy * dy + oz * dz);
+    float c = (ox * ox + oy * oy + oz * oz) - radius * radius;
+    //a miss has no root, and then neither time is at or after the start
+    float root = (float) Math.sqrt(b * b - 4 * a * c);
+    float t1 = (-b + root) / (2 * a);
+    float t2 = (-b - root) / (2 * a);
+    return (t2 >= 0) ? t2 : (t1 >= 0) ? t1 : Float.POSITIVE_INFINITY;
+  }
+
+  /**
+   * The time at which a ray in view coordinates first hits the box with the
+   * given corners, as boxTime finds it in the coordinate system of the box.
+   * A direction counts as parallel to a pair of faces when it would in that
+   * coordinate system, where the box is of unit size.
+   */
+  private static float viewBoxTime(float sx, float sy, float sz,
+                                   float dx, float dy, float dz,
+                                   float[] box, int o) {
+    float tmin = Float.NEGATIVE_INFINITY, tmax = Float.POSITIVE_INFINITY;
+    for (int k = 0; k < 3; k++) {
+      float s = (k == 0) ? sx : (k == 1) ? sy : sz;
+      float d = (k == 0) ? dx : (k == 1) ? dy : dz;
+      float low = box[o + k], high = box[o + 3 + k];
+      float t1 = (low - s) / d;
+      float t2 = (high - s) / d;
+      boolean flat = Math.abs(d) < 0.0001f * (high - low);
+      boolean outside = (s > high) || (s < low);
+      tmin = Math.max(tmin, flat ? (outside ? Float.POSITIVE_INFINITY : Float.NEGATIVE_INFINITY)
+              : Math.min(t1, t2));
+      tmax = Math.min(tmax, flat ? Float.POSITIVE_INFINITY : Math.max(t1, t2));
+    }
+    return ((tmin >= tmax) || (tmax <= 0)) ? Float.POSITIVE_INFINITY
+            : (tmin > 0) ? tmin : tmax;
+  }
+
+  /**
+   * The time at which a ray in this leaf's coordinate system first hits the
+   * unit sphere, ignoring hits behind its start, or infinity if it misses
+   */
+  private static float sphereTime(float ox, float oy, float oz, float ow,
+                                  float ux, float uy, float uz, float uw) {
+    float a, b, c;
+
+    a = ux * ux + uy * uy + uz * uz + uw * uw;
+    b = 2 * (ox * ux + oy * uy + oz * uz + ow * uw);
+    c = (ox * ox + oy * oy + oz * oz + ow * ow) - 1 - 1;
+
+    if ((b * b - 4 * a * c) < 0) {
+      return Float.POSITIVE_INFINITY;
+    }
+    float t1 = (-b + (float) Math.sqrt(b * b - 4 * a * c)) / (2 * a);
+    float t2 = (-b - (float) Math.sqrt(b * b - 4 * a * c)) / (2 * a);
+
+    if (t1 >= 0) {
+      if (t2 >= 0) {
+        return Math.min(t1, t2);
+      } else {
+        return t1;
+      }
+    } else {
+      if (t2 >= 0)
+        return t2;
+      else
+        return Float.POSITIVE_INFINITY;
+    }
+  }
+
+  /**
+   * The time at which a ray in this leaf's coordinate system first hits the
+   * unit box centered at the origin, ignoring hits behind its start, or
+   * infinity if it misses
+   */
+  private static float boxTime(float ox, float oy, float oz,
+                               float ux, float uy, float uz) {
+    float tmaxX, tmaxY, tmaxZ;
+    float tminX, tminY, tminZ;
+
+    if (Math.abs(ux) < 0.0001f) {
+      if ((ox > 0.5f) || (ox < -0.5f))
+        return Float.POSITIVE_INFINITY;
+      else {
+        tminX = Float.NEGATIVE_INFINITY;
+        tmaxX = Float.POSITIVE_INFINITY;
+      }
+    } else {
+      float t1 = (-0.5f - ox) / ux;
+      float t2 = (0.5f - ox) / ux;
+      tminX = Math.min(t1, t2);
+      tmaxX = Math.max(t1, t2);
+    }
+
+    if (Math.abs(uy) < 0.0001f) {
+      if ((oy > 0.5f) || (oy < -0.5f)) {
+        return Float.POSITIVE_INFINITY;
+      } else {
+        tminY = Float.NEGATIVE_INFINITY;
+        tmaxY = Float.POSITIVE_INFINITY;
+      }
+    } else {
+      float t1 = (-0.5f - oy) / uy;
+      float t2 = (0.5f - oy) / uy;
+      tminY = Math.min(t1, t2);
+      tmaxY = Math.max(t1, t2);
+    }
+
+    if (Math.abs(uz) < 0.0001f) {
+      if ((oz > 0.5f) || (oz < -0.5f)) {
+        return Float.POSITIVE_INFINITY;
+      } else {
+        tminZ = Float.NEGATIVE_INFINITY;
+        tmaxZ = Float.POSITIVE_INFINITY;
+      }
+    } else {
+      float t1 = (-0.5f - oz) / uz;
+      float t2 = (0.5f - oz) / uz;
+      tminZ = Math.min(t1, t2);
+      tmaxZ = Math.max(t1, t2);
+    }
+
+    float tmin, tmax;
+
+    tmin = Math.max(tminX, Math.max(tminY, tminZ));
+    tmax = Math.min(tmaxX, Math.min(tmaxY, tmaxZ));
+
+    if ((tmin >= tmax) || (tmax <= 0)) {
+      return Float.POSITIVE_INFINITY;
+    }
+    if (tmin > 0)
+      return tmin;
+    else
+      return tmax;
+  }
+
+  /**
+   * Map a coordinate on a face of the box, which ranges from -0.5 to 0.5,
+   * linearly to the given range of texture coordinates
+   */
+  private static float windowTransform(float w, float min, float max) {
+    return (w - (-0.5f)) * (max - min) / (0.5f - (-0.5f)) + min;
+  }
 }
@@ -0,0 +1,317 @@
+package sgraph;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A hierarchy over the lights of a scene, so that shading a point only looks
+ * at the lights that can reach it. Lights without a position shine
+ * everywhere and are kept aside. The others are split in half along the
+ * longest side of their bounding box until each leaf holds one light, and
+ * every node records a sphere around its lights, a cone around the spot
+ * directions of its lights widened by their widest spot angle, and how
+ * bright its lights are together. A point outside the cone of a node, as
+ * seen from anywhere in its sphere, is outside the spot of every light below
+ * it, so the node is skipped without looking at its lights.
+ *
+ * The lights of this renderer do not fade with distance, so nodes are not
+ * culled by how far they are, only by their cones. For scenes where too many
+ * lights reach a point to shade each of them, {@link #importance} tells how
+ * much each of them might add to the point, to pick some of them at random.
+ *
+ * The nodes are stored in flat arrays in depth-first order, like those of
+ * {@link BVH}: the left child of an interior node is the next node.
+ */
+class LightTree {
+  /**
+   * How far outside the cone of a node, in cosine, a point must be before
+   * the node is skipped, so that rounding never culls a light that the exact
+   * spot test in shading would keep
+   */
+  private static final float CULL_TOLERANCE = 1e-4f;
+
+  /**
+   * The lights without a position, by their index in the scene
+   */
+  private final int[] directional;
+  private final int count;
+  /**
+   * The center and radius of the bounding sphere of each node, 4 floats per
+   * node
+   */
+  private final float[] nodeSphere;
+  /**
+   * The axis of the cone of each node, 3 floats per node, and the cosine and
+   * sine of the angle around the axis that its lights can shine into. Nodes
+   * whose lights can shine anywhere have a cosine of -1.
+   */
+  private final float[] nodeAxis;
+  private final float[] nodeCosSpread, nodeSinSpread;
+  /**
+   * The position of each light, as the renderer keeps them, and the
+   * brightness of its ambient light and of its diffuse and specular light,
+   * which only reaches surfaces that face it
+   */
+  private final float[] position;
+  private final float[] ambientPower, power;
+  /**
+   * The light of each leaf, or -1 for interior nodes, whose right child is
+   * in nodeRight
+   */
+  private final int[] nodeLight;
+  private final int[] nodeRight;
+  private int nodes;
+  private int depth;
+
+  /**
+   * Build the tree over lights given as flat arrays, as the renderer keeps
+   * them
+   *
+   * @param count          the number of lights
+   * @param position       the position of each light, 4 floats per light,
+   *                       with a w of 0 for lights without a position
+   * @param ambient        the ambient color of each light, 3 floats per light
+   * @param diffuse        the diffuse color of each light
+   * @param specular       the specular color of each light
+   * @param spotDirection  the unit spot direction of each light, or zero if
+   *                       it has none
+   * @param cosSpotCutoff  the cosine of the spot angle of each light
+   */
+  LightTree(int count, float[] position, float[] ambient, float[] diffuse, float[] specular,
+            float[] spotDirection, float[] cosSpotCutoff) {
+    this.count = count;
+    this.position = position;
+    ambientPower = new float[count];
+    power = new float[count];
+    for (int i = 0; i < count; i++) {
+      ambientPower[i] = luminance(ambient, 3 * i);
+      power[i] = luminance(diffuse, 3 * i) + luminance(specular, 3 * i);
+    }
+    int directionalCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (position[4 * i + 3] == 0) {
+        directionalCount++;
+      }
+    }
+    directional = new int[directionalCount];
+    Integer[] lights = new Integer[count - directionalCount];
+    for (int i = 0, d = 0, p = 0; i < count; i++) {
+      if (position[4 * i + 3] == 0) {
+        directional[d++] = i;
+      } else {
+        lights[p++] = i;
+      }
+    }
+
+    int capacity = Math.max(1, 2 * lights.length - 1);
+    nodeSphere = new float[4 * capacity];
+    nodeAxis = new float[3 * capacity];
+    nodeCosSpread = new float[capacity];
+    nodeSinSpread = new float[capacity];
+    nodeLight = new int[capacity];
+    nodeRight = new int[capacity];
+    nodes = 0;
+    depth = 0;
+    if (lights.length > 0) {
+      build(lights, 0, lights.length, 1, spotDirection, cosSpotCutoff);
+    }
+  }
+
+  private int build(Integer[] order, int start, int end, int level,
+                    float[] spotDirection, float[] cosSpotCutoff) {
+    int node = nodes++;
+    depth = Math.max(depth, level);
+
+    //the bounds and cone of the lights of the node
+    float[] box = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+            Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+    float ax = 0, ay = 0, az = 0;
+    float cutoff = 0;
+    boolean anywhere = false;
+    for (int i = start; i < end; i++) {
+      int light = order[i];
+      for (int k = 0; k < 3; k++) {
+        box[k] = Math.min(box[k], position[4 * light + k]);
+        box[3 + k] = Math.max(box[3 + k], position[4 * light + k]);
+      }
+      float dx = spotDirection[3 * light], dy = spotDirection[3 * light + 1];
+      float dz = spotDirection[3 * light + 2];
+      if (dx * dx + dy * dy + dz * dz == 0) {
+        anywhere = true;
+      }
+      ax += dx;
+      ay += dy;
+      az += dz;
+      cutoff = Math.max(cutoff, acos(cosSpotCutoff[light]));
+    }
+
+    int s = 4 * node;
+    nodeSphere[s] = 0.5f * (box[0] + box[3]);
+    nodeSphere[s + 1] = 0.5f * (box[1] + box[4]);
+    nodeSphere[s + 2] = 0.5f * (box[2] + box[5]);
+    float ex = box[3] - box[0], ey = box[4] - box[1], ez = box[5] - box[2];
+    nodeSphere[s + 3] = 0.5f * (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+
+    float length = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+    nodeCosSpread[node] = -1;
+    nodeSinSpread[node] = 0;
+    if (!anywhere && (length > 0)) {
+      ax /= length;
+      ay /= length;
+      az /= length;
+      float spread = 0;
+      for (int i = start; i < end; i++) {
+        int light = order[i];
+        spread = Math.max(spread, acos(ax * spotDirection[3 * light]
+                + ay * spotDirection[3 * light + 1] + az * spotDirection[3 * light + 2]));
+      }
+      spread += cutoff;
+      if (spread < Math.PI) {
+        nodeCosSpread[node] = (float) Math.cos(spread);
+        nodeSinSpread[node] = (float) Math.sin(spread);
+      }
+    }
+    nodeAxis[3 * node] = ax;
+    nodeAxis[3 * node + 1] = ay;
+    nodeAxis[3 * node + 2] = az;
+
+    if (end - start == 1) {
+      nodeLight[node] = order[start];
+      return node;
+    }
+
+    //split in half along the longest side of the box
+    final int axis = (ex >= ey) && (ex >= ez) ? 0 : (ey >= ez) ? 1 : 2;
+    Arrays.sort(order, start, end, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Float.compare(position[4 * a + axis], position[4 * b + axis]);
+      }
+    });
+    int middle = (start + end) / 2;
+    nodeLight[node] = -1;
+    build(order, start, middle, level + 1, spotDirection, cosSpotCutoff);
+    nodeRight[node] = build(order, middle, end, level + 1, spotDirection, cosSpotCutoff);
+    return node;
+  }
+
+  /**
+   * Get the number of lights in the tree, including those without a
+   * position
+   */
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * Get the length of the longest path from the root to a leaf
+   */
+  int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Find the lights that might reach the given point: those without a
+   * position, and those whose spot the point might be in. The lights are
+   * written in the order of the scene, so that shading adds them up in the
+   * same order whatever the shape of the tree.
+   *
+   * @param result where to write the index of each light
+   * @param stack  scratch space for the traversal, at least as long as the
+   *               depth of the tree
+   * @return the number of lights written
+   */
+  int collect(float px, float py, float pz, int[] result, int[] stack) {
+    int count = 0;
+    for (int light : directional) {
+      result[count++] = light;
+    }
+    if (nodes > 0) {
+      int top = 0;
+      stack[top++] = 0;
+      while (top > 0) {
+        int node = stack[--top];
+        if (!reaches(node, px, py, pz)) {
+          continue;
+        }
+        if (nodeLight[node] >= 0) {
+          result[count++] = nodeLight[node];
+        } else {
+          stack[top++] = nodeRight[node];
+          stack[top++] = node + 1;
+        }
+      }
+    }
+
+    //few lights reach a point, so insertion sort is fast enough
+    for (int i = 1; i < count; i++) {
+      int light = result[i];
+      int j = i - 1;
+      while ((j >= 0) && (result[j] > light)) {
+        result[j + 1] = result[j];
+        j--;
+      }
+      result[j + 1] = light;
+    }
+    return count;
+  }
+
+  /**
+   * Get how much the given light might add to a surface at the given point
+   * with the given unit normal: all of its ambient light, and its diffuse
+   * and specular light as far as the surface faces it
+   */
+  float importance(int light, float px, float py, float pz, float nx, float ny, float nz) {
+    float lx, ly, lz;
+    if (position[4 * light + 3] != 0) {
+      lx = position[4 * light] - px;
+      ly = position[4 * light + 1] - py;
+      lz = position[4 * light + 2] - pz;
+    } else {
+      lx = -position[4 * light];
+      ly = -position[4 * light + 1];
+      lz = -position[4 * light + 2];
+    }
+    float length = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+    float facing = (length > 0) ? Math.max(0, (nx * lx + ny * ly + nz * lz) / length) : 1;
+    return ambientPower[light] + facing * power[light];
+  }
+
+  /**
+   * Whether the point might be in the spot of any light of the node
+   */
+  private boolean reaches(int node, float px, float py, float pz) {
+    float cosSpread = nodeCosSpread[node], sinSpread = nodeSinSpread[node];
+    if (cosSpread <= -1) {
+      return true;
+    }
+    int s = 4 * node;
+    float dx = px - nodeSphere[s], dy = py - nodeSphere[s + 1], dz = pz - nodeSphere[s + 2];
+    float radius = nodeSphere[s + 3];
+    float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    if (distance <= radius) {
+      return true;
+    }
+
+    //the sphere is seen from the point within an angle whose sine is this,
+    //which widens the cone. If that makes it wider than every direction, the
+    //point is inside it.
+    float sinSphere = radius / distance;
+    if ((cosSpread < 0) && (sinSphere >= sinSpread)) {
+      return true;
+    }
+    float cosSphere = (float) Math.sqrt(1 - sinSphere * sinSphere);
+    float cosWidened = cosSpread * cosSphere - sinSpread * sinSphere;
+    float cos = (nodeAxis[3 * node] * dx + nodeAxis[3 * node + 1] * dy
+            + nodeAxis[3 * node + 2] * dz) / distance;
+    return cos >= cosWidened - CULL_TOLERANCE;
+  }
+
+  private static float acos(float cos) {
+    return (float) Math.acos(Math.max(-1, Math.min(1, cos)));
+  }
+
+  private static float luminance(float[] color, int offset) {
+    return 0.2126f * color[offset] + 0.7152f * color[offset + 1] + 0.0722f * color[offset + 2];
+  }
+}
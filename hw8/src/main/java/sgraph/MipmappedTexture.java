@@ -0,0 +1,152 @@
+package sgraph;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A texture image prepared for ray tracing. The texels are copied once into
+ * flat arrays of floats, 3 per texel and row by row from the top of the
+ * image, along with a chain of smaller copies of it, each half the size of
+ * the last, down to a single texel. Looking up a color then reads these
+ * arrays directly and allocates nothing.
+ *
+ * Texture coordinates repeat outside [0,1]. A lookup is given the size of the
+ * area of the surface that it stands for, in texels of the full image. If
+ * that is no more than a texel, the full image is filtered bilinearly, and
+ * otherwise the two levels of the chain whose texels are nearest that size
+ * are filtered and blended, so that distant detail is averaged instead of
+ * sampled at random.
+ */
+class MipmappedTexture {
+  /**
+   * The texels of each level, 3 floats per texel
+   */
+  private final float[][] levels;
+  private final int[] widths, heights;
+
+  MipmappedTexture(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int count = 1;
+    for (int size = Math.max(width, height); size > 1; size /= 2) {
+      count++;
+    }
+    levels = new float[count][];
+    widths = new int[count];
+    heights = new int[count];
+
+    int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+    float[] texels = new float[3 * width * height];
+    for (int i = 0; i < rgb.length; i++) {
+      texels[3 * i] = ((rgb[i] >> 16) & 0xff) / 255.0f;
+      texels[3 * i + 1] = ((rgb[i] >> 8) & 0xff) / 255.0f;
+      texels[3 * i + 2] = (rgb[i] & 0xff) / 255.0f;
+    }
+    levels[0] = texels;
+    widths[0] = width;
+    heights[0] = height;
+
+    //each level averages 2x2 texels of the one before it. Odd rows and
+    //columns are folded into the last texel of the smaller level.
+    for (int level = 1; level < count; level++) {
+      float[] previous = levels[level - 1];
+      int previousWidth = widths[level - 1], previousHeight = heights[level - 1];
+      int w = Math.max(1, previousWidth / 2);
+      int h = Math.max(1, previousHeight / 2);
+      float[] next = new float[3 * w * h];
+      int[] weights = new int[w * h];
+      for (int y = 0; y < previousHeight; y++) {
+        int ny = Math.min(y / 2, h - 1);
+        for (int x = 0; x < previousWidth; x++) {
+          int nx = Math.min(x / 2, w - 1);
+          int from = 3 * (y * previousWidth + x);
+          int to = ny * w + nx;
+          next[3 * to] += previous[from];
+          next[3 * to + 1] += previous[from + 1];
+          next[3 * to + 2] += previous[from + 2];
+          weights[to]++;
+        }
+      }
+      for (int i = 0; i < w * h; i++) {
+        float scale = 1.0f / weights[i];
+        next[3 * i] *= scale;
+        next[3 * i + 1] *= scale;
+        next[3 * i + 2] *= scale;
+      }
+      levels[level] = next;
+      widths[level] = w;
+      heights[level] = h;
+    }
+  }
+
+  /**
+   * Get the width of the full image in texels
+   */
+  int getWidth() {
+    return widths[0];
+  }
+
+  /**
+   * Get the height of the full image in texels
+   */
+  int getHeight() {
+    return heights[0];
+  }
+
+  /**
+   * Look up the color of the texture
+   *
+   * @param s         the horizontal texture coordinate, 0 at the left
+   * @param t         the vertical texture coordinate, 0 at the top
+   * @param footprint the width of the area to average, in texels of the full
+   *                  image
+   * @param color     where to write the red, green and blue of the color
+   */
+  void sample(float s, float t, float footprint, float[] color) {
+    if (!(footprint > 1)) {
+      sample(0, s, t, color, 1);
+      return;
+    }
+    float lod = Math.min((float) (Math.log(footprint) / Math.log(2)), levels.length - 1);
+    int level = (int) lod;
+    float blend = lod - level;
+    sample(level, s, t, color, 1);
+    if ((blend > 0) && (level + 1 < levels.length)) {
+      float red = color[0], green = color[1], blue = color[2];
+      sample(level + 1, s, t, color, blend);
+      color[0] += (1 - blend) * red;
+      color[1] += (1 - blend) * green;
+      color[2] += (1 - blend) * blue;
+    }
+  }
+
+  /**
+   * Filter one level bilinearly, and write the color scaled by the given
+   * weight
+   */
+  private void sample(int level, float s, float t, float[] color, float weight) {
+    float[] texels = levels[level];
+    int width = widths[level], height = heights[level];
+
+    //texel centers are at half-integer positions
+    float x = s * width - 0.5f;
+    float y = t * height - 0.5f;
+    float floorX = (float) Math.floor(x), floorY = (float) Math.floor(y);
+    float fx = x - floorX, fy = y - floorY;
+    int x0 = wrap((int) floorX, width), y0 = wrap((int) floorY, height);
+    int x1 = (x0 + 1 == width) ? 0 : x0 + 1;
+    int y1 = (y0 + 1 == height) ? 0 : y0 + 1;
+
+    int a = 3 * (y0 * width + x0), b = 3 * (y0 * width + x1);
+    int c = 3 * (y1 * width + x0), d = 3 * (y1 * width + x1);
+    float wa = (1 - fx) * (1 - fy) * weight, wb = fx * (1 - fy) * weight;
+    float wc = (1 - fx) * fy * weight, wd = fx * fy * weight;
+    for (int k = 0; k < 3; k++) {
+      color[k] = wa * texels[a + k] + wb * texels[b + k] + wc * texels[c + k] + wd * texels[d + k];
+    }
+  }
+
+  private static int wrap(int i, int size) {
+    i %= size;
+    return (i < 0) ? i + size : i;
+  }
+}
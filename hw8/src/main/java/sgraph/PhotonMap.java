@@ -0,0 +1,418 @@
+package sgraph;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Photons that reached diffuse surfaces from the lights through mirrors and
+ * glass, and that light those surfaces in caustics, which shadow rays cannot
+ * find. The photons are kept in a balanced kd-tree laid out in flat arrays:
+ * the photon at the middle of a range of the arrays splits the range along
+ * its axis, with the photons before it on the low side and those after it on
+ * the high side, so the tree needs no nodes or pointers.
+ *
+ * Each photon is its position, the direction it travelled in and its power,
+ * 9 floats per photon. The power of a photon is how much it adds to the
+ * irradiance of the surface it is found on, once divided by the area that it
+ * is gathered from.
+ *
+ * The map is only read once it is built, so any number of workers can
+ * gather from it at the same time, each with its own {@link Search}.
+ */
+class PhotonMap {
+  /**
+   * The number of photons below which a range of the arrays is sorted into
+   * a tree by the worker that reaches it, instead of being split between two
+   */
+  private static final int PARALLEL_RANGE = 4096;
+  /**
+   * The fewest photons that a point must find to be lit by them. A few
+   * photons far apart are noise, which would show as blotches the size of
+   * the disc they are gathered from.
+   */
+  private static final int MINIMUM_GATHER = 8;
+
+  private final float[] photons;
+  /**
+   * The axis that the photon at the middle of each range splits it along
+   */
+  private final byte[] axes;
+  private final int count;
+  /**
+   * The number of photons emitted from the lights to find these, and the
+   * length of the diagonal of the box around these
+   */
+  private final int emitted;
+  private final float extent;
+
+  /**
+   * The photons that one worker found, in the order it found them
+   */
+  static class Batch {
+    private float[] photons = new float[9 * 64];
+    private int count;
+
+    void add(float x, float y, float z, float dx, float dy, float dz,
+             float red, float green, float blue) {
+      if (9 * count == photons.length) {
+        photons = Arrays.copyOf(photons, 2 * photons.length);
+      }
+      int o = 9 * count++;
+      photons[o] = x;
+      photons[o + 1] = y;
+      photons[o + 2] = z;
+      photons[o + 3] = dx;
+      photons[o + 4] = dy;
+      photons[o + 5] = dz;
+      photons[o + 6] = red;
+      photons[o + 7] = green;
+      photons[o + 8] = blue;
+    }
+  }
+
+  /**
+   * The scratch space of one worker for gathering photons: the nearest
+   * photons found so far as a max-heap of their squared distances, and the
+   * ranges of the tree left to visit
+   */
+  static class Search {
+    private final int[] nearest;
+    private final float[] distances;
+    private final int[] stack;
+    private final float[] stackDistances;
+
+    Search(int k) {
+      nearest = new int[k];
+      distances = new float[k];
+      stack = new int[2 * 64];
+      stackDistances = new float[64];
+    }
+
+    /**
+     * Get the number of photons that this gathers at a point
+     */
+    int getGather() {
+      return nearest.length;
+    }
+  }
+
+  /**
+   * Build the tree over the photons of the given batches on the given pool
+   *
+   * @param emitted the number of photons emitted to find them
+   */
+  PhotonMap(List<Batch> batches, int emitted, ForkJoinPool pool) {
+    this.emitted = emitted;
+    int total = 0;
+    for (Batch batch : batches) {
+      total += batch.count;
+    }
+    count = total;
+    float[] found = new float[9 * count];
+    int offset = 0;
+    for (Batch batch : batches) {
+      System.arraycopy(batch.photons, 0, found, offset, 9 * batch.count);
+      offset += 9 * batch.count;
+    }
+
+    float x0 = Float.POSITIVE_INFINITY, y0 = x0, z0 = x0;
+    float x1 = Float.NEGATIVE_INFINITY, y1 = x1, z1 = x1;
+    float[] positions = new float[3 * count];
+    for (int i = 0; i < count; i++) {
+      float x = found[9 * i], y = found[9 * i + 1], z = found[9 * i + 2];
+      positions[3 * i] = x;
+      positions[3 * i + 1] = y;
+      positions[3 * i + 2] = z;
+      x0 = Math.min(x0, x);
+      y0 = Math.min(y0, y);
+      z0 = Math.min(z0, z);
+      x1 = Math.max(x1, x);
+      y1 = Math.max(y1, y);
+      z1 = Math.max(z1, z);
+    }
+    float dx = x1 - x0, dy = y1 - y0, dz = z1 - z0;
+    extent = (count > 0) ? (float) Math.sqrt(dx * dx + dy * dy + dz * dz) : 0;
+
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    axes = new byte[count];
+    if (count > 0) {
+      pool.invoke(new BuildTask(positions, order, axes, 0, count));
+    }
+
+    photons = new float[9 * count];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(found, 9 * order[i], photons, 9 * i, 9);
+    }
+  }
+
+  /**
+   * Sorts a range of the photons into a tree: the photon at its middle is
+   * moved there by quickselect along the longest side of the box around the
+   * range, and the two halves are sorted the same way, in parallel while
+   * they are large
+   */
+  private static class BuildTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final float[] positions;
+    private final int[] order;
+    private final byte[] axes;
+    private final int first, last;
+
+    BuildTask(float[] positions, int[] order, byte[] axes, int first, int last) {
+      this.positions = positions;
+      this.order = order;
+      this.axes = axes;
+      this.first = first;
+      this.last = last;
+    }
+
+    @Override
+    protected void compute() {
+      build(first, last);
+    }
+
+    private void build(int first, int last) {
+      while (last - first > 1) {
+        float[] low = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] high = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.NEGATIVE_INFINITY};
+        for (int i = first; i < last; i++) {
+          for (int k = 0; k < 3; k++) {
+            float v = positions[3 * order[i] + k];
+            low[k] = Math.min(low[k], v);
+            high[k] = Math.max(high[k], v);
+          }
+        }
+        int axis = 0;
+        for (int k = 1; k < 3; k++) {
+          if (high[k] - low[k] > high[axis] - low[axis]) {
+            axis = k;
+          }
+        }
+        int middle = (first + last) >>> 1;
+        select(first, last, middle, axis);
+        axes[middle] = (byte) axis;
+
+        if (last - first > PARALLEL_RANGE) {
+          invokeAll(new BuildTask(positions, order, axes, first, middle),
+                  new BuildTask(positions, order, axes, middle + 1, last));
+          return;
+        }
+        build(first, middle);
+        first = middle + 1;
+      }
+    }
+
+    /**
+     * Move the photon that is the given one in order along an axis there,
+     * with those before it no higher and those after it no lower
+     */
+    private void select(int first, int last, int nth, int axis) {
+      int lo = first, hi = last - 1;
+      while (lo < hi) {
+        float pivot = positions[3 * order[(lo + hi) >>> 1] + axis];
+        int i = lo, j = hi;
+        while (i <= j) {
+          while (positions[3 * order[i] + axis] < pivot) {
+            i++;
+          }
+          while (positions[3 * order[j] + axis] > pivot) {
+            j--;
+          }
+          if (i <= j) {
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+            i++;
+            j--;
+          }
+        }
+        if (nth <= j) {
+          hi = j;
+        } else if (nth >= i) {
+          lo = i;
+        } else {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the number of photons in the map
+   */
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * Get the number of photons emitted from the lights to find those in the
+   * map
+   */
+  int getEmittedCount() {
+    return emitted;
+  }
+
+  /**
+   * Get the length of the diagonal of the box around the photons
+   */
+  float getExtent() {
+    return extent;
+  }
+
+  /**
+   * Estimate the irradiance that the photons add to a point, from the k
+   * nearest of them that hit the side of the surface that its normal points
+   * out of. Photons close to the point count more than those at the edge of
+   * the disc they are gathered from, which keeps the edges of caustics
+   * sharp.
+   *
+   * @param k             the number of photons to gather, at most that of
+   *                      the search
+   * @param maximumRadius how far from the point photons are gathered from
+   * @param irradiance    where to write the irradiance, 3 floats
+   */
+  void gather(float px, float py, float pz, float nx, float ny, float nz, int k,
+              float maximumRadius, Search search, float[] irradiance) {
+    irradiance[0] = 0;
+    irradiance[1] = 0;
+    irradiance[2] = 0;
+    int found = nearest(px, py, pz, nx, ny, nz, k, maximumRadius * maximumRadius, search);
+    if (found < Math.min(k, MINIMUM_GATHER)) {
+      return;
+    }
+
+    //the disc is as wide as the farthest photon once k are found, and the
+    //cone filter weighs each by 1 - d/r, which integrates to 1/3 of the disc
+    float r2 = (found == k) ? search.distances[0] : maximumRadius * maximumRadius;
+    float r = (float) Math.sqrt(r2);
+    float red = 0, green = 0, blue = 0;
+    for (int n = 0; n < found; n++) {
+      int o = 9 * search.nearest[n];
+      float w = 1 - (float) Math.sqrt(search.distances[n]) / r;
+      red += w * photons[o + 6];
+      green += w * photons[o + 7];
+      blue += w * photons[o + 8];
+    }
+    float scale = 3 / ((float) Math.PI * Math.max(r2, Float.MIN_NORMAL));
+    irradiance[0] = red * scale;
+    irradiance[1] = green * scale;
+    irradiance[2] = blue * scale;
+  }
+
+  /**
+   * Find the k nearest photons within a squared distance of a point that
+   * travelled against the given normal, into the heap of the search
+   *
+   * @return the number found
+   */
+  private int nearest(float px, float py, float pz, float nx, float ny, float nz, int k,
+                      float maximumDistance, Search search) {
+    int[] nearest = search.nearest;
+    float[] distances = search.distances;
+    int[] stack = search.stack;
+    float[] stackDistances = search.stackDistances;
+    int found = 0;
+    float limit = maximumDistance;
+
+    int top = 0;
+    stack[0] = 0;
+    stack[1] = count;
+    stackDistances[0] = 0;
+    top++;
+    while (top > 0) {
+      top--;
+      if (stackDistances[top] >= limit) {
+        continue;
+      }
+      int first = stack[2 * top], last = stack[2 * top + 1];
+      while (first < last) {
+        int middle = (first + last) >>> 1;
+        int o = 9 * middle;
+        float dx = photons[o] - px, dy = photons[o + 1] - py, dz = photons[o + 2] - pz;
+        float d2 = dx * dx + dy * dy + dz * dz;
+        if ((d2 < limit)
+                && (photons[o + 3] * nx + photons[o + 4] * ny + photons[o + 5] * nz < 0)) {
+          if (found < k) {
+            nearest[found] = middle;
+            distances[found] = d2;
+            siftUp(nearest, distances, found++);
+            if (found == k) {
+              limit = distances[0];
+            }
+          } else {
+            nearest[0] = middle;
+            distances[0] = d2;
+            siftDown(nearest, distances, k);
+            limit = distances[0];
+          }
+        }
+
+        //visit the side of the split that holds the point first, and come
+        //back to the other if the nearest photons may still be there
+        int axis = axes[middle];
+        float split = (axis == 0) ? dx : (axis == 1) ? dy : dz;
+        float split2 = split * split;
+        if (split > 0) {
+          if ((middle + 1 < last) && (split2 < limit)) {
+            stack[2 * top] = middle + 1;
+            stack[2 * top + 1] = last;
+            stackDistances[top++] = split2;
+          }
+          last = middle;
+        } else {
+          if ((first < middle) && (split2 < limit)) {
+            stack[2 * top] = first;
+            stack[2 * top + 1] = middle;
+            stackDistances[top++] = split2;
+          }
+          first = middle + 1;
+        }
+      }
+    }
+    return found;
+  }
+
+  private static void siftUp(int[] nearest, float[] distances, int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (distances[parent] >= distances[i]) {
+        return;
+      }
+      swap(nearest, distances, i, parent);
+      i = parent;
+    }
+  }
+
+  private static void siftDown(int[] nearest, float[] distances, int size) {
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        return;
+      }
+      if ((child + 1 < size) && (distances[child + 1] > distances[child])) {
+        child++;
+      }
+      if (distances[i] >= distances[child]) {
+        return;
+      }
+      swap(nearest, distances, i, child);
+      i = child;
+    }
+  }
+
+  private static void swap(int[] nearest, float[] distances, int a, int b) {
+    int index = nearest[a];
+    nearest[a] = nearest[b];
+    nearest[b] = index;
+    float distance = distances[a];
+    distances[a] = distances[b];
+    distances[b] = distance;
+  }
+}
@@ -0,0 +1,37 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+/**
+ * Poses a scene graph for each frame of a sequence traced by {@link
+ * RTScenegraphRenderer#drawSequence}. Frames are posed and traced one at a
+ * time, in order, on the thread that called it.
+ *
+ * The renderer keeps what it compiled from the scene graph between frames.
+ * Frames that only change transformations, or the camera, are traced after
+ * updating just the leaves that moved, while frames that add or remove
+ * nodes, or change which mesh a leaf draws, compile the scene graph again.
+ */
+public interface RTAnimation {
+  /**
+   * Pose the scene graph for the given frame, usually by setting the
+   * animation transformations of its nodes
+   *
+   * @param frame the number of the frame
+   * @return the world-to-view transformation of the camera for the frame
+   */
+  Matrix4f animate(int frame);
+
+  /**
+   * A frame has been traced and written
+   *
+   * @param frame          the number of the frame
+   * @param rebuilt        true if the scene graph was compiled again for it,
+   *                       false if the previous frame was updated
+   * @param compileSeconds how long it took to bring the compiled scene up to
+   *                       date
+   * @param seconds        how long the whole frame took
+   */
+  default void frameFinished(int frame, boolean rebuilt, float compileSeconds, float seconds) {
+  }
+}
@@ -0,0 +1,38 @@
+package sgraph;
+
+/**
+ * Receives the progress of a ray traced image from {@link
+ * RTScenegraphRenderer} while it is being traced. The image is traced in
+ * passes, from coarse to fine, and each pass traces every tile of the image.
+ *
+ * Tiles are traced in parallel, so {@link #tileFinished} is called from the
+ * worker threads of the renderer, possibly at the same time for different
+ * tiles.
+ */
+public interface RTRenderListener {
+  /**
+   * A pass over the image is about to start
+   *
+   * @param pass   the index of the pass, starting at 0
+   * @param passes the number of passes in this image
+   * @param tiles  the number of tiles in each pass
+   */
+  void passStarted(int pass, int passes, int tiles);
+
+  /**
+   * A tile of the image has been traced. The pixels of the whole image are
+   * supplied, row by row from the top, and only the given rectangle of them
+   * is guaranteed to be finished for this pass.
+   *
+   * @param pass   the index of the pass
+   * @param pixels the RGB pixels of the image
+   * @param width  the width of the image
+   * @param height the height of the image
+   * @param x0     the left edge of the tile in the image, inclusive
+   * @param y0     the top edge of the tile in the image, inclusive
+   * @param x1     the right edge of the tile in the image, exclusive
+   * @param y1     the bottom edge of the tile in the image, exclusive
+   */
+  void tileFinished(int pass, int[] pixels, int width, int height,
+                    int x0, int y0, int x1, int y1);
+}
@@ -0,0 +1,643 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Stack;
+
+import util.Material;
+
+/**
+ * A scene graph compiled for ray tracing. The scene graph is walked once,
+ * and every leaf that the ray tracer can intersect is recorded along with its
+ * leaf-to-view transformation, the inverse of it and the matrix that
+ * transforms its normals. These are stored in flat arrays, so that
+ * intersecting a leaf is a lookup and a multiplication, rather than a
+ * matrix inversion per ray. A {@link BVH} is then built over the view
+ * coordinate bounding boxes of these leaves. Leaves that are meshes refer to
+ * a {@link TriangleMesh}, whose own hierarchy is in the mesh's coordinate
+ * system and is shared with every other leaf of the same mesh.
+ *
+ * Subgraphs that are copied several times in the scene graph are not
+ * flattened into this scene. Instead, each of them is compiled once into a
+ * bottom-level scene in its own coordinate system, which is found through
+ * an {@link InstanceTable}, and this top-level scene records an instance of
+ * it with a transformation, just like a leaf.
+ *
+ * Rays are then intersected with this object instead of the root of the scene
+ * graph, so that only leaves whose boxes the ray passes through are tested.
+ * Since the view transformation is baked into it, this object must be brought
+ * up to date whenever the camera or the scene graph changes. If only
+ * transformations have changed, {@link #refit} updates the leaves that moved
+ * and the bounds of the hierarchy, and otherwise it must be rebuilt.
+ * Bottom-level scenes do not depend on the camera, so they are kept by the
+ * instance table and reused.
+ */
+public class RTScene implements BVH.PrimitiveIntersector, BVH.PacketIntersector {
+  private static final float BOUNDS_PADDING = 1e-4f;
+  /**
+   * How much bigger the nodes of a refitted hierarchy may get, by total
+   * surface area, before it is built again
+   */
+  private static final float MAXIMUM_REFIT_GROWTH = 2.0f;
+  /**
+   * How far, relative to the largest entry of its transformation, a leaf may
+   * be from where the camera alone would have moved it in the view, and still
+   * count as still in the world
+   */
+  private static final float WORLD_TOLERANCE = 1e-4f;
+
+  /**
+   * The leaf of each primitive, or null if the primitive is an instance
+   */
+  private LeafNode[] leaves;
+  /**
+   * The triangles of each leaf that is a mesh, null for other primitives
+   */
+  private TriangleMesh[] leafMeshes;
+  /**
+   * The bottom-level scene of each primitive that is an instance, null for
+   * leaves
+   */
+  private RTScene[] bottomLevels;
+  /**
+   * The index of the texture of each leaf, or -1 if it has none or the
+   * primitive is an instance
+   */
+  private int[] textureIndices;
+  private int count;
+  private int instanceCount;
+  private final Map<String, TriangleMesh> meshes;
+  private final Map<String, Integer> textures;
+  /**
+   * The table of copied subgraphs, or null if this is a bottom-level scene
+   */
+  private final InstanceTable instances;
+  /**
+   * The column-major primitive-to-view matrix of each primitive, 16 floats
+   * per primitive
+   */
+  private float[] leafToView;
+  /**
+   * The column-major view-to-primitive matrix of each primitive, 16 floats
+   * per primitive
+   */
+  private float[] viewToLeaf;
+  /**
+   * The row-major 3x3 normal matrix of each primitive, 9 floats per primitive
+   */
+  private float[] normalMatrix;
+  /**
+   * The shape in view coordinates of each leaf that is a sphere or a box
+   * under a transformation that keeps its shape, 6 floats per primitive, as
+   * {@link LeafNode#getViewShape} finds it. Other primitives have NaN as the
+   * first value, and are tested through their matrices.
+   */
+  private float[] viewShapes;
+  /**
+   * The view coordinate bounding box of each primitive, 6 floats per
+   * primitive
+   */
+  private float[] bounds;
+  private Vector4f minBounds, maxBounds;
+  private BVH bvh;
+  /**
+   * While refitting, the index of the next primitive that the scene graph
+   * should report, how many of them moved, and whether the scene graph
+   * reported something else
+   */
+  private boolean refitting;
+  private int refitIndex;
+  private int moved;
+  private boolean mismatched;
+  private final float[] transformScratch = new float[16];
+  /**
+   * The world-to-view transformation this scene was last built or refitted
+   * with, and while refitting, the transformation from the last view to the
+   * new one and how many primitives moved in the world rather than only
+   * with the camera
+   */
+  private final Matrix4f camera;
+  private final float[] cameraDelta = new float[16];
+  private int worldMoved;
+
+  /**
+   * Flatten the scene graph rooted at the given node and build its hierarchy.
+   * Leaves that are meshes are left out.
+   *
+   * @param root      the root of the scene graph
+   * @param modelView the modelview stack, whose top is the world-to-view
+   *                  transformation
+   */
+  public RTScene(INode root, Stack<Matrix4f> modelView) {
+    this(root, modelView, Collections.<String, TriangleMesh>emptyMap(),
+            Collections.<String, Integer>emptyMap(), null);
+  }
+
+  /**
+   * Flatten the scene graph rooted at the given node and build its hierarchy.
+   *
+   * @param root      the root of the scene graph
+   * @param modelView the modelview stack, whose top is the world-to-view
+   *                  transformation
+   * @param meshes    the triangles of each mesh, by the name of its object
+   *                  instance
+   * @param textures  the index of each texture, by its name, which is what
+   *                  hits report
+   * @param instances the table of copied subgraphs, which are traced as
+   *                  instances of bottom-level scenes, or null to flatten
+   *                  every subgraph into this scene
+   */
+  RTScene(INode root, Stack<Matrix4f> modelView, Map<String, TriangleMesh> meshes,
+          Map<String, Integer> textures, InstanceTable instances) {
+    this.meshes = meshes;
+    this.textures = textures;
+    this.instances = instances;
+    int capacity = 16;
+    leaves = new LeafNode[capacity];
+    leafMeshes = new TriangleMesh[capacity];
+    bottomLevels = new RTScene[capacity];
+    textureIndices = new int[capacity];
+    leafToView = new float[16 * capacity];
+    viewToLeaf = new float[16 * capacity];
+    normalMatrix = new float[9 * capacity];
+    viewShapes = new float[6 * capacity];
+    bounds = new float[6 * capacity];
+    count = 0;
+    instanceCount = 0;
+    camera = new Matrix4f(modelView.peek());
+
+    if (instances != null) {
+      instances.update(root);
+    }
+    root.flatten(modelView, this);
+    bvh = new BVH(bounds, count);
+    updateBounds();
+  }
+
+  /**
+   * Bring this scene up to date with the scene graph, which it was built from
+   * and which has since been changed or is seen from another camera, without
+   * building it again. This only works if the scene graph still has the same
+   * leaves and copied subgraphs in the same order, with the same meshes, so
+   * that only their transformations may have changed. The leaves that moved
+   * are transformed again and the bounds of the hierarchy are refitted over
+   * them, and the hierarchy is only built again if it has become too loose.
+   *
+   * @param root      the root of the scene graph
+   * @param modelView the modelview stack, whose top is the world-to-view
+   *                  transformation
+   * @return true if the scene was brought up to date, false if the leaves of
+   * the scene graph have changed, in which case the scene must be built again
+   * and this one is no longer usable
+   */
+  boolean refit(INode root, Stack<Matrix4f> modelView) {
+    if (instances != null) {
+      instances.update(root);
+    }
+    refitting = true;
+    refitIndex = 0;
+    moved = 0;
+    worldMoved = 0;
+    mismatched = false;
+    new Matrix4f(modelView.peek()).mul(new Matrix4f(camera).invert()).get(cameraDelta);
+    camera.set(modelView.peek());
+    try {
+      root.flatten(modelView, this);
+    } finally {
+      refitting = false;
+    }
+    if (mismatched || (refitIndex != count)) {
+      return false;
+    }
+    if (moved > 0) {
+      if (bvh.refit(bounds) > MAXIMUM_REFIT_GROWTH) {
+        bvh = new BVH(bounds, count);
+      }
+      updateBounds();
+    }
+    return true;
+  }
+
+  /**
+   * Get the number of leaves and instances that moved in the last call to
+   * {@link #refit}
+   */
+  int getMovedCount() {
+    return moved;
+  }
+
+  /**
+   * Get the number of leaves and instances that moved in the world in the
+   * last call to {@link #refit}, rather than only in the view because the
+   * camera moved
+   */
+  int getWorldMovedCount() {
+    return worldMoved;
+  }
+
+  private void updateBounds() {
+    if (count > 0) {
+      minBounds = new Vector4f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+              Float.POSITIVE_INFINITY, 1);
+      maxBounds = new Vector4f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+              Float.NEGATIVE_INFINITY, 1);
+      for (int i = 0; i < count; i++) {
+        int b = 6 * i;
+        minBounds.set(Math.min(minBounds.x, bounds[b]),
+                Math.min(minBounds.y, bounds[b + 1]),
+                Math.min(minBounds.z, bounds[b + 2]), 1);
+        maxBounds.set(Math.max(maxBounds.x, bounds[b + 3]),
+                Math.max(maxBounds.y, bounds[b + 4]),
+                Math.max(maxBounds.z, bounds[b + 5]), 1);
+      }
+    }
+  }
+
+  /**
+   * Record a leaf of the scene graph. This is called by {@link
+   * INode#flatten(Stack, RTScene)}. Leaves that the ray tracer cannot
+   * intersect are ignored.
+   *
+   * @param leaf      the leaf
+   * @param transform the leaf-to-view transformation of the leaf
+   */
+  void addLeaf(LeafNode leaf, Matrix4f transform) {
+    TriangleMesh mesh = null;
+    Vector4f min, max;
+    if (leaf.isMesh()) {
+      mesh = meshes.get(leaf.getInstanceName());
+      if (mesh == null) {
+        return;
+      }
+      min = mesh.getMinimumBounds();
+      max = mesh.getMaximumBounds();
+    } else {
+      min = leaf.getMinimumBounds();
+      max = leaf.getMaximumBounds();
+    }
+    if ((min == null) || (max == null)) {
+      return;
+    }
+    addPrimitive(leaf, mesh, null, transform, min, max);
+  }
+
+  /**
+   * Record the subgraph rooted at the given node as an instance of a
+   * bottom-level scene, if it is copied elsewhere in the scene graph. This is
+   * called by {@link INode#flatten(Stack, RTScene)} before it recurses.
+   *
+   * @param node      the root of the subgraph
+   * @param transform the transformation from the coordinate system of the
+   *                  node to the view
+   * @return true if the subgraph was recorded, and so must not be flattened
+   */
+  boolean addInstance(INode node, Matrix4f transform) {
+    if (instances == null) {
+      return false;
+    }
+    RTScene bottom = instances.getBottomLevel(node);
+    if (bottom == null) {
+      return false;
+    }
+    if (bottom.count > 0) {
+      addPrimitive(null, null, bottom, transform, bottom.minBounds, bottom.maxBounds);
+      if (!refitting) {
+        instanceCount++;
+      }
+    }
+    return true;
+  }
+
+  private void addPrimitive(LeafNode leaf, TriangleMesh mesh, RTScene bottom,
+                            Matrix4f transform, Vector4f min, Vector4f max) {
+    if (refitting) {
+      refitPrimitive(leaf, mesh, bottom, transform, min, max);
+      return;
+    }
+    int index = count;
+    if (index == leaves.length) {
+      int capacity = 2 * leaves.length;
+      leaves = Arrays.copyOf(leaves, capacity);
+      leafMeshes = Arrays.copyOf(leafMeshes, capacity);
+      bottomLevels = Arrays.copyOf(bottomLevels, capacity);
+      textureIndices = Arrays.copyOf(textureIndices, capacity);
+      leafToView = Arrays.copyOf(leafToView, 16 * capacity);
+      viewToLeaf = Arrays.copyOf(viewToLeaf, 16 * capacity);
+      normalMatrix = Arrays.copyOf(normalMatrix, 9 * capacity);
+      viewShapes = Arrays.copyOf(viewShapes, 6 * capacity);
+      bounds = Arrays.copyOf(bounds, 6 * capacity);
+    }
+
+    place(index, leaf, transform, min, max);
+    leaves[index] = leaf;
+    leafMeshes[index] = mesh;
+    bottomLevels[index] = bottom;
+    Integer texture = (leaf != null) ? textures.get(leaf.getTextureName()) : null;
+    textureIndices[index] = (texture != null) ? texture : -1;
+    count++;
+  }
+
+  /**
+   * Check that the primitive the scene graph reports next while refitting is
+   * the one recorded there, and move it if its transformation has changed
+   */
+  private void refitPrimitive(LeafNode leaf, TriangleMesh mesh, RTScene bottom,
+                              Matrix4f transform, Vector4f min, Vector4f max) {
+    int index = refitIndex++;
+    if (mismatched || (index >= count) || (leaves[index] != leaf)
+            || (leafMeshes[index] != mesh) || (bottomLevels[index] != bottom)) {
+      mismatched = true;
+      return;
+    }
+    transform.get(transformScratch);
+    if (!followsCamera(16 * index, transformScratch)) {
+      worldMoved++;
+    }
+    for (int i = 0; i < 16; i++) {
+      if (transformScratch[i] != leafToView[16 * index + i]) {
+        place(index, leaf, transform, min, max);
+        moved++;
+        break;
+      }
+    }
+    Integer texture = (leaf != null) ? textures.get(leaf.getTextureName()) : null;
+    textureIndices[index] = (texture != null) ? texture : -1;
+  }
+
+  /**
+   * Whether the new leaf-to-view transformation of the primitive whose old
+   * one starts at the given offset is the old one moved by the camera alone
+   */
+  private boolean followsCamera(int offset, float[] transform) {
+    float[] d = cameraDelta;
+    float[] m = leafToView;
+    float scale = 0;
+    for (int i = 0; i < 16; i++) {
+      scale = Math.max(scale, Math.abs(transform[i]));
+    }
+    for (int c = 0; c < 4; c++) {
+      for (int r = 0; r < 4; r++) {
+        float expected = d[r] * m[offset + 4 * c] + d[4 + r] * m[offset + 4 * c + 1]
+                + d[8 + r] * m[offset + 4 * c + 2] + d[12 + r] * m[offset + 4 * c + 3];
+        if (Math.abs(expected - transform[4 * c + r]) > WORLD_TOLERANCE * scale) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Record the transformations, view bounds and view shape of the primitive
+   * at the given index
+   */
+  private void place(int index, LeafNode leaf, Matrix4f transform, Vector4f min,
+                     Vector4f max) {
+    //the view bounds are the bounds of the eight transformed corners
+    int b = 6 * index;
+    for (int k = 0; k < 3; k++) {
+      bounds[b + k] = Float.POSITIVE_INFINITY;
+      bounds[b + 3 + k] = Float.NEGATIVE_INFINITY;
+    }
+    Vector4f corner = new Vector4f();
+    for (int c = 0; c < 8; c++) {
+      corner.set((c & 1) == 0 ? min.x : max.x,
+              (c & 2) == 0 ? min.y : max.y,
+              (c & 4) == 0 ? min.z : max.z,
+              1);
+      transform.transform(corner);
+      bounds[b] = Math.min(bounds[b], corner.x);
+      bounds[b + 1] = Math.min(bounds[b + 1], corner.y);
+      bounds[b + 2] = Math.min(bounds[b + 2], corner.z);
+      bounds[b + 3] = Math.max(bounds[b + 3], corner.x);
+      bounds[b + 4] = Math.max(bounds[b + 4], corner.y);
+      bounds[b + 5] = Math.max(bounds[b + 5], corner.z);
+    }
+
+    //pad the box slightly, so that rays grazing a face are still handed to
+    //the leaf, which decides with its own tolerances
+    float pad = BOUNDS_PADDING * Math.max(bounds[b + 3] - bounds[b],
+            Math.max(bounds[b + 4] - bounds[b + 1], bounds[b + 5] - bounds[b + 2]));
+    for (int k = 0; k < 3; k++) {
+      bounds[b + k] -= pad;
+      bounds[b + 3 + k] += pad;
+    }
+
+    transform.get(leafToView, 16 * index);
+    new Matrix4f(transform).invert().get(viewToLeaf, 16 * index);
+    LeafNode.getNormalMatrix(viewToLeaf, 16 * index, normalMatrix, 9 * index);
+    if ((leaf == null) || !leaf.getViewShape(transform, viewShapes, 6 * index)) {
+      viewShapes[6 * index] = Float.NaN;
+    }
+  }
+
+  /**
+   * Get the number of leaves and instances that rays are intersected with at
+   * the top level of this scene
+   */
+  public int getLeafCount() {
+    return count;
+  }
+
+  /**
+   * Whether the color of a hit on the given primitive depends on where it is
+   * seen from, because it is a leaf with specular highlights, reflections or
+   * refractions, or an instance, whose leaves are not looked into
+   */
+  boolean isViewDependent(int primitive) {
+    LeafNode leaf = leaves[primitive];
+    Material material = (leaf != null) ? leaf.getMaterial() : null;
+    if (material == null) {
+      return true;
+    }
+    Vector4f specular = material.getSpecular();
+    return (specular.x > 0) || (specular.y > 0) || (specular.z > 0)
+            || (material.getReflection() > 0) || (material.getTransparency() > 0);
+  }
+
+  /**
+   * Get the number of instances of bottom-level scenes in this scene
+   */
+  public int getInstanceCount() {
+    return instanceCount;
+  }
+
+  /**
+   * Intersect the given ray in view coordinates with the scene, and populate
+   * the supplied hit record with the closest hit
+   */
+  public void intersect(Ray rayView, HitRecord hitRecord) {
+    intersect(rayView, hitRecord, TraceContext.forThread());
+  }
+
+  /**
+   * Intersect the given ray in view coordinates with the scene without
+   * allocating, using the scratch state of the given context
+   */
+  void intersect(Ray rayView, HitRecord hitRecord, TraceContext context) {
+    bvh.intersect(rayView, hitRecord, this, context.traversal, context);
+  }
+
+  /**
+   * Determine whether the given ray in view coordinates hits anything in the
+   * scene before the given time, stopping at the first hit found
+   */
+  boolean occluded(Ray rayView, float maximumTime, TraceContext context) {
+    return bvh.occluded(rayView, maximumTime, this, context.traversal, context);
+  }
+
+  /**
+   * Find the closest hit of every ray of the packet, in view coordinates.
+   * Only the time and the primitive of each hit are found, and the rest of
+   * the hit of a ray is found by intersecting it again with just that
+   * primitive.
+   */
+  void intersect(RayPacket packet, TraceContext context) {
+    bvh.intersect(packet, this, context.traversal, context);
+  }
+
+  /**
+   * Find the rays of the packet, in view coordinates, that hit anything in
+   * the scene before their time, and give them a negative time
+   */
+  void occluded(RayPacket packet, TraceContext context) {
+    bvh.occluded(packet, this, context.traversal, context);
+  }
+
+  /**
+   * Spheres and boxes are tested against the rays of the packet at once,
+   * while meshes and instances go through the hierarchy of their own
+   * triangles or subgraph one ray at a time
+   */
+  @Override
+  public void intersect(int primitive, RayPacket packet, int first, int last,
+                        TraceContext context) {
+    float[] time = packet.time;
+    int[] hits = packet.primitive;
+    if ((bottomLevels[primitive] == null) && leaves[primitive].hitTimes(packet, first, last,
+            viewToLeaf, 16 * primitive, viewShapes, 6 * primitive, context)) {
+      float[] times = packet.hitTime;
+      for (int r = first; r < last; r++) {
+        boolean closer = times[r] < time[r];
+        time[r] = closer ? times[r] : time[r];
+        hits[r] = closer ? primitive : hits[r];
+      }
+      return;
+    }
+
+    Ray ray = context.packetRay;
+    HitRecord hitRecord = context.packetHit;
+    for (int r = first; r < last; r++) {
+      packet.get(r, ray);
+      hitRecord.reset();
+      hitRecord.time = time[r];
+      intersect(primitive, ray, hitRecord, context);
+      if (hitRecord.time < time[r]) {
+        time[r] = hitRecord.time;
+        hits[r] = primitive;
+      }
+    }
+  }
+
+  @Override
+  public void occluded(int primitive, RayPacket packet, int first, int last,
+                       TraceContext context) {
+    float[] time = packet.time;
+    if ((bottomLevels[primitive] == null) && leaves[primitive].hitTimes(packet, first, last,
+            viewToLeaf, 16 * primitive, viewShapes, 6 * primitive, context)) {
+      float[] times = packet.hitTime;
+      for (int r = first; r < last; r++) {
+        time[r] = (times[r] < time[r]) ? -1 : time[r];
+      }
+      return;
+    }
+
+    Ray ray = context.packetRay;
+    for (int r = first; r < last; r++) {
+      if (time[r] >= 0) {
+        packet.get(r, ray);
+        if (occluded(primitive, ray, time[r], context)) {
+          time[r] = -1;
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean occluded(int primitive, Ray rayView, float maximumTime, TraceContext context) {
+    RTScene bottom = bottomLevels[primitive];
+    if (bottom != null) {
+      context.statistics.tests[RTStatistics.INSTANCE]++;
+      Ray rayInstance = context.instanceRay;
+      transform(rayView, viewToLeaf, 16 * primitive, rayInstance);
+      return bottom.bvh.occluded(rayInstance, maximumTime, bottom,
+              context.instanceTraversal, context);
+    }
+    return leaves[primitive].occluded(rayView, viewToLeaf, 16 * primitive,
+            leafMeshes[primitive], viewShapes, 6 * primitive, maximumTime, context);
+  }
+
+  @Override
+  public void intersect(int primitive, Ray rayView, HitRecord hitRecord, TraceContext context) {
+    RTScene bottom = bottomLevels[primitive];
+    if (bottom == null) {
+      float time = hitRecord.time;
+      leaves[primitive].intersect(rayView, viewToLeaf, 16 * primitive,
+              normalMatrix, 9 * primitive, leafMeshes[primitive], viewShapes, 6 * primitive,
+              hitRecord, context);
+      if (hitRecord.time < time) {
+        hitRecord.texture = textureIndices[primitive];
+        hitRecord.primitive = primitive;
+      }
+      return;
+    }
+
+    //the bottom-level scene reports the hit in its own coordinate system, so
+    //move it to the view
+    context.statistics.tests[RTStatistics.INSTANCE]++;
+    Ray rayInstance = context.instanceRay;
+    transform(rayView, viewToLeaf, 16 * primitive, rayInstance);
+    float time = hitRecord.time;
+    bottom.bvh.intersect(rayInstance, hitRecord, bottom, context.instanceTraversal, context);
+    if (hitRecord.time >= time) {
+      return;
+    }
+    hitRecord.primitive = primitive;
+
+    float t = hitRecord.time;
+    hitRecord.point.set(rayView.start.x + t * rayView.direction.x,
+            rayView.start.y + t * rayView.direction.y,
+            rayView.start.z + t * rayView.direction.z,
+            1);
+
+    float[] n = normalMatrix;
+    int no = 9 * primitive;
+    float nx = hitRecord.normal.x, ny = hitRecord.normal.y, nz = hitRecord.normal.z;
+    float vx = n[no] * nx + n[no + 1] * ny + n[no + 2] * nz;
+    float vy = n[no + 3] * nx + n[no + 4] * ny + n[no + 5] * nz;
+    float vz = n[no + 6] * nx + n[no + 7] * ny + n[no + 8] * nz;
+    float invLength = 1.0f / (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+    hitRecord.normal.set(vx * invLength, vy * invLength, vz * invLength, 0.0f);
+    hitRecord.textureDensity *= LeafNode.surfaceScale(n, no, invLength);
+  }
+
+  /**
+   * Transform a ray by the given column-major affine matrix. Times along the
+   * ray are the same before and after.
+   */
+  private static void transform(Ray ray, float[] m, int o, Ray result) {
+    float sx = ray.start.x, sy = ray.start.y, sz = ray.start.z, sw = ray.start.w;
+    float dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+    float dw = ray.direction.w;
+    result.set(m[o] * sx + m[o + 4] * sy + m[o + 8] * sz + m[o + 12] * sw,
+            m[o + 1] * sx + m[o + 5] * sy + m[o + 9] * sz + m[o + 13] * sw,
+            m[o + 2] * sx + m[o + 6] * sy + m[o + 10] * sz + m[o + 14] * sw,
+            m[o] * dx + m[o + 4] * dy + m[o + 8] * dz + m[o + 12] * dw,
+            m[o + 1] * dx + m[o + 5] * dy + m[o + 9] * dz + m[o + 13] * dw,
+            m[o + 2] * dx + m[o + 6] * dy + m[o + 10] * dz + m[o + 14] * dw);
+  }
+}
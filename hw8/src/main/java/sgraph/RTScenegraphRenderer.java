@@ -5,39 +5,263 @@ import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Stack;
-import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.imageio.ImageIO;
 
+import util.IVertexData;
 import util.Light;
 import util.Material;
 import util.PolygonMesh;
-import util.TextureImage;
 
 /**
  * Created by ashesh on 4/12/2016.
  */
 public class RTScenegraphRenderer implements IScenegraphRenderer {
-    private List<Light> lights;
     /**
-     * A map to store all the textures
+     * The lights in view coordinates, copied into flat arrays at the start of
+     * each render
      */
-    private Map<String, TextureImage> textures;
+    private int lightCount;
+    private float[] lightPosition;
+    private float[] lightAmbient, lightDiffuse, lightSpecular;
+    private float[] lightSpotDirection;
+    private float[] lightCosSpotCutoff;
+    /**
+     * The shape of each light, like {@link #LIGHT_POINT}, the two edges of
+     * each rectangle, 6 floats per light, and the radius of each sphere
+     */
+    private byte[] lightShape;
+    private float[] lightEdges;
+    private float[] lightRadius;
+    /**
+     * The lights arranged so that those that cannot reach a point are skipped
+     * without looking at them, and how many of them to pick at random for
+     * each point instead of shading all of them, or 0 to shade all of them
+     */
+    private LightTree lightTree;
+    private int lightSamples;
+    /**
+     * How far apart, in pixels, the points whose shadow rays are kept for
+     * shading the points around them are, or 0 to trace the shadow rays of
+     * every point
+     */
+    private float shadingCacheSpacing;
+    /**
+     * The number of photons emitted from the lights for the caustics of each
+     * image, or 0 for none, and how many of them light each point
+     */
+    private int causticPhotons;
+    private int causticGather;
+    /**
+     * The textures, and the index of each in that list by its name. Scenes are
+     * compiled with the indices, so that hits refer to their textures without
+     * looking up names.
+     */
+    private List<MipmappedTexture> textures;
+    private Map<String, Integer> textureIndices;
+    /**
+     * The triangles of every mesh, built once and shared by all leaves that
+     * are instances of it
+     */
+    private Map<String, TriangleMesh> meshes;
+    /**
+     * The subgraphs that are copied in the scene graph, and the bottom-level
+     * scenes built for them, kept from one render to the next
+     */
+    private InstanceTable instances;
+
+    /**
+     * The pool of worker threads that trace the tiles of the image
+     */
+    private ForkJoinPool pool;
+    /**
+     * The context that each worker thread traces its tiles with, which is
+     * started afresh for each tile
+     */
+    private final ThreadLocal<TraceContext> contexts =
+            ThreadLocal.withInitial(() -> new TraceContext(MAXIMUM_DEPTH));
 
     private static final float FUDGE = 0.05f;
-    private static final int MAXIMUM_BOUNCE_THRESHOLD = 5;
+    /**
+     * The smallest cosine of the angle between a ray and a surface that the
+     * footprint of the ray is stretched for, so that it stays finite at
+     * grazing angles
+     */
+    private static final float MINIMUM_FOOTPRINT_COSINE = 0.05f;
+    /**
+     * Reflected and refracted rays are traced until what they can add to the
+     * pixel is below this, which is half a step of an 8-bit channel
+     */
+    private static final float MINIMUM_CONTRIBUTION = 0.5f / 255;
+    /**
+     * Rays that add less than this to the pixel survive Russian roulette
+     * with a probability in proportion to it, if that is turned on
+     */
+    private static final float ROULETTE_CONTRIBUTION = 0.1f;
+    /**
+     * The deepest a ray tree can ever go, whatever its contribution, which is
+     * only reached between perfect mirrors
+     */
+    private static final int MAXIMUM_DEPTH = 24;
+    /**
+     * The width and height of the square tiles that the image is divided into.
+     * Each tile is traced by a single worker at a time
+     */
+    private static final int TILE_SIZE = 32;
+    /**
+     * The width and height of the square batches of pixels that a tile is
+     * traced in. The pixels of a batch are traced row by row, so that rays
+     * traced one after another are close together.
+     */
+    private static final int BATCH_SIZE = 8;
+    /**
+     * The order that tiles, and the batches inside each tile, are traced in
+     */
+    private TileOrder tileOrder;
+    /**
+     * Whether the primary rays of each batch, and their shadow rays to each
+     * light, are traced together as packets
+     */
+    private boolean packetTracing;
+    /**
+     * What a shadow packet found about a light and a primary ray: nothing,
+     * because no shadow ray was traced, or that the light reaches its hit or
+     * is blocked
+     */
+    private static final byte SHADOW_UNKNOWN = 0;
+    private static final byte SHADOW_LIT = 1;
+    private static final byte SHADOW_BLOCKED = 2;
+    /**
+     * The shapes of lights
+     */
+    private static final byte LIGHT_POINT = 0;
+    private static final byte LIGHT_RECTANGLE = 1;
+    private static final byte LIGHT_SPHERE = 2;
+    /**
+     * An area light is first sampled by one shadow ray in each cell of a
+     * grid of this many cells a side over it, and only if those disagree, in
+     * a penumbra, by one in each cell of the finer grid
+     */
+    private static final int AREA_LIGHT_STRATA = 2;
+    private static final int AREA_LIGHT_PENUMBRA_STRATA = 6;
+    /**
+     * How much finer each pass of a progressive image is than the last
+     */
+    private static final int PREVIEW_REFINEMENT = 4;
+    private int previewStep;
+    private int width, height;
+    private float FOVY;
+    private String outputPath, outputFormat;
+    /**
+     * The relative difference in depth beyond which neighboring pixels are
+     * taken to be on different surfaces
+     */
+    private static final float ANTIALIAS_DEPTH_THRESHOLD = 0.05f;
+    private int antialiasSamples;
+    private float antialiasThreshold;
+    /**
+     * How far, relative to its distance from the camera, a light may be from
+     * where the camera alone would have moved it since the last image, and
+     * still let that image be reused
+     */
+    private static final float LIGHT_TOLERANCE = 1e-4f;
+    /**
+     * The farthest that photons are gathered from a point, relative to the
+     * size of the box around all of them
+     */
+    private static final float CAUSTIC_RADIUS = 0.02f;
+    /**
+     * The number of photons that a worker emits from a light at a time, each
+     * with random numbers seeded by its place among them, so that the photons
+     * are the same however many workers there are
+     */
+    private static final int PHOTON_CHUNK = 4096;
+    /**
+     * How traced colors are mapped to the colors of the image
+     */
+    private ToneMapper toneMapper;
+    private float gamma;
+    private boolean russianRoulette;
+    /**
+     * The image prepared by {@link #prepareFrame}, whose regions are traced
+     * by {@link #traceRegion}
+     */
+    private Frame preparedFrame;
+    /**
+     * The scene compiled for the last image, and the root it was compiled
+     * from. The next image of the same root refits it if it can.
+     */
+    private RTScene compiledScene;
+    private INode compiledRoot;
+    private boolean sceneRebuilt;
+    /**
+     * The image compiled last, whose statistics and heatmap are reported
+     */
+    private Frame lastFrame;
+    /**
+     * The last image that was traced completely, which {@link #rewrite} tone
+     * maps again
+     */
+    private Frame tracedFrame;
+    /**
+     * The last draft, whose buffers the next draft of the same size reuses,
+     * since drafts follow each other quickly while the camera moves
+     */
+    private Frame draftFrame;
+    /**
+     * Whether each image takes the colors of the last complete image where
+     * both see the same surfaces, that image, if nothing but the camera has
+     * moved since, and the camera that the scene was last compiled with
+     */
+    private boolean temporalReuse;
+    private Frame history;
+    private Matrix4f compiledCamera;
 
     public RTScenegraphRenderer() {
-        textures = new TreeMap<String,TextureImage>();
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a renderer that traces tiles of the image on the given number of
+     * worker threads
+     *
+     * @param parallelism the number of worker threads
+     */
+    public RTScenegraphRenderer(int parallelism) {
+        textures = new ArrayList<MipmappedTexture>();
+        textureIndices = new HashMap<String, Integer>();
+        meshes = new HashMap<String, TriangleMesh>();
+        instances = new InstanceTable(meshes, textureIndices);
+        pool = new ForkJoinPool(parallelism);
+        previewStep = 1;
+        width = 800;
+        height = 800;
+        FOVY = 120.0f;
+        outputPath = "output/raytrace.png";
+        outputFormat = "png";
+        antialiasSamples = 1;
+        antialiasThreshold = 0.1f;
+        toneMapper = ToneMapper.CLAMP;
+        gamma = 1.0f;
+        tileOrder = TileOrder.ROWS;
     }
 
     @Override
@@ -57,9 +281,17 @@ public class RTScenegraphRenderer implements IScenegraphRenderer {
 
     }
 
+    /**
+     * Prepare the triangles of the given mesh for ray tracing. The scene graph
+     * adds its meshes every time it is ray traced, so a mesh is only rebuilt
+     * if the name now refers to a different mesh.
+     */
     @Override
-    public void addMesh(String name, PolygonMesh mesh) throws Exception {
-
+    public <K extends IVertexData> void addMesh(String name, PolygonMesh<K> mesh) throws Exception {
+        TriangleMesh triangles = meshes.get(name);
+        if ((triangles == null) || !triangles.isBuiltFrom(mesh)) {
+            meshes.put(name, new TriangleMesh(mesh));
+        }
     }
 
     public void initLightsInShader(List<Light> lights) {
@@ -68,218 +300,2021 @@ public class RTScenegraphRenderer implements IScenegraphRenderer {
 
     @Override
     public void draw(INode root, Stack<Matrix4f> modelView) {
-        int i,j;
-        int width = 800;
-        int height = 800;
-        float FOVY = 120.0f;
-        Ray rayView = new Ray();
+        draw(root, modelView, null, new AtomicBoolean(false));
+    }
 
-        this.lights = root.getLightsInView(modelView);
+    /**
+     * Ray trace the scene graph and write the image to a file, reporting
+     * tiles to the given listener as they are traced. If a preview step has
+     * been set, the image is first traced coarsely and then refined in passes.
+     *
+     * @param root      the root of the scene graph
+     * @param modelView the modelview stack, whose top is the world-to-view
+     *                  transformation
+     * @param listener  the listener to report tiles to, or null
+     * @param cancelled a flag that stops the trace as soon as it is set.
+     *                  Tiles that have started are finished, but nothing is
+     *                  written.
+     * @return true if the image was traced completely, false if it was
+     * cancelled
+     */
+    public boolean draw(INode root, Stack<Matrix4f> modelView,
+                        RTRenderListener listener, AtomicBoolean cancelled) {
+        return render(compile(root, modelView, null, true), listener, cancelled);
+    }
 
-        BufferedImage output = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+    /**
+     * Ray trace a quick draft of the scene graph, like the first pass of a
+     * progressive image, to show while the camera moves. Only one pixel in
+     * every step x step block is traced, with one ray, and fills its block,
+     * so the draft is an image of a fraction of the resolution scaled up.
+     * Nothing is antialiased or written to the output file, and no photons
+     * are emitted for caustics.
+     *
+     * @param root      the root of the scene graph
+     * @param modelView the modelview stack, whose top is the world-to-view
+     *                  transformation
+     * @param step      the size of the blocks, rounded down to a power of two
+     *                  no bigger than a tile
+     * @param listener  the listener to report tiles to, or null
+     * @param cancelled a flag that stops the trace as soon as it is set
+     * @return true if the draft was traced completely, false if it was
+     * cancelled
+     */
+    public boolean drawDraft(INode root, Stack<Matrix4f> modelView, int step,
+                             RTRenderListener listener, AtomicBoolean cancelled) {
+        Frame frame = compile(root, modelView, draftFrame, false);
+        draftFrame = frame;
+        long start = System.nanoTime();
+        try {
+            step = Integer.highestOneBit(Math.max(1, Math.min(step, TILE_SIZE)));
+            int tiles = frame.tilesX * frame.tilesY;
+            if (listener != null) {
+                listener.passStarted(0, 1, tiles);
+            }
+            Pass draft = new Pass(frame, 0, step, 0, false, listener, cancelled);
+            pool.invoke(new TileTask(draft, 0, tiles));
+            if (cancelled.get()) {
+                return false;
+            }
+            resolve(frame, 0, 0, frame.width, frame.height);
+            return true;
+        } finally {
+            frame.statistics.addTime(frame.width, frame.height, System.nanoTime() - start);
+        }
+    }
 
-        rayView.start = new Vector4f(0,0,0,1);
-        for (i=0;i<width;i++)
-        {
-            for (j=0;j<height;j++)
-            {
-                /*
-                 create ray in view coordinates
-                 start point: 0,0,0 always!
-                 going through near plane pixel (i,j)
-                 So 3D location of that pixel in view coordinates is
-                 x = i-width/2
-                 y = j-height/2
-                 z = -0.5*height/tan(FOVY)
-                */
-                rayView.direction = new Vector4f(i-0.5f*width,
-                        j-0.5f*height,
-                        -0.5f*height/(float)Math.tan(Math.toRadians(0.5*FOVY)),
-                        0.0f);
+    /**
+     * Ray trace a sequence of frames of an animated scene graph, writing each
+     * to its own file in the format set by {@link #setOutput}. The scene graph
+     * is compiled for the first frame, and for later frames only the leaves
+     * whose transformations changed are updated and the bounds of the
+     * hierarchy refitted over them. It is compiled again only when nodes are
+     * added or removed, or the hierarchy has become too loose.
+     *
+     * @param root          the root of the scene graph
+     * @param first         the number of the first frame
+     * @param last          the number of the last frame, inclusive
+     * @param animation     poses the scene graph for each frame and gives its
+     *                      camera
+     * @param outputPattern the file of each frame, as a pattern of {@link
+     *                      String#format} with the frame number, like
+     *                      "output/frame-%04d.png"
+     */
+    public void drawSequence(INode root, int first, int last, RTAnimation animation,
+                             String outputPattern) {
+        String path = outputPath;
+        try {
+            for (int frame = first; frame <= last; frame++) {
+                Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+                modelView.push(new Matrix4f(animation.animate(frame)));
+                outputPath = String.format(outputPattern, frame);
+                File parent = new File(outputPath).getAbsoluteFile().getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
 
-                HitRecord hitR = new HitRecord();
-                Color color = raycast(rayView, root, modelView, hitR, 0);
+                long start = System.nanoTime();
+                Frame compiled = compile(root, modelView, null, true);
+                float compileSeconds = (System.nanoTime() - start) / 1e9f;
+                render(compiled, null, new AtomicBoolean(false));
+                animation.frameFinished(frame, sceneRebuilt, compileSeconds,
+                        (System.nanoTime() - start) / 1e9f);
+            }
+        } finally {
+            outputPath = path;
+        }
+    }
 
-                output.setRGB(i,height-1-j,color.getRGB());
+    /**
+     * Trace a compiled image in passes and write it to the output file. Only
+     * the passes are timed, not the writing of the image.
+     */
+    private boolean render(Frame frame, RTRenderListener listener, AtomicBoolean cancelled) {
+        long start = System.nanoTime();
+        boolean finished;
+        try {
+            finished = trace(frame, listener, cancelled);
+        } finally {
+            frame.statistics.addTime(frame.width, frame.height, System.nanoTime() - start);
+        }
+        if (finished) {
+            tracedFrame = frame;
+            write(frame);
+        }
+        return finished;
+    }
+
+    /**
+     * Tone map the last image that was traced completely again, with the
+     * tone mapping set now, and write it to the output file. Nothing is
+     * traced again.
+     *
+     * @return true if it was written, false if no image has been traced
+     */
+    public boolean rewrite() {
+        Frame frame = tracedFrame;
+        if (frame == null) {
+            return false;
+        }
+        resolve(frame, 0, 0, frame.width, frame.height);
+        write(frame);
+        return true;
+    }
+
+    private boolean trace(Frame frame, RTRenderListener listener, AtomicBoolean cancelled) {
+        //each pass traces one pixel in every step x step block, and the last
+        //one traces every pixel. Antialiasing adds a pass after that.
+        int passes = 1;
+        for (int step = previewStep; step > 1; step /= PREVIEW_REFINEMENT) {
+            passes++;
+        }
+        boolean antialias = antialiasSamples > 1;
+        if (antialias) {
+            passes++;
+        }
+
+        int step = previewStep;
+        int previousStep = 0;
+        for (int pass = 0; pass < passes; pass++) {
+            if (cancelled.get()) {
+                return false;
+            }
+            boolean antialiasPass = antialias && (pass == passes - 1);
+            if (pass >= passes - (antialias ? 2 : 1)) {
+                step = 1;
             }
+            if (listener != null) {
+                listener.passStarted(pass, passes, frame.tilesX * frame.tilesY);
+            }
+            Pass p = new Pass(frame, pass, step, previousStep, antialiasPass, listener, cancelled);
+            pool.invoke(new TileTask(p, 0, frame.tilesX * frame.tilesY));
+            previousStep = step;
+            step = Math.max(1, step / PREVIEW_REFINEMENT);
+        }
+        if (cancelled.get()) {
+            return false;
         }
+        resolve(frame, 0, 0, frame.width, frame.height);
+        if (temporalReuse) {
+            history = frame;
+        }
+        return true;
+    }
+
+    /**
+     * Write the pixels of an image to the output file
+     */
+    private void write(Frame frame) {
+        if (outputPath == null) {
+            return;
+        }
+        //the pixels are already packed as the raster stores them
+        int width = frame.width, height = frame.height;
+        BufferedImage output = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+        int[] raster = ((DataBufferInt) output.getRaster().getDataBuffer()).getData();
+        System.arraycopy(frame.pixels, 0, raster, 0, raster.length);
 
         OutputStream outStream = null;
 
         try {
-            outStream = new FileOutputStream("output/raytrace.png");
+            outStream = new FileOutputStream(outputPath);
         } catch (FileNotFoundException e) {
             throw new IllegalArgumentException("Could not write raytraced image!");
         }
 
         try {
-            ImageIO.write(output,"png",outStream);
+            boolean written = ImageIO.write(output,outputFormat,outStream);
             outStream.close();
+            if (!written) {
+                throw new IllegalArgumentException("No writer for image format "+outputFormat);
+            }
         } catch (IOException e) {
             throw new IllegalArgumentException("Could not write raytraced image!");
         }
+    }
+
+    /**
+     * Compile the scene graph for the given camera, with the lights of the
+     * scene in view coordinates. The scene of the last image is refitted if it
+     * was compiled from the same root and its leaves are the same.
+     *
+     * @param recycled an image that is no longer needed, whose buffers are
+     *                 reused if it is of the same size, or null
+     * @param caustics whether to emit photons for the caustics of the image,
+     *                 if they are turned on
+     */
+    private Frame compile(INode root, Stack<Matrix4f> modelView, Frame recycled,
+                          boolean caustics) {
+        Matrix4f camera = new Matrix4f(modelView.peek());
+        float[] position = lightPosition, spotDirection = lightSpotDirection, edges = lightEdges;
+        byte[] shapes = lightShape;
+        float[][] unmoved = {lightAmbient, lightDiffuse, lightSpecular, lightCosSpotCutoff,
+                lightRadius};
+        setLights(root.getLightsInView(modelView));
+        sceneRebuilt = (compiledScene == null) || (compiledRoot != root)
+                || !compiledScene.refit(root, modelView);
+        if (sceneRebuilt) {
+            compiledScene = new RTScene(root, modelView, meshes, textureIndices, instances);
+            compiledRoot = root;
+        }
+
+        //the last image can only be reused if nothing but the camera moved
+        if (sceneRebuilt || (compiledScene.getWorldMovedCount() > 0)
+                || !lightsFollowCamera(camera, position, spotDirection, edges, shapes, unmoved)) {
+            history = null;
+        }
+        compiledCamera = camera;
+        Reprojection reprojection = null;
+        if (temporalReuse && (history != null) && (history.width == width)
+                && (history.height == height) && (history.FOVY == FOVY)) {
+            float z = -0.5f*height/(float)Math.tan(Math.toRadians(0.5*FOVY));
+            reprojection = new Reprojection(compiledScene, history.camera, camera, width, height, z,
+                    history.primitives, history.depths, history.colors, history.ages);
+        }
+        long start = System.nanoTime();
+        PhotonMap photons = (caustics && (causticPhotons > 0)) ? emitPhotons(compiledScene) : null;
+        long photonNanos = System.nanoTime() - start;
+        lastFrame = new Frame(compiledScene, camera, width, height, FOVY, tileOrder,
+                reprojection, photons, recycled);
+        if (photons != null) {
+            lastFrame.statistics.addPhotons(photons.getEmittedCount(), photons.getCount(),
+                    photonNanos);
+        }
+        return lastFrame;
+    }
+
+    /**
+     * Whether the lights just set for the given camera are those that were
+     * set for the camera the scene was last compiled with, moved by the
+     * camera alone
+     *
+     * @param position      the old positions of the lights
+     * @param spotDirection the old directions of their spots
+     * @param edges         the old edges of their rectangles
+     * @param shapes        their old shapes
+     * @param unmoved       the old arrays of the lights that do not depend on
+     *                      the camera, in the order of the new ones
+     */
+    private boolean lightsFollowCamera(Matrix4f camera, float[] position, float[] spotDirection,
+                                       float[] edges, byte[] shapes, float[][] unmoved) {
+        if ((compiledCamera == null) || (position == null) || (position.length != lightPosition.length)) {
+            return false;
+        }
+        if (!Arrays.equals(unmoved[0], lightAmbient) || !Arrays.equals(unmoved[1], lightDiffuse)
+                || !Arrays.equals(unmoved[2], lightSpecular)
+                || !Arrays.equals(unmoved[3], lightCosSpotCutoff)
+                || !Arrays.equals(unmoved[4], lightRadius) || !Arrays.equals(shapes, lightShape)) {
+            return false;
+        }
+        Matrix4f delta = new Matrix4f(camera).mul(new Matrix4f(compiledCamera).invert());
+        Vector4f expected = new Vector4f();
+        for (int i = 0; i < lightCount; i++) {
+            expected.set(position[4 * i], position[4 * i + 1], position[4 * i + 2], position[4 * i + 3]);
+            delta.transform(expected);
+            if (!near(expected, lightPosition, 4 * i, 4)) {
+                return false;
+            }
+            if (lightShape[i] == LIGHT_RECTANGLE) {
+                for (int k = 0; k < 6; k += 3) {
+                    expected.set(edges[6 * i + k], edges[6 * i + k + 1], edges[6 * i + k + 2], 0);
+                    delta.transform(expected);
+                    if (!near(expected, lightEdges, 6 * i + k, 3)) {
+                        return false;
+                    }
+                }
+            }
+            //the direction of a light that shines every way does not matter
+            if (lightCosSpotCutoff[i] <= -1) {
+                continue;
+            }
+            expected.set(spotDirection[3 * i], spotDirection[3 * i + 1], spotDirection[3 * i + 2], 0);
+            delta.transform(expected);
+            if (!near(expected, lightSpotDirection, 3 * i, 3)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean near(Vector4f expected, float[] array, int offset, int size) {
+        float tolerance = LIGHT_TOLERANCE * Math.max(1, expected.length());
+        return (Math.abs(expected.x - array[offset]) <= tolerance)
+                && (Math.abs(expected.y - array[offset + 1]) <= tolerance)
+                && (Math.abs(expected.z - array[offset + 2]) <= tolerance)
+                && ((size < 4) || (Math.abs(expected.w - array[offset + 3]) <= tolerance));
+    }
+
+    /**
+     * Get what the ray tracer did to trace the last image, or the regions of
+     * it traced so far, or null if nothing has been traced
+     */
+    public RTStatistics getStatistics() {
+        Frame frame = lastFrame;
+        return (frame != null) ? frame.statistics : null;
+    }
+
+    /**
+     * Get an image of how much each pixel of the last image cost to trace,
+     * counted in intersection tests over all of its rays. Costs are shown on
+     * a logarithmic scale, from black for the cheapest pixel through blue, red
+     * and yellow to white for the most expensive.
+     *
+     * @return the heatmap, or null if nothing has been traced
+     */
+    public BufferedImage getHeatmap() {
+        Frame frame = lastFrame;
+        if (frame == null) {
+            return null;
+        }
+        int maximum = 0;
+        for (int cost : frame.costs) {
+            maximum = Math.max(maximum, cost);
+        }
+        BufferedImage heatmap = new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB);
+        int[] raster = ((DataBufferInt) heatmap.getRaster().getDataBuffer()).getData();
+        double scale = 1.0 / Math.log(1 + Math.max(1, maximum));
+        float[] heat = new float[3];
+        for (int i = 0; i < raster.length; i++) {
+            //black at 0, blue at 1, red at 2, yellow at 3 and white at 4
+            float t = 4 * (float) (Math.log(1 + frame.costs[i]) * scale);
+            heat[0] = Math.max(0, Math.min(1, t - 1));
+            heat[1] = Math.max(0, Math.min(1, t - 2));
+            heat[2] = (t < 1) ? t : (t < 2) ? 2 - t : Math.max(0, Math.min(1, t - 3));
+            raster[i] = ((int) (heat[0] * 255 + 0.5f) << 16)
+                    | ((int) (heat[1] * 255 + 0.5f) << 8)
+                    | (int) (heat[2] * 255 + 0.5f);
+        }
+        return heatmap;
+    }
+
+    /**
+     * Prepare an image of the scene graph from the given camera, so that
+     * parts of it can then be traced one at a time with {@link #traceRegion}.
+     * This lets several processes share the tracing of one image. The image
+     * has the size, field of view and antialiasing set on this renderer.
+     *
+     * @param root      the root of the scene graph
+     * @param modelView the modelview stack, whose top is the world-to-view
+     *                  transformation
+     */
+    public void prepareFrame(INode root, Stack<Matrix4f> modelView) {
+        preparedFrame = compile(root, modelView, null, true);
+    }
+
+    /**
+     * Trace a rectangle of the image prepared by {@link #prepareFrame},
+     * completely and on all the worker threads. The pixels around the
+     * rectangle are traced as well, so that its edges are antialiased as
+     * they would be in the whole image.
+     *
+     * @param x0 the left edge of the rectangle, inclusive
+     * @param y0 the top edge of the rectangle, inclusive
+     * @param x1 the right edge of the rectangle, exclusive
+     * @param y1 the bottom edge of the rectangle, exclusive
+     * @return the RGB pixels of the rectangle, row by row from the top
+     */
+    public int[] traceRegion(int x0, int y0, int x1, int y1) {
+        Frame frame = preparedFrame;
+        if (frame == null) {
+            throw new IllegalStateException("No frame has been prepared");
+        }
+        if ((x0 < 0) || (y0 < 0) || (x1 > frame.width) || (y1 > frame.height)
+                || (x0 >= x1) || (y0 >= y1)) {
+            throw new IllegalArgumentException("Region is not inside the image");
+        }
+
+        //the passes work in view coordinates, from the bottom of the image
+        int bottom = frame.height - y1, top = frame.height - y0;
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        long start = System.nanoTime();
+        int tiles = frame.tilesX * frame.tilesY;
+        Pass trace = new Pass(frame, 0, 1, 0, false, null, cancelled,
+                Math.max(0, x0 - 1), Math.max(0, bottom - 1),
+                Math.min(frame.width, x1 + 1), Math.min(frame.height, top + 1));
+        pool.invoke(new TileTask(trace, 0, tiles));
+        if (antialiasSamples > 1) {
+            Pass antialias = new Pass(frame, 1, 1, 1, true, null, cancelled, x0, bottom, x1, top);
+            pool.invoke(new TileTask(antialias, 0, tiles));
+        }
+        resolve(frame, x0, bottom, x1, top);
+        frame.statistics.addTime(frame.width, frame.height, System.nanoTime() - start);
+
+        int[] pixels = new int[(x1 - x0) * (y1 - y0)];
+        for (int y = y0; y < y1; y++) {
+            System.arraycopy(frame.pixels, y * frame.width + x0, pixels, (y - y0) * (x1 - x0), x1 - x0);
+        }
+        return pixels;
+    }
+
+    /**
+     * Set the size of the ray traced image in pixels
+     */
+    public void setSize(int width, int height) {
+        if ((width <= 0) || (height <= 0)) {
+            throw new IllegalArgumentException("Image size must be positive");
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Set the vertical field of view of the camera, in degrees
+     */
+    public void setFieldOfView(float FOVY) {
+        if ((FOVY <= 0) || (FOVY >= 180)) {
+            throw new IllegalArgumentException("Field of view must be between 0 and 180 degrees");
+        }
+        this.FOVY = FOVY;
+    }
 
+    /**
+     * Set the file that the ray traced image is written to, and its format.
+     * The format is the name of an image format that {@link ImageIO} can
+     * write, like "png", "jpg" or "bmp". If the path is null, images are
+     * traced but not written.
+     */
+    public void setOutput(String path, String format) {
+        outputPath = path;
+        outputFormat = format;
     }
 
-    private Color raycast(Ray rayView, INode root, Stack<Matrix4f> modelView, HitRecord hitRecord, int bounce) {
-        root.intersect(rayView,modelView,hitRecord);
+    /**
+     * Set the size of the blocks that the first, coarse pass of an image
+     * traces one pixel for. Each later pass divides it by 4, until every
+     * pixel is traced. A step of 1 traces every pixel in a single pass. The
+     * step is rounded down to a power of two no bigger than a tile, so that
+     * blocks never straddle tiles.
+     */
+    public void setPreviewStep(int step) {
+        previewStep = Integer.highestOneBit(Math.max(1, Math.min(step, TILE_SIZE)));
+    }
 
-        if (hitRecord.intersected()) {
-            float absorption = hitRecord.material.getAbsorption();
-            Color materialColor = shade(hitRecord.point, hitRecord.normal, hitRecord.material, hitRecord.textureName,
-                    hitRecord.texcoord, root, modelView);
+    /**
+     * Set how pixels on edges are antialiased. After every pixel has been
+     * traced with one ray, a pixel whose color differs from that of a
+     * neighbor by more than the threshold in any channel, or that hit a
+     * different object or a surface at a different depth, is traced again
+     * with samples x samples jittered rays spread over it, which replace its
+     * single ray. Pixels in smooth regions keep their single ray.
+     * Antialiasing is off until it is set.
+     *
+     * @param samples   the number of rays along each side of an edge pixel, or
+     *                  1 to turn antialiasing off
+     * @param threshold the difference in color, from 0 to 1, beyond which
+     *                  neighboring pixels are antialiased
+     */
+    public void setAntialiasing(int samples, float threshold) {
+        antialiasSamples = Math.max(1, samples);
+        antialiasThreshold = threshold;
+    }
 
-            // Reflections
-            if (bounce <= MAXIMUM_BOUNCE_THRESHOLD && hitRecord.material.getReflection() > 0) {
-                Vector4f reflectionRayPosition = new Vector4f(hitRecord.point);
+    /**
+     * Set whether reflected and refracted rays that add little to the image
+     * are traced only at random, with a probability in proportion to what
+     * they add, and weighted to make up for the rays that are not traced.
+     * This saves time in scenes with many layers of glass and mirrors, but
+     * adds noise. Rays that add less than half a step of an 8-bit channel are
+     * never traced either way.
+     */
+    public void setRussianRoulette(boolean russianRoulette) {
+        this.russianRoulette = russianRoulette;
+        history = null;
+    }
 
-                Vector3f rayDirection = new Vector3f(rayView.direction.x, rayView.direction.y, rayView.direction.z);
-                rayDirection.normalize();
-                Vector3f normal = new Vector3f(hitRecord.normal.x, hitRecord.normal.y, hitRecord.normal.z);
-                normal.normalize();
+    /**
+     * Set how many lights to shade each point with. Lights whose spot cannot
+     * reach a point are always skipped. With 0, every other light is shaded,
+     * which is exact. Otherwise, in scenes with more lights than this, that
+     * many lights are picked at random for each point, favoring the brightest
+     * ones that face it, and weighted so that the image is right on average.
+     * This makes shading cost about the same however many lights there are,
+     * but adds noise.
+     */
+    public void setLightSampling(int samples) {
+        lightSamples = Math.max(0, samples);
+        history = null;
+    }
+
+    /**
+     * Set whether points take which lights reach them from the shadow rays
+     * of points close by on the same surface, instead of tracing their own.
+     * Only a few points, about the given number of pixels apart, trace shadow
+     * rays, and everything else is still shaded at every point, so specular
+     * highlights and textures are unchanged. Near the edge of a shadow, where
+     * those points disagree, every point traces its own. This saves most
+     * shadow rays on large surfaces, and on those seen in mirrors, but
+     * shadows narrower than the spacing may be missed. Each tile keeps its
+     * own points, so the image is the same in any tile order.
+     *
+     * @param spacing the distance between the points that trace shadow rays,
+     *                in widths of the pixel where they are, or 0 to trace the
+     *                shadow rays of every point
+     */
+    public void setShadingCache(float spacing) {
+        shadingCacheSpacing = Math.max(0, spacing);
+        history = null;
+    }
 
-                Vector4f reflectionRayDirection = new Vector4f(new Vector3f(rayDirection).reflect(normal), 0);
-                reflectionRayDirection.normalize();
+    /**
+     * Set whether diffuse surfaces are lit by light that mirrors and glass
+     * reflect or refract onto them, in caustics. Before each image, the given
+     * number of photons is emitted from the lights, in parallel, and those
+     * that reach a diffuse surface through mirrors or glass are kept in a
+     * photon map. Each point then adds the light of the photons nearest it.
+     * The more photons are gathered, the smoother and blurrier the caustics.
+     * Drafts are traced without them.
+     *
+     * @param photons the number of photons to emit, or 0 for no caustics
+     * @param gather  the number of photons that light each point
+     */
+    public void setCaustics(int photons, int gather) {
+        if ((photons > 0) && (gather <= 0)) {
+            throw new IllegalArgumentException("Photons must be gathered to light caustics");
+        }
+        causticPhotons = Math.max(0, photons);
+        causticGather = gather;
+        history = null;
+    }
+
+    /**
+     * Set the order that the tiles of an image are handed out to the workers
+     * in, and that the batches of pixels inside each tile are traced in. The
+     * image is the same in any order, unless pixels are traced at random.
+     * Tiles are traced row by row until another order is set.
+     */
+    public void setTileOrder(TileOrder tileOrder) {
+        this.tileOrder = tileOrder;
+    }
 
-                reflectionRayPosition.add(new Vector4f(reflectionRayDirection).mul(FUDGE));
+    /**
+     * Set whether the primary rays of each batch of pixels are traced
+     * together as a packet, and then the shadow rays from their hits to each
+     * light. A packet is tested against each box of the scene at once, and
+     * skips boxes that none of its rays could hit without testing any of
+     * them, which is much cheaper than tracing the rays one at a time when
+     * they are close together. The image is the same either way. Shadow
+     * packets are only traced when every light is shaded, since otherwise
+     * each point picks its own lights.
+     */
+    public void setPacketTracing(boolean packetTracing) {
+        this.packetTracing = packetTracing;
+    }
 
-                Ray reflectionRay = new Ray();
-                reflectionRay.start = reflectionRayPosition;
-                reflectionRay.direction = reflectionRayDirection;
+    /**
+     * Set whether each image reuses the colors of the last complete image,
+     * when nothing but the camera has moved since. The hit of each primary
+     * ray is projected into the last image, and if the pixel there hit the
+     * same leaf at about the same depth, its color is taken instead of
+     * shading the hit again, so only pixels that were hidden or off screen
+     * before, or that see a shiny surface from a different direction, are
+     * shaded. This makes each image of a camera moving in small steps, like
+     * a turntable, cost a fraction of a full image. A color is not reused for
+     * more than a few images in a row, and where it is, the image may differ
+     * slightly from one traced from nothing.
+     */
+    public void setTemporalReuse(boolean temporalReuse) {
+        this.temporalReuse = temporalReuse;
+        history = null;
+    }
 
-                HitRecord reflectionHitRecord = new HitRecord();
+    /**
+     * Set how the traced colors, which are not limited in brightness, are
+     * mapped to the colors of the image. The mapped colors are then raised to
+     * 1/gamma, so a gamma of 1 leaves them as they are. The traced colors
+     * are kept, so {@link #rewrite} can map the last image again.
+     *
+     * @param toneMapper the mapping, like {@link ToneMapper#CLAMP}
+     * @param gamma      the gamma of the display
+     */
+    public void setToneMapping(ToneMapper toneMapper, float gamma) {
+        if (gamma <= 0) {
+            throw new IllegalArgumentException("Gamma must be positive");
+        }
+        this.toneMapper = toneMapper;
+        this.gamma = gamma;
+    }
 
-                float reflection = hitRecord.material.getReflection();
-                Color reflectionColor = raycast(reflectionRay, root, modelView, reflectionHitRecord, bounce + 1);
+    /**
+     * The image being traced, and what the primary ray of each pixel hit. All
+     * arrays are indexed by pixel, row by row from the top of the image.
+     */
+    private static class Frame {
+        final RTScene scene;
+        /**
+         * The world-to-view transformation of the image, and where its
+         * pixels can take the colors of the last image from, or null
+         */
+        final Matrix4f camera;
+        final Reprojection reprojection;
+        /**
+         * The photons that light the caustics of the image, or null
+         */
+        final PhotonMap photons;
+        final int width, height;
+        final float FOVY;
+        final int tilesX, tilesY;
+        /**
+         * The tiles in the order they are traced, and the batches of a whole
+         * tile in the order they are traced
+         */
+        final TileOrder tileOrder;
+        final int[] tiles;
+        final int[] batches;
+        /**
+         * The tone mapped pixels of the image, packed as RGB
+         */
+        final int[] pixels;
+        /**
+         * The color of each pixel before tone mapping, 3 floats per pixel
+         */
+        final float[] radiance;
+        /**
+         * The color of the primary ray of each pixel, 3 floats per pixel
+         */
+        final float[] colors;
+        /**
+         * The leaf that the primary ray of each pixel hit, and when, the
+         * leaf or instance at the top level of the scene that it hit, or -1,
+         * and for how many images in a row its color has been reused
+         */
+        final LeafNode[] leaves;
+        final float[] depths;
+        final int[] primitives;
+        final byte[] ages;
+        /**
+         * The number of intersection tests that the rays of each pixel took
+         */
+        final int[] costs;
+        final RTStatistics statistics;
 
-                return blendColors(absorption, materialColor, reflection, reflectionColor);
+        /**
+         * The buffers of the recycled image are reused if it is of the same
+         * size. Every pixel that a pass traces overwrites what they held, so
+         * only the costs, which the heatmap reads for every pixel, are
+         * cleared.
+         */
+        Frame(RTScene scene, Matrix4f camera, int width, int height, float FOVY,
+              TileOrder tileOrder, Reprojection reprojection, PhotonMap photons,
+              Frame recycled) {
+            this.scene = scene;
+            this.camera = camera;
+            this.reprojection = reprojection;
+            this.photons = photons;
+            this.width = width;
+            this.height = height;
+            this.FOVY = FOVY;
+            tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            this.tileOrder = tileOrder;
+            tiles = tileOrder.order(tilesX, tilesY);
+            batches = tileOrder.order(TILE_SIZE / BATCH_SIZE, TILE_SIZE / BATCH_SIZE);
+            if ((recycled != null) && (recycled.width == width) && (recycled.height == height)) {
+                pixels = recycled.pixels;
+                radiance = recycled.radiance;
+                colors = recycled.colors;
+                leaves = recycled.leaves;
+                depths = recycled.depths;
+                primitives = recycled.primitives;
+                ages = recycled.ages;
+                costs = recycled.costs;
+                Arrays.fill(costs, 0);
             } else {
-                return materialColor;
+                pixels = new int[width * height];
+                radiance = new float[3 * width * height];
+                colors = new float[3 * width * height];
+                leaves = new LeafNode[width * height];
+                depths = new float[width * height];
+                primitives = new int[width * height];
+                ages = new byte[width * height];
+                costs = new int[width * height];
             }
-        } else {
-            return Color.BLACK;
+            statistics = new RTStatistics(MAXIMUM_DEPTH);
         }
     }
 
     /**
-     * Blends the material color and reflection color using absorption and reflection coefficients.
+     * One pass over the tiles of an image
      */
-    private Color blendColors(float absorption, Color materialColor, float reflection, Color reflectionColor) {
-        float[] materialRGB = materialColor.getColorComponents(null);
-        float materialRed = absorption * materialRGB[0];
-        float materialGreen = absorption * materialRGB[1];
-        float materialBlue = absorption * materialRGB[2];
+    private static class Pass {
+        final Frame frame;
+        final int index;
+        /**
+         * One pixel of every step x step block is traced and fills its block.
+         * Pixels that were traced by the previous step are not traced again.
+         */
+        final int step, previousStep;
+        /**
+         * Whether this pass antialiases the pixels traced by the passes
+         * before it, instead of tracing new ones
+         */
+        final boolean antialias;
+        final RTRenderListener listener;
+        final AtomicBoolean cancelled;
+        /**
+         * The rectangle of the image that this pass covers, in view
+         * coordinates from the bottom left. Tiles are clipped to it.
+         */
+        final int left, bottom, right, top;
 
-        float[] reflectionRGB = reflectionColor.getColorComponents(null);
-        float reflectionRed = reflection * reflectionRGB[0];
-        float reflectionGreen = reflection * reflectionRGB[1];
-        float reflectionBlue = reflection * reflectionRGB[2];
+        Pass(Frame frame, int index, int step, int previousStep, boolean antialias,
+             RTRenderListener listener, AtomicBoolean cancelled) {
+            this(frame, index, step, previousStep, antialias, listener, cancelled,
+                    0, 0, frame.width, frame.height);
+        }
 
-        float blendRed = materialRed + reflectionRed;
-        float blendGreen = materialGreen + reflectionGreen;
-        float blendBlue = materialBlue + reflectionBlue;
+        Pass(Frame frame, int index, int step, int previousStep, boolean antialias,
+             RTRenderListener listener, AtomicBoolean cancelled,
+             int left, int bottom, int right, int top) {
+            this.frame = frame;
+            this.index = index;
+            this.step = step;
+            this.previousStep = previousStep;
+            this.antialias = antialias;
+            this.listener = listener;
+            this.cancelled = cancelled;
+            this.left = left;
+            this.bottom = bottom;
+            this.right = right;
+            this.top = top;
+        }
+    }
+
+    /**
+     * Traces a range of tiles, splitting the range in half until only a single
+     * tile is left. Each worker traces its tiles with its own {@link
+     * TraceContext}, so that no scratch state is shared between workers. The flattened scene is
+     * only read while tracing, and every pixel of the shared framebuffer is
+     * written by exactly one tile.
+     */
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Pass pass;
+        private final int firstTile, lastTile;
+
+        TileTask(Pass pass, int firstTile, int lastTile) {
+            this.pass = pass;
+            this.firstTile = firstTile;
+            this.lastTile = lastTile;
+        }
 
-        blendRed = Math.max(0, Math.min(1.0f, blendRed));
-        blendGreen = Math.max(0, Math.min(1.0f, blendGreen));
-        blendBlue = Math.max(0, Math.min(1.0f, blendBlue));
+        @Override
+        protected void compute() {
+            if (pass.cancelled.get()) {
+                return;
+            }
+            if (lastTile - firstTile > 1) {
+                int middle = (firstTile + lastTile) / 2;
+                invokeAll(new TileTask(pass, firstTile, middle),
+                        new TileTask(pass, middle, lastTile));
+                return;
+            }
+
+            Frame frame = pass.frame;
+            int tile = frame.tiles[firstTile];
+            int x0 = (tile % frame.tilesX) * TILE_SIZE;
+            int y0 = (tile / frame.tilesX) * TILE_SIZE;
+            int x1 = Math.min(x0 + TILE_SIZE, pass.right);
+            int y1 = Math.min(y0 + TILE_SIZE, pass.top);
+            x0 = Math.max(x0, pass.left);
+            y0 = Math.max(y0, pass.bottom);
+            if ((x0 >= x1) || (y0 >= y1)) {
+                return;
+            }
+            long start = System.nanoTime();
+            TraceContext context = contexts.get();
+            context.startTile((shadingCacheSpacing > 0) ? lightCount : 0, frame.photons,
+                    causticGather);
+            if (pass.antialias) {
+                antialiasTile(frame, context, x0, y0, x1, y1);
+            } else {
+                renderTile(pass, context, x0, y0, x1, y1);
+            }
+            frame.statistics.addTile(context.statistics, System.nanoTime() - start,
+                    x0, frame.height - y1);
+            if (pass.listener != null) {
+                //the whole image is tone mapped once it is traced, but a tile
+                //is shown as soon as it is finished
+                resolve(frame, x0, y0, x1, y1);
+                //the image is stored upside down relative to the view
+                pass.listener.tileFinished(pass.index, frame.pixels, frame.width, frame.height,
+                        x0, frame.height - y1, x1, frame.height - y0);
+            }
+        }
+    }
 
-        return new Color(blendRed, blendGreen, blendBlue);
+    /**
+     * Trace the pixels of a tile that this pass covers, a batch at a time in
+     * the order of the frame. A batch may hold no pixels of a coarse pass, or
+     * be clipped by the edge of the image or of the pass.
+     */
+    private void renderTile(Pass pass, TraceContext context, int x0, int y0, int x1, int y1) {
+        Frame frame = pass.frame;
+        int tileX = x0 - x0 % TILE_SIZE, tileY = y0 - y0 % TILE_SIZE;
+        int step = pass.step;
+        int batchesX = TILE_SIZE / BATCH_SIZE;
+        for (int batch : frame.batches) {
+            int bx0 = Math.max(x0, tileX + (batch % batchesX) * BATCH_SIZE);
+            int by0 = Math.max(y0, tileY + (batch / batchesX) * BATCH_SIZE);
+            int bx1 = Math.min(x1, tileX + (batch % batchesX + 1) * BATCH_SIZE);
+            int by1 = Math.min(y1, tileY + (batch / batchesX + 1) * BATCH_SIZE);
+            //only pixels a whole number of steps from the corner of the tile
+            bx0 = x0 + (bx0 - x0 + step - 1) / step * step;
+            by0 = y0 + (by0 - y0 + step - 1) / step * step;
+            if ((bx0 < bx1) && (by0 < by1)) {
+                renderBatch(pass, context, bx0, by0, bx1, by1, x1, y1);
+            }
+        }
     }
 
-    private Color shade(Vector4f point, Vector4f normal, Material material,
-                        String textureName, Vector2f texcoord, INode root, Stack<Matrix4f> modelView) {
-        Vector3f color = new Vector3f(0,0,0);
+    /**
+     * Trace one pixel in every step x step block of a batch, row by row, and
+     * fill its block up to the edge of the tile
+     */
+    private void renderBatch(Pass pass, TraceContext context, int x0, int y0, int x1, int y1,
+                             int tileX1, int tileY1) {
+        int i,j;
+        Frame frame = pass.frame;
+        int width = frame.width, height = frame.height;
+        float[] radiance = frame.radiance;
+        int step = pass.step, previousStep = pass.previousStep;
+        RTStatistics statistics = context.statistics;
+        Ray rayView = context.rays[0];
+        float z = -0.5f*height/(float)Math.tan(Math.toRadians(0.5*frame.FOVY));
+        //a pixel is one unit wide where the rays cross the near plane
+        context.coneSpread = -1.0f / z;
 
-        for (int i=0;i<lights.size();i++)
+        /*
+         create the rays in view coordinates
+         start point: 0,0,0 always!
+         going through near plane pixel (i,j)
+         So 3D location of that pixel in view coordinates is
+         x = i-width/2
+         y = j-height/2
+         z = -0.5*height/tan(FOVY)
+        */
+        RayPacket packet = context.packet;
+        packet.size = 0;
+        for (j=y0;j<y1;j+=step)
         {
-            Vector3f lightVec;
-            Vector3f spotdirection = new Vector3f(
-                    lights.get(i).getSpotDirection().x,
-                    lights.get(i).getSpotDirection().y,
-                    lights.get(i).getSpotDirection().z);
+            for (i=x0;i<x1;i+=step)
+            {
+                if ((previousStep > 0) && (i % previousStep == 0) && (j % previousStep == 0)) {
+                    continue;
+                }
+                int r = packet.add(0, 0, 0, i-0.5f*width, j-0.5f*height, z,
+                        Float.POSITIVE_INFINITY);
+                packet.source[r] = (height-1-j)*width+i;
+            }
+        }
+
+        //as a packet, what every ray hits and which lights reach it are found
+        //first, and each ray is then shaded on its own
+        boolean packed = packetTracing && (packet.size > 1);
+        boolean shadowsPacked = false;
+        int packetCost = 0;
+        Reprojection reprojection = frame.reprojection;
+        int[] reused = context.packetReused;
+        if (packed) {
+            long work = statistics.getWork();
+            packet.prepare();
+            frame.scene.intersect(packet, context);
+            for (int r = 0; r < packet.size; r++) {
+                reused[r] = (reprojection != null)
+                        ? reprojection.find(packet.directionX[r], packet.directionY[r],
+                        packet.directionZ[r], packet.time[r], packet.primitive[r])
+                        : -1;
+            }
+            shadowsPacked = traceShadows(frame.scene, context);
+            packetCost = (int) ((statistics.getWork() - work) / packet.size);
+        }
+
+        for (int r = 0; r < packet.size; r++) {
+            int index = packet.source[r];
+            i = index % width;
+            j = height - 1 - index / width;
+            rayView.set(0, 0, 0, packet.directionX[r], packet.directionY[r], packet.directionZ[r]);
+            context.random.setSeed(seed(i, j, step));
+
+            long work = statistics.getWork();
+            statistics.rays[RTStatistics.PRIMARY]++;
+            //the pixel of the last image whose color this one takes, or -1
+            int old = -1;
+            if (packed) {
+                HitRecord hitRecord = context.hits[0];
+                statistics.depths[0]++;
+                hitRecord.reset();
+                if (packet.primitive[r] >= 0) {
+                    frame.scene.intersect(packet.primitive[r], rayView, hitRecord, context);
+                }
+                old = reused[r];
+                if (old < 0) {
+                    context.packetShadowRow = shadowsPacked ? r * lightCount : -1;
+                    shadeRay(frame.scene, context, 0, 1.0f);
+                    context.packetShadowRow = -1;
+                }
+            } else if (reprojection == null) {
+                raycast(frame.scene, context, 0, 1.0f);
+            } else {
+                HitRecord hitRecord = context.hits[0];
+                statistics.depths[0]++;
+                hitRecord.reset();
+                frame.scene.intersect(rayView, hitRecord, context);
+                old = reprojection.find(rayView.direction.x, rayView.direction.y,
+                        rayView.direction.z, hitRecord.time, hitRecord.primitive);
+                if (old < 0) {
+                    shadeRay(frame.scene, context, 0, 1.0f);
+                }
+            }
+            if (old >= 0) {
+                reprojection.getColor(old, context.colors);
+                frame.ages[index] = reprojection.getAge(old);
+                statistics.reused++;
+            } else {
+                frame.ages[index] = 0;
+            }
 
+            frame.costs[index] = packetCost + (int) (statistics.getWork() - work);
+            frame.colors[3 * index] = context.colors[0];
+            frame.colors[3 * index + 1] = context.colors[1];
+            frame.colors[3 * index + 2] = context.colors[2];
+            frame.leaves[index] = context.hits[0].leaf;
+            frame.depths[index] = context.hits[0].time;
+            frame.primitives[index] = context.hits[0].primitive;
 
+            for (int v = j; v < Math.min(j + step, tileY1); v++) {
+                for (int u = i; u < Math.min(i + step, tileX1); u++) {
+                    System.arraycopy(context.colors, 0, radiance, 3 * ((height-1-v)*width+u), 3);
+                }
+            }
+        }
+    }
+
+    /**
+     * Trace the shadow rays from the hits of the primary packet of the
+     * context to each light as one packet per light, and record in the
+     * context which lights reach each hit. Shadow rays are made exactly as
+     * shading makes them, and only for the lights it would trace them for.
+     *
+     * @return true if the shadows were traced, false if lights are picked at
+     * random, so that shading must trace its own
+     */
+    private boolean traceShadows(RTScene scene, TraceContext context) {
+        if ((lightSamples > 0) || (lightCount == 0)) {
+            return false;
+        }
+        RayPacket packet = context.packet;
+        RayPacket shadows = context.shadowPacket;
+        float[] direction = context.lightDirection;
+        int n = packet.size;
+        if (context.packetShadows.length < RayPacket.CAPACITY * lightCount) {
+            context.packetShadows = new byte[RayPacket.CAPACITY * lightCount];
+        }
+        byte[] found = context.packetShadows;
+        Arrays.fill(found, 0, n * lightCount, SHADOW_UNKNOWN);
+
+        for (int i = 0; i < lightCount; i++) {
+            //area lights are sampled by shading, a point at a time
+            if (lightShape[i] != LIGHT_POINT) {
+                continue;
+            }
+            shadows.size = 0;
+            for (int r = 0; r < n; r++) {
+                if ((packet.primitive[r] < 0) || (context.packetReused[r] >= 0)) {
+                    continue;
+                }
+                float t = packet.time[r];
+                float px = packet.startX[r] + t * packet.directionX[r];
+                float py = packet.startY[r] + t * packet.directionY[r];
+                float pz = packet.startZ[r] + t * packet.directionZ[r];
+                float lightDistance = toLight(i, px, py, pz, direction);
+                if (Float.isNaN(lightDistance)) {
+                    continue;
+                }
+                if (lightDistance <= 0) {
+                    //nothing can be hit that close
+                    found[r * lightCount + i] = SHADOW_LIT;
+                    continue;
+                }
+                float lx = direction[0], ly = direction[1], lz = direction[2];
+                float invLength = 1.0f / (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+                float sx = lx * invLength, sy = ly * invLength, sz = lz * invLength;
+                int q = shadows.add(px + sx * FUDGE, py + sy * FUDGE, pz + sz * FUDGE,
+                        sx, sy, sz, lightDistance);
+                shadows.source[q] = r;
+                context.statistics.rays[RTStatistics.SHADOW]++;
+            }
+            if (shadows.size == 0) {
+                continue;
+            }
+            shadows.prepare();
+            scene.occluded(shadows, context);
+            for (int q = 0; q < shadows.size; q++) {
+                found[shadows.source[q] * lightCount + i] =
+                        (shadows.time[q] < 0) ? SHADOW_BLOCKED : SHADOW_LIT;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Trace more rays through the pixels of a tile that lie on an edge, once
+     * every pixel of the image has been traced with a single ray. The rays are
+     * stratified over the pixel and jittered, with a random sequence seeded
+     * by the pixel so that the same image is traced the same way every time,
+     * whichever tile or region the pixel is traced in.
+     */
+    private void antialiasTile(Frame frame, TraceContext context, int x0, int y0, int x1, int y1) {
+        int width = frame.width, height = frame.height;
+        int n = antialiasSamples;
+        RTStatistics statistics = context.statistics;
+        Ray rayView = context.rays[0];
+        float z = -0.5f*height/(float)Math.tan(Math.toRadians(0.5*frame.FOVY));
+        Random random = context.random;
+        float[] sum = new float[3];
+        context.coneSpread = -1.0f / (n * z);
+
+        for (int i = x0; i < x1; i++) {
+            for (int j = y0; j < y1; j++) {
+                int index = (height-1-j)*width+i;
+                if (!onEdge(frame, index, i, j)) {
+                    continue;
+                }
+                random.setSeed(seed(i, j, 0));
+
+                //the samples cover the pixel around where its single ray went
+                sum[0] = 0;
+                sum[1] = 0;
+                sum[2] = 0;
+                long work = statistics.getWork();
+                for (int sy = 0; sy < n; sy++) {
+                    for (int sx = 0; sx < n; sx++) {
+                        float x = i - 0.5f + (sx + random.nextFloat()) / n;
+                        float y = j - 0.5f + (sy + random.nextFloat()) / n;
+                        rayView.set(0, 0, 0, x-0.5f*width, y-0.5f*height, z);
+                        statistics.rays[RTStatistics.PRIMARY]++;
+                        raycast(frame.scene, context, 0, 1.0f);
+                        sum[0] += context.colors[0];
+                        sum[1] += context.colors[1];
+                        sum[2] += context.colors[2];
+                    }
+                }
+                frame.costs[index] += (int) (statistics.getWork() - work);
+                float scale = 1.0f / (n * n);
+                sum[0] *= scale;
+                sum[1] *= scale;
+                sum[2] *= scale;
+                System.arraycopy(sum, 0, frame.radiance, 3 * index, 3);
+            }
+        }
+    }
+
+    /**
+     * The seed of the random numbers that a pixel is traced with in a pass
+     * of the given step, or in the antialiasing pass for a step of 0. It
+     * depends only on where the pixel is in the image, so that every pixel
+     * is traced the same way in whatever tile or region it is traced.
+     */
+    private static long seed(int i, int j, int step) {
+        return ((((long) j) << 32) | (i & 0xffffffffL)) * 0x9E3779B97F4A7C15L + step;
+    }
+
+    /**
+     * Whether the pixel at the given index differs enough from any of its four
+     * neighbors to need antialiasing. Only what the single ray of each pixel
+     * found is compared, and that is not changed by antialiasing, so tiles
+     * can be antialiased in any order.
+     */
+    private boolean onEdge(Frame frame, int index, int i, int j) {
+        int width = frame.width, height = frame.height;
+        return ((i > 0) && differ(frame, index, index - 1))
+                || ((i < width - 1) && differ(frame, index, index + 1))
+                || ((j > 0) && differ(frame, index, index + width))
+                || ((j < height - 1) && differ(frame, index, index - width));
+    }
+
+    private boolean differ(Frame frame, int a, int b) {
+        if (frame.leaves[a] != frame.leaves[b]) {
+            return true;
+        }
+        float depthA = frame.depths[a], depthB = frame.depths[b];
+        if ((depthA < Float.POSITIVE_INFINITY)
+                && (Math.abs(depthA - depthB) > ANTIALIAS_DEPTH_THRESHOLD * Math.min(depthA, depthB))) {
+            return true;
+        }
+        float[] c = frame.colors;
+        for (int k = 0; k < 3; k++) {
+            if (Math.abs(c[3 * a + k] - c[3 * b + k]) > antialiasThreshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the lights into flat arrays, so that shading reads them directly
+     * instead of through the getters of {@link Light}, which return copies
+     */
+    private void setLights(List<Light> lights) {
+        int n = lights.size();
+        lightCount = n;
+        lightPosition = new float[4 * n];
+        lightAmbient = new float[3 * n];
+        lightDiffuse = new float[3 * n];
+        lightSpecular = new float[3 * n];
+        lightSpotDirection = new float[3 * n];
+        lightCosSpotCutoff = new float[n];
+        lightShape = new byte[n];
+        lightEdges = new float[6 * n];
+        lightRadius = new float[n];
+
+        for (int i = 0; i < n; i++) {
+            Light light = lights.get(i);
+            Vector4f position = light.getPosition();
+            lightPosition[4 * i] = position.x;
+            lightPosition[4 * i + 1] = position.y;
+            lightPosition[4 * i + 2] = position.z;
+            lightPosition[4 * i + 3] = position.w;
+
+            Vector3f ambient = light.getAmbient();
+            Vector3f diffuse = light.getDiffuse();
+            Vector3f specular = light.getSpecular();
+            Vector3f spotdirection = new Vector3f(
+                    light.getSpotDirection().x,
+                    light.getSpotDirection().y,
+                    light.getSpotDirection().z);
             if (spotdirection.length()>0)
                 spotdirection = spotdirection.normalize();
 
-            if (lights.get(i).getPosition().w!=0) {
-                lightVec = new Vector3f(
-                        lights.get(i).getPosition().x - point.x,
-                        lights.get(i).getPosition().y - point.y,
-                        lights.get(i).getPosition().z - point.z);
+            put(ambient, lightAmbient, 3 * i);
+            put(diffuse, lightDiffuse, 3 * i);
+            put(specular, lightSpecular, 3 * i);
+            put(spotdirection, lightSpotDirection, 3 * i);
+            lightCosSpotCutoff[i] = (float) Math.cos(Math.toRadians(light.getSpotCutoff()));
+
+            //an area light of no size is a point light
+            if (light instanceof AreaLight) {
+                AreaLight area = (AreaLight) light;
+                if (area.getShape() == AreaLight.Shape.RECTANGLE) {
+                    Vector4f edge1 = area.getEdge1(), edge2 = area.getEdge2();
+                    lightEdges[6 * i] = edge1.x;
+                    lightEdges[6 * i + 1] = edge1.y;
+                    lightEdges[6 * i + 2] = edge1.z;
+                    lightEdges[6 * i + 3] = edge2.x;
+                    lightEdges[6 * i + 4] = edge2.y;
+                    lightEdges[6 * i + 5] = edge2.z;
+                    if ((edge1.lengthSquared() > 0) && (edge2.lengthSquared() > 0)) {
+                        lightShape[i] = LIGHT_RECTANGLE;
+                    }
+                } else if (area.getRadius() > 0) {
+                    lightShape[i] = LIGHT_SPHERE;
+                    lightRadius[i] = area.getRadius();
+                }
+                if (position.w == 0) {
+                    lightShape[i] = LIGHT_POINT;
+                }
             }
-            else
-            {
-                lightVec = new Vector3f(
-                        -lights.get(i).getPosition().x,
-                        -lights.get(i).getPosition().y,
-                        -lights.get(i).getPosition().z);
-            }
-            lightVec = lightVec.normalize();
-
-            // Shadows
-            Vector4f shadowRayPosition = new Vector4f(point);
-            Vector4f shadowRayDirection = new Vector4f(lightVec, 0).normalize();
-            shadowRayPosition.add(new Vector4f(shadowRayDirection).mul(FUDGE));
-            Ray shadowRay = new Ray();
-            shadowRay.start = shadowRayPosition;
-            shadowRay.direction = shadowRayDirection;
-            HitRecord hitRecord = new HitRecord();
-            root.intersect(shadowRay, modelView, hitRecord);
-            if (hitRecord.intersected()) {
-                continue;
+        }
+        lightTree = new LightTree(n, lightPosition, lightAmbient, lightDiffuse, lightSpecular,
+                lightSpotDirection, lightCosSpotCutoff);
+    }
+
+    /**
+     * Choose the lights to shade a point with, and write them and their
+     * weights into the context. Every light that might reach the point is
+     * chosen, unless there are more of them than the number of light samples.
+     * Then that many are picked at random, in proportion to how much each
+     * might add to the point, and weighted by how unlikely they were.
+     *
+     * @return the number of lights chosen
+     */
+    private int chooseLights(Vector4f point, float nx, float ny, float nz, TraceContext context) {
+        LightTree tree = lightTree;
+        context.ensureLights(tree.getCount() + lightSamples, tree.getDepth());
+        int[] lights = context.lights;
+        float[] weights = context.lightWeights;
+        int count = tree.collect(point.x, point.y, point.z, lights, context.lightStack);
+        if ((lightSamples <= 0) || (count <= lightSamples)) {
+            for (int i = 0; i < count; i++) {
+                weights[i] = 1;
             }
+            return count;
+        }
 
-        /* if point is not in the light cone of this light, move on to next light */
-            if (new Vector3f(lightVec).negate().dot(spotdirection)<=Math.cos(Math.toRadians(lights.get(i).getSpotCutoff())))
-                continue;
+        //the running total of the importance of the lights that reach the
+        //point, from which each sample is drawn and written after them
+        float total = 0;
+        for (int i = 0; i < count; i++) {
+            total += tree.importance(lights[i], point.x, point.y, point.z, nx, ny, nz);
+            weights[i] = total;
+        }
+        if (total <= 0) {
+            return 0;
+        }
+        int chosen = 0;
+        for (int s = 0; s < lightSamples; s++) {
+            float u = context.random.nextFloat() * total;
+            int i = 0;
+            while ((i < count - 1) && (weights[i] <= u)) {
+                i++;
+            }
+            float importance = weights[i] - ((i > 0) ? weights[i - 1] : 0);
+            if (importance > 0) {
+                lights[count + chosen] = lights[i];
+                weights[count + chosen] = total / (lightSamples * importance);
+                chosen++;
+            }
+        }
+        System.arraycopy(lights, count, lights, 0, chosen);
+        System.arraycopy(weights, count, weights, 0, chosen);
+        return chosen;
+    }
+
+    private static void put(Vector3f v, float[] array, int offset) {
+        array[offset] = v.x;
+        array[offset + 1] = v.y;
+        array[offset + 2] = v.z;
+    }
+
+    /**
+     * Emit photons from the lights into the compiled scene, on all the
+     * worker threads, and build the map of those that reach diffuse surfaces
+     * through mirrors or glass. The photons are shared among the lights with
+     * a position by how bright each is over the solid angle of its spot.
+     *
+     * @return the map, or null if no light emits photons
+     */
+    private PhotonMap emitPhotons(RTScene scene) {
+        float[] power = new float[lightCount];
+        float total = 0;
+        for (int i = 0; i < lightCount; i++) {
+            if (lightPosition[4 * i + 3] != 0) {
+                power[i] = (lightDiffuse[3 * i] + lightDiffuse[3 * i + 1] + lightDiffuse[3 * i + 2])
+                        * spotSolidAngle(i);
+                total += power[i];
+            }
+        }
+        if (total <= 0) {
+            return null;
+        }
 
+        //each chunk is a run of photons of one light
+        int[] emitted = new int[lightCount];
+        List<int[]> chunks = new ArrayList<int[]>();
+        int emittedTotal = 0;
+        for (int i = 0; i < lightCount; i++) {
+            emitted[i] = Math.round(causticPhotons * power[i] / total);
+            emittedTotal += emitted[i];
+            for (int first = 0; first < emitted[i]; first += PHOTON_CHUNK) {
+                chunks.add(new int[]{i, Math.min(PHOTON_CHUNK, emitted[i] - first)});
+            }
+        }
+        PhotonMap.Batch[] batches = new PhotonMap.Batch[chunks.size()];
+        if (!chunks.isEmpty()) {
+            pool.invoke(new PhotonTask(scene, chunks, emitted, batches, 0, batches.length));
+        }
+        return new PhotonMap(Arrays.asList(batches), emittedTotal, pool);
+    }
 
-            Vector3f normalView = new Vector3f(normal.x,normal.y,normal.z).normalize();
+    /**
+     * The solid angle that the spot of a light covers
+     */
+    private float spotSolidAngle(int i) {
+        return 2 * (float) Math.PI * (1 - Math.max(lightCosSpotCutoff[i], -1));
+    }
 
-            float nDotL = normalView.dot(lightVec);
+    /**
+     * Emits the photons of a range of chunks, splitting the range in half
+     * until only a single chunk is left, which is emitted with its own
+     * {@link TraceContext} into its own batch
+     */
+    private class PhotonTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RTScene scene;
+        private final List<int[]> chunks;
+        private final int[] emitted;
+        private final PhotonMap.Batch[] batches;
+        private final int firstChunk, lastChunk;
 
-            Vector3f viewVec = new Vector3f(point.x,point.y,point.z).negate();
-            viewVec = viewVec.normalize();
+        PhotonTask(RTScene scene, List<int[]> chunks, int[] emitted, PhotonMap.Batch[] batches,
+                   int firstChunk, int lastChunk) {
+            this.scene = scene;
+            this.chunks = chunks;
+            this.emitted = emitted;
+            this.batches = batches;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+        }
 
-            Vector3f reflectVec = new Vector3f(lightVec).negate().reflect(normalView);
-            reflectVec = reflectVec.normalize();
+        @Override
+        protected void compute() {
+            if (lastChunk - firstChunk > 1) {
+                int middle = (firstChunk + lastChunk) / 2;
+                invokeAll(new PhotonTask(scene, chunks, emitted, batches, firstChunk, middle),
+                        new PhotonTask(scene, chunks, emitted, batches, middle, lastChunk));
+                return;
+            }
 
-            float rDotV = Math.max(reflectVec.dot(viewVec),0.0f);
+            int light = chunks.get(firstChunk)[0];
+            int count = chunks.get(firstChunk)[1];
+            TraceContext context = new TraceContext(MAXIMUM_DEPTH);
+            context.random.setSeed(firstChunk);
+            PhotonMap.Batch batch = new PhotonMap.Batch();
+            float scale = spotSolidAngle(light) / emitted[light];
+            for (int n = 0; n < count; n++) {
+                tracePhoton(scene, context, light, scale, batch);
+            }
+            batches[firstChunk] = batch;
+        }
+    }
 
-            Vector3f ambient = new Vector3f(
-                    material.getAmbient().x * lights.get(i).getAmbient().x,
-                    material.getAmbient().y * lights.get(i).getAmbient().y,
-                    material.getAmbient().z * lights.get(i).getAmbient().z);
+    /**
+     * Emit one photon from a light in a random direction inside its spot, and
+     * follow it through mirrors and glass, adding it to the batch at every
+     * diffuse surface that it reaches after at least one of them. Photons
+     * that go straight to a diffuse surface are left out, since shadow rays
+     * already light it.
+     *
+     * Lights here do not fall off with distance, as in the shader, so a
+     * photon found at the end of a path of length d stands for as much light
+     * as a light d away puts on a surface facing it over the area that the
+     * photons emitted into the same solid angle spread over there, d*d times
+     * its share of the solid angle.
+     *
+     * @param scale the share of the solid angle of each photon
+     */
+    private void tracePhoton(RTScene scene, TraceContext context, int light, float scale,
+                             PhotonMap.Batch batch) {
+        Random random = context.random;
+        Ray ray = context.rays[0];
+        HitRecord hitRecord = context.hits[0];
 
-            Vector3f diffuse = new Vector3f(
-                    material.getDiffuse().x * lights.get(i).getDiffuse().x * Math.max(nDotL,0),
-                    material.getDiffuse().y * lights.get(i).getDiffuse().y * Math.max(nDotL,0),
-                    material.getDiffuse().z * lights.get(i).getDiffuse().z * Math.max(nDotL,0));
-            Vector3f specular;
-            if (nDotL>0) {
-                specular = new Vector3f(
-                        material.getSpecular().x * lights.get(i).getSpecular().x * (float) Math.pow(rDotV, material.getShininess()),
-                        material.getSpecular().y * lights.get(i).getSpecular().y * (float) Math.pow(rDotV, material.getShininess()),
-                        material.getSpecular().z * lights.get(i).getSpecular().z * (float) Math.pow(rDotV, material.getShininess()));
+        //a direction uniformly inside the spot, about its axis
+        float ax = lightSpotDirection[3 * light];
+        float ay = lightSpotDirection[3 * light + 1];
+        float az = lightSpotDirection[3 * light + 2];
+        if (ax * ax + ay * ay + az * az == 0) {
+            ax = 0;
+            ay = -1;
+            az = 0;
+        }
+        float cosTheta = 1 - random.nextFloat() * (1 - Math.max(lightCosSpotCutoff[light], -1));
+        float sinTheta = (float) Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+        float phi = 2 * (float) Math.PI * random.nextFloat();
+        float ux, uy, uz;
+        if (Math.abs(ax) < 0.9f) {
+            ux = 0;
+            uy = az;
+            uz = -ay;
+        } else {
+            ux = -az;
+            uy = 0;
+            uz = ax;
+        }
+        float invLength = 1.0f / (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+        ux *= invLength;
+        uy *= invLength;
+        uz *= invLength;
+        float vx = ay * uz - az * uy, vy = az * ux - ax * uz, vz = ax * uy - ay * ux;
+        float cosPhi = (float) Math.cos(phi), sinPhi = (float) Math.sin(phi);
+        float dx = cosTheta * ax + sinTheta * (cosPhi * ux + sinPhi * vx);
+        float dy = cosTheta * ay + sinTheta * (cosPhi * uy + sinPhi * vy);
+        float dz = cosTheta * az + sinTheta * (cosPhi * uz + sinPhi * vz);
+
+        float px = lightPosition[4 * light];
+        float py = lightPosition[4 * light + 1];
+        float pz = lightPosition[4 * light + 2];
+        float red = scale * lightDiffuse[3 * light];
+        float green = scale * lightDiffuse[3 * light + 1];
+        float blue = scale * lightDiffuse[3 * light + 2];
+        float distance = 0;
+
+        for (int bounce = 0; bounce < MAXIMUM_DEPTH; bounce++) {
+            ray.set(px, py, pz, dx, dy, dz);
+            hitRecord.reset();
+            scene.intersect(ray, hitRecord, context);
+            if (!hitRecord.intersected()) {
+                return;
             }
-            else
-            {
-                specular = new Vector3f(0,0,0);
+            distance += hitRecord.time;
+            Vector4f point = hitRecord.point;
+            Material material = hitRecord.material;
+            if ((bounce > 0) && (material.getAbsorption() > 0)) {
+                float area = distance * distance;
+                batch.add(point.x, point.y, point.z, dx, dy, dz,
+                        area * red, area * green, area * blue);
+            }
+
+            float reflection = material.getReflection();
+            float transparency = material.getTransparency();
+            if ((reflection <= 0) && (transparency <= 0)) {
+                return;
+            }
+            float nx = hitRecord.normal.x, ny = hitRecord.normal.y, nz = hitRecord.normal.z;
+            invLength = 1.0f / (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            nx *= invLength;
+            ny *= invLength;
+            nz *= invLength;
+            float dot = dx * nx + dy * ny + dz * nz;
+
+            //reflected and refracted as a ray is in shadeRay, with the photon
+            //going one way or the other at random in proportion to each
+            float cosIncident = -dot;
+            float eta;
+            float index = (material.getRefractiveIndex() > 0) ? material.getRefractiveIndex() : 1.0f;
+            float fx = nx, fy = ny, fz = nz;
+            if (cosIncident >= 0) {
+                eta = 1.0f / index;
+            } else {
+                eta = index;
+                cosIncident = -cosIncident;
+                fx = -nx;
+                fy = -ny;
+                fz = -nz;
+            }
+            float fresnel = 0;
+            float cosTransmitted = 0;
+            if (transparency > 0) {
+                float sin2Transmitted = eta * eta * (1 - cosIncident * cosIncident);
+                if (sin2Transmitted >= 1) {
+                    fresnel = 1;
+                } else {
+                    cosTransmitted = (float) Math.sqrt(1 - sin2Transmitted);
+                    float r0 = (1 - eta) / (1 + eta);
+                    r0 *= r0;
+                    float cos = (eta > 1) ? cosTransmitted : cosIncident;
+                    float m = 1 - cos;
+                    fresnel = r0 + (1 - r0) * m * m * m * m * m;
+                }
+            }
+            float reflected = reflection + transparency * fresnel;
+            float refracted = transparency * (1 - fresnel);
+
+            //the photon survives with the chance that it is reflected or
+            //refracted, and carries more power if that is more than 1
+            float survival = reflected + refracted;
+            if (random.nextFloat() >= survival) {
+                return;
+            }
+            if (survival > 1) {
+                red *= survival;
+                green *= survival;
+                blue *= survival;
+            }
+            if (random.nextFloat() * survival < reflected) {
+                dx -= (dot + dot) * nx;
+                dy -= (dot + dot) * ny;
+                dz -= (dot + dot) * nz;
+            } else {
+                float k = eta * cosIncident - cosTransmitted;
+                dx = eta * dx + k * fx;
+                dy = eta * dy + k * fy;
+                dz = eta * dz + k * fz;
+            }
+            invLength = 1.0f / (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            dx *= invLength;
+            dy *= invLength;
+            dz *= invLength;
+            px = point.x + dx * FUDGE;
+            py = point.y + dy * FUDGE;
+            pz = point.z + dz * FUDGE;
+        }
+    }
+
+    /**
+     * Trace the ray of the given bounce depth in the context, and write its
+     * color into the colors of the context at that depth
+     *
+     * @param weight how much the color of this ray adds to the pixel, at most
+     */
+    private void raycast(RTScene scene, TraceContext context, int bounce, float weight) {
+        Ray rayView = context.rays[bounce];
+        HitRecord hitRecord = context.hits[bounce];
+
+        context.statistics.depths[bounce]++;
+        hitRecord.reset();
+        scene.intersect(rayView, hitRecord, context);
+        shadeRay(scene, context, bounce, weight);
+    }
+
+    /**
+     * Write the color of the ray of the given bounce depth in the context into
+     * the colors of the context at that depth, once its hit record has been
+     * found
+     *
+     * @param weight how much the color of this ray adds to the pixel, at most
+     */
+    private void shadeRay(RTScene scene, TraceContext context, int bounce, float weight) {
+        Ray rayView = context.rays[bounce];
+        HitRecord hitRecord = context.hits[bounce];
+        float[] color = context.colors;
+        int c = 3 * bounce;
+
+        if (!hitRecord.intersected()) {
+            color[c] = 0;
+            color[c + 1] = 0;
+            color[c + 2] = 0;
+            return;
+        }
+
+        float dx = rayView.direction.x, dy = rayView.direction.y, dz = rayView.direction.z;
+        float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        float invLength = 1.0f / length;
+        dx *= invLength;
+        dy *= invLength;
+        dz *= invLength;
+
+        float nx = hitRecord.normal.x, ny = hitRecord.normal.y, nz = hitRecord.normal.z;
+        invLength = 1.0f / (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        nx *= invLength;
+        ny *= invLength;
+        nz *= invLength;
+        float dot = dx * nx + dy * ny + dz * nz;
+
+        //the width of the ray's cone where it hits, stretched over the surface
+        //as it turns away from the ray, in texture coordinates
+        float coneWidth = context.coneWidths[bounce] + context.coneSpread * hitRecord.time * length;
+        float footprint = coneWidth * hitRecord.textureDensity
+                / Math.max(Math.abs(dot), MINIMUM_FOOTPRINT_COSINE);
+
+        if ((bounce == 0) && (context.packetShadowRow >= 0)) {
+            shade(hitRecord, scene, context, footprint, color, c,
+                    context.packetShadows, context.packetShadowRow);
+        } else if (context.shadingCache != null) {
+            //records are as far apart as a few widths of the cone of the ray
+            Vector4f point = hitRecord.point;
+            float radius = shadingCacheSpacing * coneWidth;
+            byte[] found = context.cachedShadows;
+            context.shadingCache.lookup(point.x, point.y, point.z, nx, ny, nz, radius, found);
+            if (shade(hitRecord, scene, context, footprint, color, c, found, 0) > 0) {
+                context.shadingCache.add(point.x, point.y, point.z, nx, ny, nz, radius, found);
+            }
+        } else {
+            shade(hitRecord, scene, context, footprint, color, c, null, 0);
+        }
+
+        Material material = hitRecord.material;
+        float reflection = material.getReflection();
+        float transparency = material.getTransparency();
+        if ((reflection <= 0) && (transparency <= 0)) {
+            return;
+        }
+
+        //the light that is not reflected is refracted, in proportion to the
+        //Fresnel reflectance of Schlick's approximation. Rays leave the
+        //surface into air.
+        float cosIncident = -dot;
+        float eta;
+        float index = (material.getRefractiveIndex() > 0) ? material.getRefractiveIndex() : 1.0f;
+        float fx = nx, fy = ny, fz = nz;
+        if (cosIncident >= 0) {
+            eta = 1.0f / index;
+        } else {
+            eta = index;
+            cosIncident = -cosIncident;
+            fx = -nx;
+            fy = -ny;
+            fz = -nz;
+        }
+        float fresnel = 0;
+        float cosTransmitted = 0;
+        if (transparency > 0) {
+            float sin2Transmitted = eta * eta * (1 - cosIncident * cosIncident);
+            if (sin2Transmitted >= 1) {
+                //total internal reflection
+                fresnel = 1;
+            } else {
+                cosTransmitted = (float) Math.sqrt(1 - sin2Transmitted);
+                float r0 = (1 - eta) / (1 + eta);
+                r0 *= r0;
+                float cos = (eta > 1) ? cosTransmitted : cosIncident;
+                float m = 1 - cos;
+                fresnel = r0 + (1 - r0) * m * m * m * m * m;
+            }
+        }
+        float reflected = reflection + transparency * fresnel;
+        float refracted = transparency * (1 - fresnel);
+
+        Vector4f point = hitRecord.point;
+        float reflectedRed = 0, reflectedGreen = 0, reflectedBlue = 0;
+        float scale = continuation(context, bounce, weight * reflected);
+        if (scale > 0) {
+            float rx = dx - (dot + dot) * nx;
+            float ry = dy - (dot + dot) * ny;
+            float rz = dz - (dot + dot) * nz;
+            invLength = 1.0f / (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+            rx *= invLength;
+            ry *= invLength;
+            rz *= invLength;
+
+            context.rays[bounce + 1].set(point.x + rx * FUDGE,
+                    point.y + ry * FUDGE,
+                    point.z + rz * FUDGE,
+                    rx, ry, rz);
+            //a flat mirror keeps the cone growing as it was
+            context.coneWidths[bounce + 1] = coneWidth;
+
+            context.statistics.rays[RTStatistics.REFLECTION]++;
+            raycast(scene, context, bounce + 1, weight * reflected * scale);
+            scale *= reflected;
+            reflectedRed = scale * color[c + 3];
+            reflectedGreen = scale * color[c + 4];
+            reflectedBlue = scale * color[c + 5];
+        }
+
+        float refractedRed = 0, refractedGreen = 0, refractedBlue = 0;
+        scale = continuation(context, bounce, weight * refracted);
+        if (scale > 0) {
+            float k = eta * cosIncident - cosTransmitted;
+            float tx = eta * dx + k * fx;
+            float ty = eta * dy + k * fy;
+            float tz = eta * dz + k * fz;
+            invLength = 1.0f / (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+            tx *= invLength;
+            ty *= invLength;
+            tz *= invLength;
+
+            context.rays[bounce + 1].set(point.x + tx * FUDGE,
+                    point.y + ty * FUDGE,
+                    point.z + tz * FUDGE,
+                    tx, ty, tz);
+            context.coneWidths[bounce + 1] = coneWidth;
+
+            context.statistics.rays[RTStatistics.REFRACTION]++;
+            raycast(scene, context, bounce + 1, weight * refracted * scale);
+            scale *= refracted;
+            refractedRed = scale * color[c + 3];
+            refractedGreen = scale * color[c + 4];
+            refractedBlue = scale * color[c + 5];
+        }
+
+        float absorption = material.getAbsorption();
+        color[c] = absorption * color[c] + reflectedRed + refractedRed;
+        color[c + 1] = absorption * color[c + 1] + reflectedGreen + refractedGreen;
+        color[c + 2] = absorption * color[c + 2] + reflectedBlue + refractedBlue;
+    }
+
+    /**
+     * Decide whether to trace a reflected or refracted ray that adds the
+     * given amount to the pixel, and return what its color must be scaled by
+     * to make up for the rays that Russian roulette does not trace, or 0 if it
+     * is not traced
+     */
+    private float continuation(TraceContext context, int bounce, float contribution) {
+        if ((contribution < MINIMUM_CONTRIBUTION) || (bounce + 1 >= MAXIMUM_DEPTH)) {
+            return 0;
+        }
+        if (russianRoulette && (contribution < ROULETTE_CONTRIBUTION)) {
+            float survival = contribution / ROULETTE_CONTRIBUTION;
+            return (context.random.nextFloat() < survival) ? 1.0f / survival : 0;
+        }
+        return 1;
+    }
+
+    /**
+     * Tone map the traced colors of a rectangle of an image into its pixels
+     *
+     * @param x0 the left edge of the rectangle in view coordinates, inclusive
+     * @param y0 the bottom edge of the rectangle, inclusive
+     * @param x1 the right edge of the rectangle, exclusive
+     * @param y1 the top edge of the rectangle, exclusive
+     */
+    private void resolve(Frame frame, int x0, int y0, int x1, int y1) {
+        float[] mapped = new float[3];
+        for (int j = y0; j < y1; j++) {
+            int index = (frame.height-1-j)*frame.width+x0;
+            for (int i = x0; i < x1; i++, index++) {
+                frame.pixels[index] = toneMap(frame.radiance, 3 * index, mapped);
+            }
+        }
+    }
+
+    /**
+     * Tone map a traced color, correct it for gamma and pack it into an RGB
+     * pixel
+     *
+     * @param mapped scratch space for the mapped color
+     */
+    private int toneMap(float[] color, int c, float[] mapped) {
+        toneMapper.map(color, c, mapped);
+        if (gamma != 1.0f) {
+            float exponent = 1.0f / gamma;
+            for (int k = 0; k < 3; k++) {
+                mapped[k] = (float) Math.pow(mapped[k], exponent);
+            }
+        }
+        int red = (int) (mapped[0] * 255 + 0.5f);
+        int green = (int) (mapped[1] * 255 + 0.5f);
+        int blue = (int) (mapped[2] * 255 + 0.5f);
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Find the unit vector from the given point to the given light, and how
+     * far along it a shadow ray must look for occluders
+     *
+     * @param direction where to write the unit vector
+     * @return the distance to the light less {@link #FUDGE}, infinity for a
+     * light without a position, or NaN if the point is outside the spot of
+     * the light
+     */
+    private float toLight(int i, float px, float py, float pz, float[] direction) {
+        float lx, ly, lz;
+        // how far along the shadow ray the light is
+        float lightDistance;
+        if (lightPosition[4 * i + 3]!=0) {
+            lx = lightPosition[4 * i] - px;
+            ly = lightPosition[4 * i + 1] - py;
+            lz = lightPosition[4 * i + 2] - pz;
+            lightDistance = (float) Math.sqrt(lx * lx + ly * ly + lz * lz) - FUDGE;
+        }
+        else
+        {
+            lx = -lightPosition[4 * i];
+            ly = -lightPosition[4 * i + 1];
+            lz = -lightPosition[4 * i + 2];
+            lightDistance = Float.POSITIVE_INFINITY;
+        }
+        float invLength = 1.0f / (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+        lx *= invLength;
+        ly *= invLength;
+        lz *= invLength;
+        direction[0] = lx;
+        direction[1] = ly;
+        direction[2] = lz;
+
+        /* if point is not in the light cone of this light, it is not lit */
+        float cosAngle = -lx * lightSpotDirection[3 * i]
+                - ly * lightSpotDirection[3 * i + 1]
+                - lz * lightSpotDirection[3 * i + 2];
+        return (cosAngle<=lightCosSpotCutoff[i]) ? Float.NaN : lightDistance;
+    }
+
+    /**
+     * Find how much of an area light reaches a point, by shadow rays to
+     * random points in the cells of a grid over it. A coarse grid is traced
+     * first, and only if its rays disagree, near the edge of a shadow, is a
+     * finer grid traced as well, so that points that see all or none of the
+     * light cost a few rays.
+     *
+     * @return the fraction of the shadow rays that reached the light
+     */
+    private float areaLightVisibility(RTScene scene, TraceContext context, int i, Vector4f point) {
+        int lit = areaLightSamples(scene, context, i, point, AREA_LIGHT_STRATA);
+        int count = AREA_LIGHT_STRATA * AREA_LIGHT_STRATA;
+        if ((lit == 0) || (lit == count)) {
+            return (float) lit / count;
+        }
+        lit += areaLightSamples(scene, context, i, point, AREA_LIGHT_PENUMBRA_STRATA);
+        count += AREA_LIGHT_PENUMBRA_STRATA * AREA_LIGHT_PENUMBRA_STRATA;
+        return (float) lit / count;
+    }
+
+    /**
+     * Trace a shadow ray from a point to a random point in each cell of a
+     * grid of the given size over an area light. A sphere is sampled over
+     * the disc of it that faces the point.
+     *
+     * @return the number of shadow rays that reached the light
+     */
+    private int areaLightSamples(RTScene scene, TraceContext context, int i, Vector4f point,
+                                 int strata) {
+        Random random = context.random;
+        Ray shadowRay = context.shadowRay;
+        float cx = lightPosition[4 * i], cy = lightPosition[4 * i + 1], cz = lightPosition[4 * i + 2];
+        float ux, uy, uz, vx, vy, vz;
+        boolean disc = lightShape[i] == LIGHT_SPHERE;
+        if (disc) {
+            //two axes across the direction from the point to the center
+            float wx = cx - point.x, wy = cy - point.y, wz = cz - point.z;
+            if (Math.abs(wx) < Math.abs(wy)) {
+                ux = 0;
+                uy = wz;
+                uz = -wy;
+            } else {
+                ux = -wz;
+                uy = 0;
+                uz = wx;
+            }
+            float scale = lightRadius[i] / (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+            ux *= scale;
+            uy *= scale;
+            uz *= scale;
+            vx = wy * uz - wz * uy;
+            vy = wz * ux - wx * uz;
+            vz = wx * uy - wy * ux;
+            scale = lightRadius[i] / (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+            vx *= scale;
+            vy *= scale;
+            vz *= scale;
+        } else {
+            ux = lightEdges[6 * i];
+            uy = lightEdges[6 * i + 1];
+            uz = lightEdges[6 * i + 2];
+            vx = lightEdges[6 * i + 3];
+            vy = lightEdges[6 * i + 4];
+            vz = lightEdges[6 * i + 5];
+        }
+
+        int lit = 0;
+        for (int a = 0; a < strata; a++) {
+            for (int b = 0; b < strata; b++) {
+                float s = (a + random.nextFloat()) / strata;
+                float t = (b + random.nextFloat()) / strata;
+                float du, dv;
+                if (disc) {
+                    //the cells of the unit square spread evenly over the disc
+                    float r = (float) Math.sqrt(s);
+                    float angle = 2 * (float) Math.PI * t;
+                    du = r * (float) Math.cos(angle);
+                    dv = r * (float) Math.sin(angle);
+                } else {
+                    du = s - 0.5f;
+                    dv = t - 0.5f;
+                }
+                float lx = cx + du * ux + dv * vx - point.x;
+                float ly = cy + du * uy + dv * vy - point.y;
+                float lz = cz + du * uz + dv * vz - point.z;
+                float distance = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+                float invLength = 1.0f / distance;
+                lx *= invLength;
+                ly *= invLength;
+                lz *= invLength;
+                shadowRay.set(point.x + lx * FUDGE, point.y + ly * FUDGE, point.z + lz * FUDGE,
+                        lx, ly, lz);
+                context.statistics.rays[RTStatistics.SHADOW]++;
+                if (!scene.occluded(shadowRay, distance - FUDGE, context)) {
+                    lit++;
+                }
+            }
+        }
+        return lit;
+    }
+
+    /**
+     * Light the point that was hit, and write its color
+     *
+     * @param footprint the width of the area of the surface that the color
+     *                  stands for, in texture coordinates
+     * @param shadows   whether each light is already known to reach this
+     *                  point or to be blocked, as found by the packets of the
+     *                  context or the shading cache, starting at the given
+     *                  row, or null. Shadow rays are traced for the lights
+     *                  that are not known, and what they find is written
+     *                  back.
+     * @return the number of shadow rays traced
+     */
+    private int shade(HitRecord hitRecord, RTScene scene, TraceContext context, float footprint,
+                      float[] color, int c, byte[] shadows, int row) {
+        Vector4f point = hitRecord.point;
+        Vector4f normal = hitRecord.normal;
+        Material material = hitRecord.material;
+        Ray shadowRay = context.shadowRay;
+
+        float red = 0, green = 0, blue = 0;
+        int traced = 0;
+
+        float nx = normal.x, ny = normal.y, nz = normal.z;
+        float invLength = 1.0f / (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        nx *= invLength;
+        ny *= invLength;
+        nz *= invLength;
+
+        float vx = -point.x, vy = -point.y, vz = -point.z;
+        invLength = 1.0f / (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+        vx *= invLength;
+        vy *= invLength;
+        vz *= invLength;
+
+        int chosen = chooseLights(point, nx, ny, nz, context);
+        for (int l = 0; l < chosen; l++)
+        {
+            int i = context.lights[l];
+            float weight = context.lightWeights[l];
+            float lightDistance = toLight(i, point.x, point.y, point.z, context.lightDirection);
+            if (Float.isNaN(lightDistance))
+                continue;
+            float lx = context.lightDirection[0];
+            float ly = context.lightDirection[1];
+            float lz = context.lightDirection[2];
+
+            // Shadows: only geometry between the point and the light casts one
+            byte shadow = (shadows != null) ? shadows[row + i] : SHADOW_UNKNOWN;
+            if (shadow == SHADOW_BLOCKED) {
+                continue;
+            }
+            if ((shadow == SHADOW_UNKNOWN) && (lightShape[i] != LIGHT_POINT)) {
+                //only an area light that is all lit or all blocked is recorded
+                long before = context.statistics.rays[RTStatistics.SHADOW];
+                float visible = areaLightVisibility(scene, context, i, point);
+                traced += (int) (context.statistics.rays[RTStatistics.SHADOW] - before);
+                if ((shadows != null) && ((visible == 0) || (visible == 1))) {
+                    shadows[row + i] = (visible > 0) ? SHADOW_LIT : SHADOW_BLOCKED;
+                }
+                if (visible == 0) {
+                    continue;
+                }
+                weight *= visible;
+            } else if (shadow == SHADOW_UNKNOWN) {
+                invLength = 1.0f / (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+                float sx = lx * invLength, sy = ly * invLength, sz = lz * invLength;
+                shadowRay.set(point.x + sx * FUDGE, point.y + sy * FUDGE, point.z + sz * FUDGE,
+                        sx, sy, sz);
+                context.statistics.rays[RTStatistics.SHADOW]++;
+                traced++;
+                boolean blocked = scene.occluded(shadowRay, lightDistance, context);
+                if (shadows != null) {
+                    shadows[row + i] = blocked ? SHADOW_BLOCKED : SHADOW_LIT;
+                }
+                if (blocked) {
+                    continue;
+                }
+            }
+
+            float nDotL = nx * lx + ny * ly + nz * lz;
+
+            //reflect the vector from the light about the normal
+            float dot = -(lx * nx + ly * ny + lz * nz);
+            float rx = -lx - (dot + dot) * nx;
+            float ry = -ly - (dot + dot) * ny;
+            float rz = -lz - (dot + dot) * nz;
+            invLength = 1.0f / (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+            rx *= invLength;
+            ry *= invLength;
+            rz *= invLength;
+
+            float rDotV = Math.max(rx * vx + ry * vy + rz * vz,0.0f);
+
+            Vector4f ambient = material.getAmbient();
+            Vector4f diffuse = material.getDiffuse();
+            Vector4f specular = material.getSpecular();
+            float diffuseFactor = Math.max(nDotL,0);
+
+            red += weight * ambient.x * lightAmbient[3 * i];
+            green += weight * ambient.y * lightAmbient[3 * i + 1];
+            blue += weight * ambient.z * lightAmbient[3 * i + 2];
+
+            red += weight * diffuse.x * lightDiffuse[3 * i] * diffuseFactor;
+            green += weight * diffuse.y * lightDiffuse[3 * i + 1] * diffuseFactor;
+            blue += weight * diffuse.z * lightDiffuse[3 * i + 2] * diffuseFactor;
+            if (nDotL>0) {
+                float specularFactor = (float) Math.pow(rDotV, material.getShininess());
+                red += weight * specular.x * lightSpecular[3 * i] * specularFactor;
+                green += weight * specular.y * lightSpecular[3 * i + 1] * specularFactor;
+                blue += weight * specular.z * lightSpecular[3 * i + 2] * specularFactor;
             }
-            color = new Vector3f(color).add(ambient).add(diffuse).add(specular);
         }
 
-        if (textures.containsKey(textureName)) {
-            Vector4f colorFromTexture = textures.get(textureName).getColor(texcoord.x, 1 - texcoord.y);
-            color = color.mul(colorFromTexture.x, colorFromTexture.y, colorFromTexture.z);
+        //the caustics that the photons nearest the point light, which no
+        //shadow ray finds
+        PhotonMap photons = context.photons;
+        if ((photons != null) && (material.getAbsorption() > 0)) {
+            Vector4f diffuse = material.getDiffuse();
+            float[] irradiance = context.irradiance;
+            photons.gather(point.x, point.y, point.z, nx, ny, nz, causticGather,
+                    CAUSTIC_RADIUS * photons.getExtent(), context.photonSearch, irradiance);
+            red += diffuse.x * irradiance[0];
+            green += diffuse.y * irradiance[1];
+            blue += diffuse.z * irradiance[2];
         }
 
-        color.x = Math.min(color.x,1);
-        color.y = Math.min(color.y,1);
-        color.z = Math.min(color.z,1);
+        if (hitRecord.texture >= 0) {
+            MipmappedTexture texture = textures.get(hitRecord.texture);
+            Vector2f texcoord = hitRecord.texcoord;
+            float[] texel = context.texel;
+            float texels = footprint * (float) Math.sqrt(texture.getWidth() * texture.getHeight());
+            texture.sample(texcoord.x, 1 - texcoord.y, texels, texel);
+            red *= texel[0];
+            green *= texel[1];
+            blue *= texel[2];
+        }
 
-        return new Color((int)(255*color.x),(int)(255*color.y),(int)(255*color.z));
+        // the lighting of a single surface saturates as it does in the shader,
+        // but what is reflected onto it is not limited
+        color[c] = Math.min(red, 1);
+        color[c + 1] = Math.min(green, 1);
+        color[c + 2] = Math.min(blue, 1);
+        return traced;
     }
 
     @Override
@@ -290,18 +2325,32 @@ public class RTScenegraphRenderer implements IScenegraphRenderer {
     @Override
     public void addTexture(String name,String path)
     {
-        TextureImage image = null;
-        String imageFormat = path.substring(path.indexOf('.')+1);
-        try {
-            image = new TextureImage(path,imageFormat,name);
+        BufferedImage image = null;
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(path)) {
+            if (in != null) {
+                image = ImageIO.read(in);
+            }
         } catch (IOException e) {
+            image = null;
+        }
+        if (image == null) {
             throw new IllegalArgumentException("Texture "+path+" cannot be read!");
         }
-        textures.put(name,image);
+
+        //a texture added again under the same name keeps its index, so that
+        //scenes already compiled still find it
+        MipmappedTexture texture = new MipmappedTexture(image);
+        Integer index = textureIndices.get(name);
+        if (index == null) {
+            textureIndices.put(name, textures.size());
+            textures.add(texture);
+        } else {
+            textures.set(index, texture);
+        }
     }
 
     @Override
     public void dispose() {
-
+        pool.shutdown();
     }
 }
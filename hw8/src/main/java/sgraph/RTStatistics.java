@@ -0,0 +1,270 @@
+package sgraph;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * What the ray tracer did to trace an image: how many rays of each kind it
+ * traced, how deep their trees went, how many intersection tests they took,
+ * and how long its tiles took. Get it from {@link
+ * RTScenegraphRenderer#getStatistics()} once an image has been traced, and
+ * print it for a report.
+ *
+ * Each tile counts into its own statistics while it is traced, which only
+ * its worker touches, and these are added to those of the image when the
+ * tile is finished, so counting costs an increment of a field per event.
+ */
+public class RTStatistics {
+  /**
+   * The kinds of rays
+   */
+  public static final int PRIMARY = 0;
+  public static final int SHADOW = 1;
+  public static final int REFLECTION = 2;
+  public static final int REFRACTION = 3;
+  private static final String[] RAY_NAMES = {"primary", "shadow", "reflection", "refraction"};
+
+  /**
+   * The kinds of intersection tests: boxes of hierarchy nodes, the leaves of
+   * each shape, triangles of meshes and instances of copied subgraphs
+   */
+  public static final int NODE = 0;
+  public static final int SPHERE = 1;
+  public static final int BOX = 2;
+  public static final int MESH = 3;
+  public static final int TRIANGLE = 4;
+  public static final int INSTANCE = 5;
+  private static final String[] TEST_NAMES =
+          {"nodes", "spheres", "boxes", "meshes", "triangles", "instances"};
+
+  final long[] rays;
+  /**
+   * The number of primary, reflected and refracted rays traced at each
+   * bounce depth
+   */
+  final long[] depths;
+  final long[] tests;
+  /**
+   * The number of pixels whose primary ray took the color of a pixel of
+   * the last image instead of being shaded
+   */
+  long reused;
+  /**
+   * The photons emitted for caustics before the image was traced, how many
+   * of them were kept, and how long that took
+   */
+  private long photonsEmitted, photonsStored, photonNanos;
+  private int width, height;
+  private long tiles;
+  private long tileNanos, minimumTileNanos, maximumTileNanos;
+  private int slowestTileX, slowestTileY;
+  private long nanos;
+
+  RTStatistics(int maximumDepth) {
+    rays = new long[RAY_NAMES.length];
+    depths = new long[maximumDepth];
+    tests = new long[TEST_NAMES.length];
+    minimumTileNanos = Long.MAX_VALUE;
+  }
+
+  /**
+   * Forget the rays and tests counted so far, as a worker does before each
+   * tile
+   */
+  void clearCounts() {
+    Arrays.fill(rays, 0);
+    Arrays.fill(depths, 0);
+    Arrays.fill(tests, 0);
+    reused = 0;
+  }
+
+  /**
+   * The total number of intersection tests counted so far, which is what a
+   * pixel costs in the heatmap
+   */
+  long getWork() {
+    long work = 0;
+    for (long count : tests) {
+      work += count;
+    }
+    return work;
+  }
+
+  /**
+   * Add the counts of a finished tile to these
+   *
+   * @param tile  the counts of the tile
+   * @param nanos how long the tile took
+   * @param x     the left edge of the tile in the image
+   * @param y     the top edge of the tile in the image
+   */
+  synchronized void addTile(RTStatistics tile, long nanos, int x, int y) {
+    for (int i = 0; i < rays.length; i++) {
+      rays[i] += tile.rays[i];
+    }
+    for (int i = 0; i < depths.length; i++) {
+      depths[i] += tile.depths[i];
+    }
+    for (int i = 0; i < tests.length; i++) {
+      tests[i] += tile.tests[i];
+    }
+    reused += tile.reused;
+    tiles++;
+    tileNanos += nanos;
+    minimumTileNanos = Math.min(minimumTileNanos, nanos);
+    if (nanos > maximumTileNanos) {
+      maximumTileNanos = nanos;
+      slowestTileX = x;
+      slowestTileY = y;
+    }
+  }
+
+  synchronized void addPhotons(long emitted, long stored, long nanos) {
+    photonsEmitted += emitted;
+    photonsStored += stored;
+    photonNanos += nanos;
+  }
+
+  synchronized void addTime(int width, int height, long nanos) {
+    this.width = width;
+    this.height = height;
+    this.nanos += nanos;
+  }
+
+  /**
+   * Get the number of rays of the given kind, like {@link #SHADOW}
+   */
+  public synchronized long getRayCount(int kind) {
+    return rays[kind];
+  }
+
+  /**
+   * Get the number of rays of every kind
+   */
+  public synchronized long getRayCount() {
+    long count = 0;
+    for (long rayCount : rays) {
+      count += rayCount;
+    }
+    return count;
+  }
+
+  /**
+   * Get the number of primary, reflected and refracted rays that were
+   * traced at the given bounce depth, where primary rays are at 0
+   */
+  public synchronized long getDepthCount(int depth) {
+    return (depth < depths.length) ? depths[depth] : 0;
+  }
+
+  /**
+   * Get the deepest bounce that any ray was traced at
+   */
+  public synchronized int getMaximumDepth() {
+    int depth = 0;
+    for (int i = 0; i < depths.length; i++) {
+      if (depths[i] > 0) {
+        depth = i;
+      }
+    }
+    return depth;
+  }
+
+  /**
+   * Get the number of intersection tests of the given kind, like {@link
+   * #TRIANGLE}
+   */
+  public synchronized long getTestCount(int kind) {
+    return tests[kind];
+  }
+
+  /**
+   * Get the average number of intersection tests of every kind per ray
+   */
+  public synchronized float getTestsPerRay() {
+    long rayCount = getRayCount();
+    return (rayCount > 0) ? (float) getWork() / rayCount : 0;
+  }
+
+  /**
+   * Get the number of pixels that took their colors from the last image
+   */
+  public synchronized long getReusedCount() {
+    return reused;
+  }
+
+  /**
+   * Get the number of photons kept for caustics, out of those emitted
+   */
+  public synchronized long getPhotonCount() {
+    return photonsStored;
+  }
+
+  /**
+   * Get the number of tiles traced, over all passes
+   */
+  public synchronized long getTileCount() {
+    return tiles;
+  }
+
+  /**
+   * Get the shortest, average and longest time that a tile took, in seconds
+   */
+  public synchronized float getMinimumTileSeconds() {
+    return (tiles > 0) ? minimumTileNanos / 1e9f : 0;
+  }
+
+  public synchronized float getAverageTileSeconds() {
+    return (tiles > 0) ? tileNanos / 1e9f / tiles : 0;
+  }
+
+  public synchronized float getMaximumTileSeconds() {
+    return maximumTileNanos / 1e9f;
+  }
+
+  /**
+   * Get how long the image took to trace, in seconds
+   */
+  public synchronized float getSeconds() {
+    return nanos / 1e9f;
+  }
+
+  /**
+   * Get the number of rays of every kind traced per second
+   */
+  public synchronized float getRaysPerSecond() {
+    return (nanos > 0) ? getRayCount() / (nanos / 1e9f) : 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format(Locale.ROOT, "Traced %dx%d in %.3f s: %d rays, %.0f rays/s%n",
+            width, height, getSeconds(), getRayCount(), getRaysPerSecond()));
+    report.append("  rays:");
+    for (int i = 0; i < rays.length; i++) {
+      report.append(' ').append(RAY_NAMES[i]).append(' ').append(rays[i]);
+    }
+    report.append(String.format("%n  rays at each depth:"));
+    for (int i = 0; i <= getMaximumDepth(); i++) {
+      report.append(' ').append(i).append(':').append(depths[i]);
+    }
+    report.append(String.format(Locale.ROOT, "%n  tests: %.1f per ray,", getTestsPerRay()));
+    for (int i = 0; i < tests.length; i++) {
+      report.append(' ').append(TEST_NAMES[i]).append(' ').append(tests[i]);
+    }
+    if (reused > 0) {
+      report.append(String.format(Locale.ROOT, "%n  reused: %d pixels of the last image",
+              reused));
+    }
+    if (photonsEmitted > 0) {
+      report.append(String.format(Locale.ROOT, "%n  photons: %d kept of %d emitted in %.3f s",
+              photonsStored, photonsEmitted, photonNanos / 1e9f));
+    }
+    report.append(String.format(Locale.ROOT,
+            "%n  tiles: %d, %.2f ms min, %.2f ms mean, %.2f ms max at (%d,%d)",
+            tiles, 1e3f * getMinimumTileSeconds(), 1e3f * getAverageTileSeconds(),
+            1e3f * getMaximumTileSeconds(), slowestTileX, slowestTileY));
+    return report.toString();
+  }
+}
@@ -13,4 +13,14 @@ public class Ray {
         this.start = new Vector4f(0,0,0,1);
         this.direction = new Vector4f(0,0,1,0);
     }
+
+    /**
+     * Set the start and direction of this ray, so that it can be reused
+     * instead of allocating a new one
+     */
+    public Ray set(float sx, float sy, float sz, float dx, float dy, float dz) {
+        start.set(sx, sy, sz, 1);
+        direction.set(dx, dy, dz, 0);
+        return this;
+    }
 }
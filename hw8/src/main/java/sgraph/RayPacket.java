@@ -0,0 +1,165 @@
+package sgraph;
+
+/**
+ * A bundle of rays that start and point close to each other, like the
+ * primary rays of a block of pixels or the shadow rays from them to one
+ * light, which are traced through the scene together. The rays are stored
+ * as one array per component rather than as {@link Ray} objects, so that
+ * each test runs as a plain loop over the packet.
+ *
+ * Besides the rays themselves, a packet keeps the range of each component
+ * of their starts and of the inverse of their directions. A box that no ray
+ * with components in those ranges could hit is skipped for the whole packet
+ * without looking at any single ray.
+ */
+class RayPacket {
+  /**
+   * The most rays that a packet holds, which is enough for a batch of
+   * 8 x 8 pixels
+   */
+  static final int CAPACITY = 64;
+
+  /**
+   * The start and direction of each ray, and the inverse of the direction
+   */
+  final float[] startX, startY, startZ;
+  final float[] directionX, directionY, directionZ;
+  final float[] inverseX, inverseY, inverseZ;
+  /**
+   * For each ray, the time of the closest hit found so far, or how far the
+   * ray goes if nothing has been hit. Rays that only look for occluders are
+   * given a negative time once they are found to be blocked.
+   */
+  final float[] time;
+  /**
+   * The primitive of the closest hit of each ray, or -1 if it has none
+   */
+  final int[] primitive;
+  /**
+   * What each ray stands for, for whoever filled the packet, like its pixel
+   */
+  final int[] source;
+  /**
+   * Scratch space for the time at which each ray hits a single primitive
+   */
+  final float[] hitTime;
+  int size;
+
+  /**
+   * The range of the starts of the rays along each axis, and of the inverse
+   * of their directions, which is only used along axes where no direction is
+   * zero and they all point the same way
+   */
+  float minimumStartX, minimumStartY, minimumStartZ;
+  float maximumStartX, maximumStartY, maximumStartZ;
+  float minimumInverseX, minimumInverseY, minimumInverseZ;
+  float maximumInverseX, maximumInverseY, maximumInverseZ;
+  boolean boundedX, boundedY, boundedZ;
+
+  RayPacket() {
+    startX = new float[CAPACITY];
+    startY = new float[CAPACITY];
+    startZ = new float[CAPACITY];
+    directionX = new float[CAPACITY];
+    directionY = new float[CAPACITY];
+    directionZ = new float[CAPACITY];
+    inverseX = new float[CAPACITY];
+    inverseY = new float[CAPACITY];
+    inverseZ = new float[CAPACITY];
+    time = new float[CAPACITY];
+    primitive = new int[CAPACITY];
+    source = new int[CAPACITY];
+    hitTime = new float[CAPACITY];
+  }
+
+  /**
+   * Add a ray to the packet
+   *
+   * @param maximumTime how far the ray goes
+   * @return the index of the ray in the packet
+   */
+  int add(float sx, float sy, float sz, float dx, float dy, float dz, float maximumTime) {
+    int r = size++;
+    startX[r] = sx;
+    startY[r] = sy;
+    startZ[r] = sz;
+    directionX[r] = dx;
+    directionY[r] = dy;
+    directionZ[r] = dz;
+    time[r] = maximumTime;
+    primitive[r] = -1;
+    return r;
+  }
+
+  /**
+   * Find the inverse directions and the ranges of the packet once all of its
+   * rays have been added, before it is traced
+   */
+  void prepare() {
+    int n = size;
+    for (int r = 0; r < n; r++) {
+      inverseX[r] = 1.0f / directionX[r];
+      inverseY[r] = 1.0f / directionY[r];
+      inverseZ[r] = 1.0f / directionZ[r];
+    }
+    minimumStartX = minimum(startX, n);
+    minimumStartY = minimum(startY, n);
+    minimumStartZ = minimum(startZ, n);
+    maximumStartX = maximum(startX, n);
+    maximumStartY = maximum(startY, n);
+    maximumStartZ = maximum(startZ, n);
+    minimumInverseX = minimum(inverseX, n);
+    minimumInverseY = minimum(inverseY, n);
+    minimumInverseZ = minimum(inverseZ, n);
+    maximumInverseX = maximum(inverseX, n);
+    maximumInverseY = maximum(inverseY, n);
+    maximumInverseZ = maximum(inverseZ, n);
+    boundedX = bounded(minimumInverseX, maximumInverseX);
+    boundedY = bounded(minimumInverseY, maximumInverseY);
+    boundedZ = bounded(minimumInverseZ, maximumInverseZ);
+  }
+
+  /**
+   * Get the longest time that any ray of the packet could still hit
+   * something at, which is negative once every ray is blocked
+   */
+  float maximumTime() {
+    float maximum = Float.NEGATIVE_INFINITY;
+    for (int r = 0; r < size; r++) {
+      maximum = Math.max(maximum, time[r]);
+    }
+    return maximum;
+  }
+
+  /**
+   * Set the ray of the given index into a single ray
+   */
+  void get(int r, Ray ray) {
+    ray.set(startX[r], startY[r], startZ[r], directionX[r], directionY[r], directionZ[r]);
+  }
+
+  private static float minimum(float[] values, int n) {
+    float minimum = Float.POSITIVE_INFINITY;
+    for (int r = 0; r < n; r++) {
+      minimum = Math.min(minimum, values[r]);
+    }
+    return minimum;
+  }
+
+  private static float maximum(float[] values, int n) {
+    float maximum = Float.NEGATIVE_INFINITY;
+    for (int r = 0; r < n; r++) {
+      maximum = Math.max(maximum, values[r]);
+    }
+    return maximum;
+  }
+
+  /**
+   * Whether a range of inverse directions is finite and on one side of zero,
+   * so that products with it can be bounded by those with its ends
+   */
+  private static boolean bounded(float minimum, float maximum) {
+    return (minimum > Float.NEGATIVE_INFINITY) && (maximum < Float.POSITIVE_INFINITY)
+            && ((minimum > 0) || (maximum < 0));
+  }
+}
@@ -0,0 +1,205 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+
+/**
+ * What the primary rays of the last complete image hit, moved into the
+ * camera of the next image, so that a pixel of the new image that sees the
+ * same surface point as a pixel of the old one can take its color instead of
+ * shading it again.
+ *
+ * A hit of the new image is moved into the old view and projected onto the
+ * old image, and the nearest pixel there is reused if its primary ray hit
+ * the same leaf or instance at about the same distance, which rules out
+ * points that were hidden from the old camera, and so did its four
+ * neighbors, in about the same color. That rules out edges, shadows and
+ * objects a pixel or two across, whose color changes too much from one side
+ * of a pixel to the other. Surfaces whose color depends
+ * on where they are seen from, which have specular highlights, reflections
+ * or refractions, are only reused if the two cameras see them from about the
+ * same direction. No pixel is reused more than a few images in a row, so
+ * that small errors do not build up while the camera keeps moving.
+ *
+ * This is only valid if nothing but the camera moved between the two
+ * images, which the renderer checks before making one.
+ */
+class Reprojection {
+  /**
+   * The relative difference in distance from the old camera beyond which a
+   * hit is taken to be on a different surface than the old pixel
+   */
+  private static final float DEPTH_TOLERANCE = 0.02f;
+  /**
+   * The largest difference in any channel between the color of an old pixel
+   * and those of its neighbors, for it to be reused
+   */
+  private static final float COLOR_TOLERANCE = 0.05f;
+  /**
+   * The cosine of the largest angle between the directions that the two
+   * cameras see a view dependent surface from, for it to be reused
+   */
+  private static final float MINIMUM_VIEW_COSINE = (float) Math.cos(Math.toRadians(2));
+  /**
+   * The most images in a row that a color is reused in before it is shaded
+   * again. Pixels reach it a few images apart, by their index, so that they
+   * are not all shaded again in the same image.
+   */
+  private static final int MAXIMUM_AGE = 6;
+
+  private final int width, height;
+  private final float z;
+  /**
+   * The transformation from the new view to the old one, column by column,
+   * and the old camera in the new view
+   */
+  private final float[] toOld;
+  private final float eyeX, eyeY, eyeZ;
+  /**
+   * What the old image found for each pixel: the primitive hit, the time
+   * along its primary ray, its color, 3 floats per pixel, and for how many
+   * images that color had been reused
+   */
+  private final int[] primitives;
+  private final float[] depths;
+  private final float[] colors;
+  private final byte[] ages;
+  /**
+   * Whether the color of each primitive of the scene depends on the view
+   */
+  private final boolean[] viewDependent;
+
+  /**
+   * @param scene      the scene, refitted to the new camera
+   * @param oldCamera  the world-to-view transformation of the old image
+   * @param newCamera  the world-to-view transformation of the new image
+   * @param width      the width of both images
+   * @param height     the height of both images
+   * @param z          the z of the near plane of both images, where a pixel
+   *                   is one unit wide
+   * @param primitives the primitive that the primary ray of each pixel of
+   *                   the old image hit, or -1
+   * @param depths     the time along the primary ray of each pixel of the
+   *                   old image
+   * @param colors     the color of the primary ray of each pixel of the old
+   *                   image
+   * @param ages       for how many images in a row the color of each pixel
+   *                   of the old image had been reused
+   */
+  Reprojection(RTScene scene, Matrix4f oldCamera, Matrix4f newCamera,
+               int width, int height, float z,
+               int[] primitives, float[] depths, float[] colors, byte[] ages) {
+    this.width = width;
+    this.height = height;
+    this.z = z;
+    this.primitives = primitives;
+    this.depths = depths;
+    this.colors = colors;
+    this.ages = ages;
+
+    Matrix4f toOld = new Matrix4f(oldCamera).mul(new Matrix4f(newCamera).invert());
+    this.toOld = toOld.get(new float[16]);
+    Vector4f eye = new Matrix4f(toOld).invert().transform(new Vector4f(0, 0, 0, 1));
+    eyeX = eye.x;
+    eyeY = eye.y;
+    eyeZ = eye.z;
+
+    viewDependent = new boolean[scene.getLeafCount()];
+    for (int i = 0; i < viewDependent.length; i++) {
+      viewDependent[i] = scene.isViewDependent(i);
+    }
+  }
+
+  /**
+   * Find the pixel of the old image whose color a primary ray of the new
+   * image can take
+   *
+   * @param dx        the direction of the ray, which starts at the camera
+   * @param dy        the direction of the ray
+   * @param dz        the direction of the ray
+   * @param t         the time along the ray of its hit
+   * @param primitive the primitive that the ray hit, or -1 if it hit nothing
+   * @return the index of the pixel, or -1 if the ray must be shaded
+   */
+  int find(float dx, float dy, float dz, float t, int primitive) {
+    if (primitive < 0) {
+      return -1;
+    }
+    float px = t * dx, py = t * dy, pz = t * dz;
+    float[] m = toOld;
+    float qx = m[0] * px + m[4] * py + m[8] * pz + m[12];
+    float qy = m[1] * px + m[5] * py + m[9] * pz + m[13];
+    float qz = m[2] * px + m[6] * py + m[10] * pz + m[14];
+    if (qz >= 0) {
+      return -1;
+    }
+
+    //the old primary ray through pixel (i,j) points at (i-width/2, j-height/2, z)
+    float scale = z / qz;
+    int i = Math.round(qx * scale + 0.5f * width);
+    int j = Math.round(qy * scale + 0.5f * height);
+    if ((i < 0) || (i >= width) || (j < 0) || (j >= height)) {
+      return -1;
+    }
+    int index = (height - 1 - j) * width + i;
+    if ((primitives[index] != primitive) || (ages[index] >= MAXIMUM_AGE - (index & 3))) {
+      return -1;
+    }
+    //on an edge, a small object or a shadow, the color changes too much
+    //within a pixel
+    if ((i == 0) || (i == width - 1) || (j == 0) || (j == height - 1)
+            || !smooth(index, index - 1, primitive) || !smooth(index, index + 1, primitive)
+            || !smooth(index, index - width, primitive)
+            || !smooth(index, index + width, primitive)) {
+      return -1;
+    }
+
+    float ox = i - 0.5f * width, oy = j - 0.5f * height;
+    float oldDistance = depths[index] * (float) Math.sqrt(ox * ox + oy * oy + z * z);
+    float distance = (float) Math.sqrt(qx * qx + qy * qy + qz * qz);
+    if (Math.abs(oldDistance - distance) > DEPTH_TOLERANCE * distance) {
+      return -1;
+    }
+
+    if (viewDependent[primitive]) {
+      float ex = px - eyeX, ey = py - eyeY, ez = pz - eyeZ;
+      float dot = px * ex + py * ey + pz * ez;
+      float lengths = (float) Math.sqrt((px * px + py * py + pz * pz) * (ex * ex + ey * ey + ez * ez));
+      if (dot < MINIMUM_VIEW_COSINE * lengths) {
+        return -1;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Whether a neighbor of a pixel of the old image hit the same primitive,
+   * in about the same color
+   */
+  private boolean smooth(int index, int neighbor, int primitive) {
+    if (primitives[neighbor] != primitive) {
+      return false;
+    }
+    for (int k = 0; k < 3; k++) {
+      if (Math.abs(colors[3 * index + k] - colors[3 * neighbor + k]) > COLOR_TOLERANCE) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copy the color of a pixel of the old image into the given array
+   */
+  void getColor(int index, float[] color) {
+    System.arraycopy(colors, 3 * index, color, 0, 3);
+  }
+
+  /**
+   * Get the age that a pixel of the new image has when it takes the color of
+   * the given pixel of the old image
+   */
+  byte getAge(int index) {
+    return (byte) (ages[index] + 1);
+  }
+}
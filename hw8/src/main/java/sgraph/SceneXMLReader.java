@@ -326,6 +326,25 @@ class MyHandler<K extends IVertexData> extends DefaultHandler {
         if (light!=null)
           light.setSpotAngle(sc.nextFloat());
         break;
+      case "rectangle": {
+        sc = new Scanner(data);
+        if (light != null) {
+          AreaLight area = (light instanceof AreaLight) ? (AreaLight) light : new AreaLight(light);
+          area.setRectangle(sc.nextFloat(), sc.nextFloat(), sc.nextFloat(),
+                  sc.nextFloat(), sc.nextFloat(), sc.nextFloat());
+          light = area;
+        }
+      }
+      break;
+      case "radius": {
+        sc = new Scanner(data);
+        if (light != null) {
+          AreaLight area = (light instanceof AreaLight) ? (AreaLight) light : new AreaLight(light);
+          area.setSphere(sc.nextFloat());
+          light = area;
+        }
+      }
+      break;
       case "emissive":
         sc = new Scanner(data);
         material.setEmission(sc.nextFloat(), sc.nextFloat(), sc.nextFloat());
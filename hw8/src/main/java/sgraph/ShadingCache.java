@@ -0,0 +1,317 @@
+package sgraph;
+
+import java.util.Arrays;
+
+/**
+ * Which lights reach points of the scene, as found by the shadow rays from
+ * a few of them, so that shading points close to those on the same surface
+ * can take that instead of tracing shadow rays of their own. Only whether
+ * each light is blocked is kept, and everything else is shaded at every
+ * point, so textures and specular highlights are as exact as without it.
+ *
+ * Each record is a point, its normal, a radius and, for each light, whether
+ * a shadow ray found it blocked, lit, or was not traced. A point is covered
+ * by the records on about the same plane whose radius it is inside, and a
+ * light is taken to be blocked or lit there only if every covering record
+ * that knows it agrees. Where they do not, the point is near the edge of a
+ * shadow, so it traces its own ray, and the records that disagree with it
+ * shrink so that they no longer cover it. Thin shadows that fall entirely
+ * between records are missed, so the radius of records bounds the error.
+ *
+ * Records are found through a hash of the cells of a grid, with a grid for
+ * each power of two of radius and each axis that normals point along the
+ * most. Each record is added to the cells that its sphere overlaps in the
+ * grid of the radius it was asked for, before any shrinking, so a point only
+ * looks in the one cell that holds it in the grid of its own radius and
+ * normal.
+ *
+ * A cache is filled by a single worker, and only holds the records of one
+ * tile of an image, so that the image does not depend on the order that
+ * tiles are traced in. A worker clears its cache for each tile, which keeps
+ * the memory it has grown to.
+ */
+class ShadingCache {
+  /**
+   * The smallest cosine of the angle between the normal of a point and that
+   * of a record that covers it
+   */
+  private static final float NORMAL_COSINE = 0.98f;
+  /**
+   * How far off the plane of a record, relative to its radius, a point that
+   * it covers may be
+   */
+  private static final float PLANE_TOLERANCE = 0.1f;
+  /**
+   * The most records that a cache holds
+   */
+  private static final int MAXIMUM_RECORDS = 1 << 16;
+  /**
+   * What a record knows of a light, as the renderer records shadows, and
+   * that records covering a point disagree about it
+   */
+  private static final byte UNKNOWN = 0;
+  private static final byte CONFLICT = -1;
+
+  private final int lightCount;
+  /**
+   * The center, normal and radius of each record, 7 floats per record, and
+   * what it knows of each light, a row of lights per record
+   */
+  private float[] records;
+  private byte[] shadows;
+  private int count;
+  /**
+   * The open-addressed hash table from the key of each cell that holds
+   * records to its first entry, or -1 for an empty slot
+   */
+  private long[] keys;
+  private int[] heads;
+  private int used;
+  /**
+   * The record of each entry, and the next entry of the same cell, or -1
+   */
+  private int[] entryRecords, entryNext;
+  private int entryCount;
+  /**
+   * The records that covered the point of the last lookup
+   */
+  private int[] covering;
+  private int coveringCount;
+
+  ShadingCache(int lightCount) {
+    this.lightCount = lightCount;
+    records = new float[7 * 64];
+    shadows = new byte[64 * lightCount];
+    keys = new long[256];
+    heads = new int[256];
+    Arrays.fill(heads, -1);
+    entryRecords = new int[256];
+    entryNext = new int[256];
+    covering = new int[16];
+  }
+
+  int getLightCount() {
+    return lightCount;
+  }
+
+  /**
+   * Forget every record
+   */
+  void clear() {
+    count = 0;
+    Arrays.fill(heads, -1);
+    used = 0;
+    entryCount = 0;
+    coveringCount = 0;
+  }
+
+  /**
+   * Find what the records that cover a point know of each light
+   *
+   * @param found where to write, for each light, whether it is lit or
+   *              blocked, or unknown if no covering record knows it or they
+   *              disagree
+   */
+  void lookup(float px, float py, float pz, float nx, float ny, float nz, float radius,
+              byte[] found) {
+    Arrays.fill(found, 0, lightCount, UNKNOWN);
+    coveringCount = 0;
+    int slot = find(key(Math.getExponent(radius), facing(nx, ny, nz), px, py, pz));
+    for (int e = heads[slot]; e >= 0; e = entryNext[e]) {
+      int r = entryRecords[e];
+      if (covers(r, px, py, pz, nx, ny, nz)) {
+        addCovering(r);
+      }
+    }
+
+    boolean conflict = false;
+    for (int k = 0; k < coveringCount; k++) {
+      int row = covering[k] * lightCount;
+      for (int i = 0; i < lightCount; i++) {
+        byte known = shadows[row + i];
+        if ((known == UNKNOWN) || (found[i] == known)) {
+          continue;
+        }
+        if (found[i] == UNKNOWN) {
+          found[i] = known;
+        } else if (found[i] != CONFLICT) {
+          found[i] = CONFLICT;
+          conflict = true;
+        }
+      }
+    }
+    if (conflict) {
+      for (int i = 0; i < lightCount; i++) {
+        if (found[i] == CONFLICT) {
+          found[i] = UNKNOWN;
+        }
+      }
+    }
+  }
+
+  /**
+   * Record what was found of each light at the point of the last lookup.
+   * The records that covered it and disagree with it are shrunk to half
+   * their distance from it, and so is the new record, which is left out if
+   * that makes it much smaller than asked for.
+   */
+  void add(float px, float py, float pz, float nx, float ny, float nz, float radius,
+           byte[] found) {
+    float r = radius;
+    for (int k = 0; k < coveringCount; k++) {
+      int other = covering[k];
+      if (!disagree(other, found)) {
+        continue;
+      }
+      int o = 7 * other;
+      float dx = px - records[o], dy = py - records[o + 1], dz = pz - records[o + 2];
+      float half = 0.5f * (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+      records[o + 6] = Math.min(records[o + 6], half);
+      r = Math.min(r, half);
+    }
+    if ((r < 0.5f * radius) || (count >= MAXIMUM_RECORDS)) {
+      return;
+    }
+
+    if (count * 7 >= records.length) {
+      records = Arrays.copyOf(records, 2 * records.length);
+      shadows = Arrays.copyOf(shadows, 2 * shadows.length);
+    }
+    int record = count++;
+    int o = 7 * record;
+    records[o] = px;
+    records[o + 1] = py;
+    records[o + 2] = pz;
+    records[o + 3] = nx;
+    records[o + 4] = ny;
+    records[o + 5] = nz;
+    records[o + 6] = r;
+    System.arraycopy(found, 0, shadows, record * lightCount, lightCount);
+
+    //the cells that the bounding box of its sphere overlaps, at the level
+    //that points asking for the same radius look in
+    int level = Math.getExponent(radius);
+    int facing = facing(nx, ny, nz);
+    float scale = Math.scalb(1.0f, -(level + 1));
+    long x0 = (long) Math.floor((px - r) * scale), x1 = (long) Math.floor((px + r) * scale);
+    long y0 = (long) Math.floor((py - r) * scale), y1 = (long) Math.floor((py + r) * scale);
+    long z0 = (long) Math.floor((pz - r) * scale), z1 = (long) Math.floor((pz + r) * scale);
+    for (long x = x0; x <= x1; x++) {
+      for (long y = y0; y <= y1; y++) {
+        for (long z = z0; z <= z1; z++) {
+          addEntry(record, key(level, facing, x, y, z));
+        }
+      }
+    }
+  }
+
+  private boolean covers(int record, float px, float py, float pz, float nx, float ny, float nz) {
+    int o = 7 * record;
+    float dx = px - records[o], dy = py - records[o + 1], dz = pz - records[o + 2];
+    float r = records[o + 6];
+    if (dx * dx + dy * dy + dz * dz >= r * r) {
+      return false;
+    }
+    float rx = records[o + 3], ry = records[o + 4], rz = records[o + 5];
+    return (nx * rx + ny * ry + nz * rz >= NORMAL_COSINE)
+            && (Math.abs(dx * rx + dy * ry + dz * rz) <= PLANE_TOLERANCE * r);
+  }
+
+  private boolean disagree(int record, byte[] found) {
+    int row = record * lightCount;
+    for (int i = 0; i < lightCount; i++) {
+      byte known = shadows[row + i];
+      if ((known != UNKNOWN) && (found[i] != UNKNOWN) && (known != found[i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void addCovering(int record) {
+    if (coveringCount == covering.length) {
+      covering = Arrays.copyOf(covering, 2 * covering.length);
+    }
+    covering[coveringCount++] = record;
+  }
+
+  /**
+   * The axis that a normal points along the most, and which way, from 0 to 5
+   */
+  private static int facing(float nx, float ny, float nz) {
+    float ax = Math.abs(nx), ay = Math.abs(ny), az = Math.abs(nz);
+    if ((ax >= ay) && (ax >= az)) {
+      return (nx >= 0) ? 0 : 1;
+    }
+    if (ay >= az) {
+      return (ny >= 0) ? 2 : 3;
+    }
+    return (nz >= 0) ? 4 : 5;
+  }
+
+  /**
+   * The key of the cell of the given level that holds a point
+   */
+  private static long key(int level, int facing, float px, float py, float pz) {
+    float scale = Math.scalb(1.0f, -(level + 1));
+    return key(level, facing, (long) Math.floor(px * scale), (long) Math.floor(py * scale),
+            (long) Math.floor(pz * scale));
+  }
+
+  /**
+   * Pack the level, the facing and the coordinates of a cell into a key, 13
+   * bits for the level, 3 for the facing and 16 for each coordinate. Cells
+   * far apart may share a key, which only makes them look at more records.
+   */
+  private static long key(int level, int facing, long x, long y, long z) {
+    return ((long) (level & 0x1fff) << 51) | ((long) facing << 48) | ((x & 0xffff) << 32)
+            | ((y & 0xffff) << 16) | (z & 0xffff);
+  }
+
+  /**
+   * Find the slot of the hash table that holds the given key, or the empty
+   * slot where it would go
+   */
+  private int find(long key) {
+    int mask = keys.length - 1;
+    long h = key * 0x9E3779B97F4A7C15L;
+    int slot = (int) (h >>> 40) & mask;
+    while ((heads[slot] >= 0) && (keys[slot] != key)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void addEntry(int record, long key) {
+    if (2 * (used + 1) > keys.length) {
+      grow();
+    }
+    int slot = find(key);
+    if (heads[slot] < 0) {
+      keys[slot] = key;
+      used++;
+    }
+    if (entryCount == entryRecords.length) {
+      entryRecords = Arrays.copyOf(entryRecords, 2 * entryCount);
+      entryNext = Arrays.copyOf(entryNext, 2 * entryCount);
+    }
+    entryRecords[entryCount] = record;
+    entryNext[entryCount] = heads[slot];
+    heads[slot] = entryCount++;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldHeads = heads;
+    keys = new long[2 * oldKeys.length];
+    heads = new int[2 * oldHeads.length];
+    Arrays.fill(heads, -1);
+    for (int s = 0; s < oldKeys.length; s++) {
+      if (oldHeads[s] >= 0) {
+        int slot = find(oldKeys[s]);
+        keys[slot] = oldKeys[s];
+        heads[slot] = oldHeads[s];
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package sgraph;
+
+/**
+ * The order in which {@link RTScenegraphRenderer} hands out the tiles of an
+ * image to its workers, and walks the batches of pixels inside each tile.
+ * Tiles that are traced one after another by the same worker read much of
+ * the same scene, so an order that keeps neighbors close together keeps more
+ * of the scene in the caches of the processor than one that sweeps across
+ * the whole image before coming back.
+ *
+ * Tiles are split among the workers by halving the sequence, so each worker
+ * traces a run of the sequence, which is a compact block of the image when
+ * the order follows a space-filling curve.
+ */
+public interface TileOrder {
+  /**
+   * Row by row from the bottom of the image, as tiles used to be traced
+   */
+  TileOrder ROWS = new TileOrder() {
+    @Override
+    public int[] order(int columns, int rows) {
+      int[] order = new int[columns * rows];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      return order;
+    }
+  };
+
+  /**
+   * Along a Z-order curve, which visits the four quarters of every square
+   * block in turn, interleaving the bits of the column and the row
+   */
+  TileOrder MORTON = new TileOrder() {
+    @Override
+    public int[] order(int columns, int rows) {
+      int side = Integer.highestOneBit(Math.max(1, Math.max(columns, rows) - 1)) << 1;
+      int[] order = new int[columns * rows];
+      int count = 0;
+      for (int d = 0; d < side * side; d++) {
+        int x = 0, y = 0;
+        for (int bit = 0; (d >> (2 * bit)) != 0; bit++) {
+          x |= ((d >> (2 * bit)) & 1) << bit;
+          y |= ((d >> (2 * bit + 1)) & 1) << bit;
+        }
+        if ((x < columns) && (y < rows)) {
+          order[count++] = y * columns + x;
+        }
+      }
+      return order;
+    }
+  };
+
+  /**
+   * Along a Hilbert curve, which visits the four quarters of every square
+   * block like the Z-order curve, but turns them so that each cell of the
+   * sequence is next to the one before it
+   */
+  TileOrder HILBERT = new TileOrder() {
+    @Override
+    public int[] order(int columns, int rows) {
+      int side = Integer.highestOneBit(Math.max(1, Math.max(columns, rows) - 1)) << 1;
+      int[] order = new int[columns * rows];
+      int count = 0;
+      for (int d = 0; d < side * side; d++) {
+        int x = 0, y = 0;
+        for (int s = 1, t = d; s < side; s *= 2, t /= 4) {
+          int rx = 1 & (t / 2);
+          int ry = 1 & (t ^ rx);
+          if (ry == 0) {
+            if (rx == 1) {
+              x = s - 1 - x;
+              y = s - 1 - y;
+            }
+            int swap = x;
+            x = y;
+            y = swap;
+          }
+          x += s * rx;
+          y += s * ry;
+        }
+        if ((x < columns) && (y < rows)) {
+          order[count++] = y * columns + x;
+        }
+      }
+      return order;
+    }
+  };
+
+  /**
+   * Get the order of the cells of a grid, which are numbered row by row
+   *
+   * @param columns the number of cells in each row
+   * @param rows    the number of rows
+   * @return the number of each cell, in the order they are visited
+   */
+  int[] order(int columns, int rows);
+}
@@ -0,0 +1,67 @@
+package sgraph;
+
+/**
+ * Maps the high dynamic range colors that {@link RTScenegraphRenderer}
+ * traces into colors from 0 to 1 that can be shown. Colors are traced without
+ * any limit on their brightness, and only mapped once the color of a pixel is
+ * known. Gamma correction is applied by the renderer after mapping.
+ */
+public interface ToneMapper {
+  /**
+   * Clip every channel to [0,1]. Colors that are already in range are not
+   * changed at all.
+   */
+  ToneMapper CLAMP = new ToneMapper() {
+    @Override
+    public void map(float[] color, int c, float[] mapped) {
+      mapped[0] = Math.max(0, Math.min(color[c], 1));
+      mapped[1] = Math.max(0, Math.min(color[c + 1], 1));
+      mapped[2] = Math.max(0, Math.min(color[c + 2], 1));
+    }
+  };
+
+  /**
+   * Scale the color by L/(1+L) of its luminance L, which compresses bright
+   * colors smoothly and keeps their hue
+   */
+  ToneMapper REINHARD = new ToneMapper() {
+    @Override
+    public void map(float[] color, int c, float[] mapped) {
+      float red = Math.max(0, color[c]);
+      float green = Math.max(0, color[c + 1]);
+      float blue = Math.max(0, color[c + 2]);
+      float luminance = 0.2126f * red + 0.7152f * green + 0.0722f * blue;
+      float scale = 1.0f / (1.0f + luminance);
+      mapped[0] = Math.min(red * scale, 1);
+      mapped[1] = Math.min(green * scale, 1);
+      mapped[2] = Math.min(blue * scale, 1);
+    }
+  };
+
+  /**
+   * Map the given color
+   *
+   * @param color  the colors to read from
+   * @param c      the index of the red channel of the color, followed by
+   *               green and blue
+   * @param mapped where to write the mapped red, green and blue, each from 0
+   *               to 1
+   */
+  void map(float[] color, int c, float[] mapped);
+
+  /**
+   * A mapping like that of film exposed for the given number of stops, which
+   * maps each channel x to 1-exp(-x*2^stops)
+   */
+  static ToneMapper exposure(float stops) {
+    final float scale = (float) Math.pow(2, stops);
+    return new ToneMapper() {
+      @Override
+      public void map(float[] color, int c, float[] mapped) {
+        mapped[0] = 1 - (float) Math.exp(-scale * Math.max(0, color[c]));
+        mapped[1] = 1 - (float) Math.exp(-scale * Math.max(0, color[c + 1]));
+        mapped[2] = 1 - (float) Math.exp(-scale * Math.max(0, color[c + 2]));
+      }
+    };
+  }
+}
@@ -0,0 +1,200 @@
+package sgraph;
+
+import java.util.Random;
+
+/**
+ * The scratch state that a single worker uses to trace rays. Every ray,
+ * hit record and color that the ray tracer needs while tracing a pixel lives
+ * here and is overwritten for the next pixel, so that tracing does not
+ * allocate. A context must never be shared between threads.
+ */
+class TraceContext {
+  /**
+   * The context of each thread for tracing a ray that is not given one
+   */
+  private static final ThreadLocal<TraceContext> THREAD_CONTEXTS =
+          ThreadLocal.withInitial(() -> new TraceContext(1));
+
+  /**
+   * The ray and hit record at each bounce depth
+   */
+  final Ray[] rays;
+  final HitRecord[] hits;
+  /**
+   * The color computed at each bounce depth, 3 floats per depth
+   */
+  final float[] colors;
+  /**
+   * Each ray is the axis of a cone that covers the area of the image that
+   * its pixel stands for. This is the width of that cone where the ray at
+   * each bounce depth starts, and how fast it grows with distance.
+   */
+  final float[] coneWidths;
+  float coneSpread;
+  /**
+   * A color looked up in a texture
+   */
+  final float[] texel;
+  /**
+   * The random numbers used while tracing, seeded by the renderer so that the
+   * same image is traced the same way every time
+   */
+  final Random random;
+  /**
+   * What this worker has traced since the context was made or last started
+   * a tile
+   */
+  final RTStatistics statistics;
+  final Ray shadowRay;
+  /**
+   * The lights chosen to shade a point, the weight of each, and scratch
+   * space for choosing them. These grow to fit the lights of the scene.
+   */
+  int[] lights;
+  float[] lightWeights;
+  int[] lightStack;
+  final BVH.Traversal traversal;
+  /**
+   * A ray transformed into the coordinate system of an instanced subgraph,
+   * and the scratch space for traversing the hierarchy of that subgraph
+   */
+  final Ray instanceRay;
+  final BVH.Traversal instanceTraversal;
+  /**
+   * A ray transformed into the coordinate system of a leaf, and the scratch
+   * space for traversing the hierarchy of the mesh in that leaf
+   */
+  final Ray leafRay;
+  final BVH.Traversal meshTraversal;
+  /**
+   * The packets of primary rays and of shadow rays, and a single ray and hit
+   * record for primitives that are intersected with the rays of a packet one
+   * at a time
+   */
+  final RayPacket packet;
+  final RayPacket shadowPacket;
+  final Ray packetRay;
+  final HitRecord packetHit;
+  /**
+   * Whether each light reaches the hit of each ray of the primary packet, as
+   * found by the shadow packets, with a row of lights per ray. While the hit
+   * of one of those rays is shaded, packetShadowRow is where its row starts,
+   * and otherwise it is -1 and shadow rays are traced one at a time.
+   */
+  byte[] packetShadows;
+  int packetShadowRow;
+  /**
+   * The pixel of the last image whose color each ray of the primary packet
+   * takes, so that no shadow rays are traced for it, or -1 if the ray is
+   * shaded
+   */
+  final int[] packetReused;
+  /**
+   * The shadows found near the points shaded with this context, or null to
+   * trace the shadow rays of every point, and what it found of each light
+   * for the point being shaded
+   */
+  ShadingCache shadingCache;
+  byte[] cachedShadows;
+  /**
+   * The photons that light caustics, or null, the scratch space for
+   * gathering them, and the irradiance they add to a point
+   */
+  PhotonMap photons;
+  PhotonMap.Search photonSearch;
+  final float[] irradiance;
+  /**
+   * The unit vector from a point to a light
+   */
+  final float[] lightDirection;
+  /**
+   * The constants of the watertight triangle test for the leaf ray: the axes
+   * permuted so that z is the dominant direction, the start of the ray along
+   * those axes, and the shear that aligns the direction with z. These are set
+   * up by {@link TriangleMesh} once per ray, not once per triangle.
+   */
+  int axisX, axisY, axisZ;
+  float startX, startY, startZ;
+  float shearX, shearY, shearZ;
+
+  TraceContext(int maximumDepth) {
+    rays = new Ray[maximumDepth];
+    hits = new HitRecord[maximumDepth];
+    for (int i = 0; i < maximumDepth; i++) {
+      rays[i] = new Ray();
+      hits[i] = new HitRecord();
+    }
+    colors = new float[3 * maximumDepth];
+    coneWidths = new float[maximumDepth];
+    texel = new float[3];
+    random = new Random();
+    statistics = new RTStatistics(maximumDepth);
+    shadowRay = new Ray();
+    lights = new int[0];
+    lightWeights = new float[0];
+    lightStack = new int[0];
+    traversal = new BVH.Traversal();
+    instanceRay = new Ray();
+    instanceTraversal = new BVH.Traversal();
+    leafRay = new Ray();
+    meshTraversal = new BVH.Traversal();
+    packet = new RayPacket();
+    shadowPacket = new RayPacket();
+    packetRay = new Ray();
+    packetHit = new HitRecord();
+    packetShadows = new byte[0];
+    packetShadowRow = -1;
+    packetReused = new int[RayPacket.CAPACITY];
+    lightDirection = new float[3];
+    irradiance = new float[3];
+  }
+
+  /**
+   * Get the context of the calling thread for tracing single rays outside of
+   * the renderer, which has its own contexts
+   */
+  static TraceContext forThread() {
+    return THREAD_CONTEXTS.get();
+  }
+
+  /**
+   * Get ready to trace a tile, keeping the memory grown for earlier tiles but
+   * nothing that was counted or cached for them
+   *
+   * @param cachedLights the number of lights that the shading cache keeps
+   *                     shadows of, or 0 to trace every shadow ray
+   * @param photons      the photons that light caustics, or null
+   * @param gather       how many photons light each point
+   */
+  void startTile(int cachedLights, PhotonMap photons, int gather) {
+    statistics.clearCounts();
+    if (cachedLights == 0) {
+      shadingCache = null;
+    } else if ((shadingCache == null) || (shadingCache.getLightCount() != cachedLights)) {
+      shadingCache = new ShadingCache(cachedLights);
+      cachedShadows = new byte[cachedLights];
+    } else {
+      shadingCache.clear();
+    }
+    this.photons = photons;
+    if ((photons != null)
+            && ((photonSearch == null) || (photonSearch.getGather() != gather))) {
+      photonSearch = new PhotonMap.Search(gather);
+    }
+    packetShadowRow = -1;
+  }
+
+  /**
+   * Make room to choose up to the given number of lights from a light tree
+   * of the given depth
+   */
+  void ensureLights(int count, int depth) {
+    if (lights.length < count) {
+      lights = new int[count];
+      lightWeights = new float[count];
+    }
+    if (lightStack.length < depth + 1) {
+      lightStack = new int[depth + 1];
+    }
+  }
+}
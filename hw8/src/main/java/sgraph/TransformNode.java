@@ -130,6 +130,32 @@ public class TransformNode extends AbstractNode {
     modelView.pop();
   }
 
+  @Override
+  public void flatten(Stack<Matrix4f> modelView, RTScene scene) {
+    modelView.push(new Matrix4f(modelView.peek()));
+    modelView.peek().mul(animation_transform)
+            .mul(transform);
+    //a copy of this subgraph is placed with the transformations of this node
+    if (!scene.addInstance(this, modelView.peek()) && (child != null))
+      child.flatten(modelView, scene);
+    modelView.pop();
+  }
+
+  @Override
+  public int getSubgraphKey(InstanceTable table) {
+    int childKey = -1;
+    int leaves = 0;
+    if (child != null) {
+      childKey = child.getSubgraphKey(table);
+      leaves = table.getLeafCount(childKey);
+    }
+    //the transformations of this node only place what is below it, so they
+    //are left out of the key of this subgraph, but not out of its parent's
+    int key = table.key(this, leaves, "transform", childKey);
+    return table.key(null, leaves, "placed", new Matrix4f(animation_transform),
+            new Matrix4f(transform), key);
+  }
+
 
   /**
    * Sets the animation transform of this node
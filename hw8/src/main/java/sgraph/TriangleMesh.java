@@ -0,0 +1,376 @@
+package sgraph;
+
+import com.jogamp.opengl.GL;
+
+import org.joml.Vector4f;
+
+import java.util.List;
+
+import util.IVertexData;
+import util.PolygonMesh;
+
+/**
+ * A polygon mesh prepared for ray tracing. The triangles of the mesh are
+ * copied into flat arrays of positions, normals, texture coordinates and
+ * vertex indices, and a {@link BVH} is built over them in the mesh's own
+ * coordinate system. This is done once per mesh, and the result is shared by
+ * every leaf that is an instance of the mesh.
+ *
+ * Rays are intersected with triangles using the watertight test of Woop,
+ * Benthin and Wald, so that rays through a shared edge or vertex cannot slip
+ * between the triangles that meet there.
+ */
+class TriangleMesh implements BVH.PrimitiveIntersector {
+  /**
+   * The mesh that this was built from
+   */
+  private final PolygonMesh<?> source;
+  /**
+   * The vertex positions and normals, 3 floats per vertex. The normals are
+   * null if the mesh has none.
+   */
+  private final float[] positions;
+  private final float[] normals;
+  /**
+   * The vertex texture coordinates, 2 floats per vertex, or null if the mesh
+   * has none
+   */
+  private final float[] texcoords;
+  /**
+   * The vertex indices of each triangle, 3 per triangle
+   */
+  private final int[] triangles;
+  private final Vector4f minBounds, maxBounds;
+  /**
+   * How far the texture coordinates move per unit of distance on the
+   * surface, on average
+   */
+  private final float textureDensity;
+  private final BVH bvh;
+
+  /**
+   * Build the triangles and hierarchy of the given mesh. A mesh that is not
+   * made of triangles has nothing that the ray tracer can intersect.
+   */
+  TriangleMesh(PolygonMesh<? extends IVertexData> mesh) {
+    source = mesh;
+
+    List<? extends IVertexData> vertices = mesh.getVertexAttributes();
+    int vertexCount = vertices.size();
+    boolean hasNormals = (vertexCount > 0) && vertices.get(0).hasData("normal");
+    boolean hasTexcoords = (vertexCount > 0) && vertices.get(0).hasData("texcoord");
+
+    positions = new float[3 * vertexCount];
+    normals = hasNormals ? new float[3 * vertexCount] : null;
+    texcoords = hasTexcoords ? new float[2 * vertexCount] : null;
+    for (int i = 0; i < vertexCount; i++) {
+      IVertexData vertex = vertices.get(i);
+      float[] position = vertex.getData("position");
+      positions[3 * i] = position[0];
+      positions[3 * i + 1] = position[1];
+      positions[3 * i + 2] = position[2];
+      if (hasNormals) {
+        float[] normal = vertex.getData("normal");
+        normals[3 * i] = normal[0];
+        normals[3 * i + 1] = normal[1];
+        normals[3 * i + 2] = normal[2];
+      }
+      if (hasTexcoords) {
+        float[] texcoord = vertex.getData("texcoord");
+        texcoords[2 * i] = texcoord[0];
+        texcoords[2 * i + 1] = texcoord[1];
+      }
+    }
+
+    List<Integer> primitives = mesh.getPrimitives();
+    int count = 0;
+    if ((mesh.getPrimitiveType() == GL.GL_TRIANGLES) && (mesh.getPrimitiveSize() == 3)) {
+      count = primitives.size() / 3;
+    }
+    triangles = new int[3 * count];
+    for (int i = 0; i < 3 * count; i++) {
+      triangles[i] = primitives.get(i);
+    }
+
+    float[] bounds = new float[6 * count];
+    minBounds = new Vector4f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+            Float.POSITIVE_INFINITY, 1);
+    maxBounds = new Vector4f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY,
+            Float.NEGATIVE_INFINITY, 1);
+    for (int i = 0; i < count; i++) {
+      int b = 6 * i;
+      for (int k = 0; k < 3; k++) {
+        bounds[b + k] = Float.POSITIVE_INFINITY;
+        bounds[b + 3 + k] = Float.NEGATIVE_INFINITY;
+      }
+      for (int v = 0; v < 3; v++) {
+        int p = 3 * triangles[3 * i + v];
+        for (int k = 0; k < 3; k++) {
+          bounds[b + k] = Math.min(bounds[b + k], positions[p + k]);
+          bounds[b + 3 + k] = Math.max(bounds[b + 3 + k], positions[p + k]);
+        }
+      }
+      minBounds.set(Math.min(minBounds.x, bounds[b]),
+              Math.min(minBounds.y, bounds[b + 1]),
+              Math.min(minBounds.z, bounds[b + 2]), 1);
+      maxBounds.set(Math.max(maxBounds.x, bounds[b + 3]),
+              Math.max(maxBounds.y, bounds[b + 4]),
+              Math.max(maxBounds.z, bounds[b + 5]), 1);
+    }
+    bvh = new BVH(bounds, count);
+    textureDensity = measureTextureDensity();
+  }
+
+  /**
+   * Compare the total area of the triangles in texture coordinates with
+   * their total area in space
+   */
+  private float measureTextureDensity() {
+    if (texcoords == null) {
+      return 0;
+    }
+    double area = 0, textureArea = 0;
+    for (int i = 0; i < triangles.length; i += 3) {
+      int a = triangles[i], b = triangles[i + 1], c = triangles[i + 2];
+      float e1x = positions[3 * b] - positions[3 * a];
+      float e1y = positions[3 * b + 1] - positions[3 * a + 1];
+      float e1z = positions[3 * b + 2] - positions[3 * a + 2];
+      float e2x = positions[3 * c] - positions[3 * a];
+      float e2y = positions[3 * c + 1] - positions[3 * a + 1];
+      float e2z = positions[3 * c + 2] - positions[3 * a + 2];
+      float cx = e1y * e2z - e1z * e2y;
+      float cy = e1z * e2x - e1x * e2z;
+      float cz = e1x * e2y - e1y * e2x;
+      area += Math.sqrt(cx * cx + cy * cy + cz * cz);
+
+      float t1u = texcoords[2 * b] - texcoords[2 * a];
+      float t1v = texcoords[2 * b + 1] - texcoords[2 * a + 1];
+      float t2u = texcoords[2 * c] - texcoords[2 * a];
+      float t2v = texcoords[2 * c + 1] - texcoords[2 * a + 1];
+      textureArea += Math.abs(t1u * t2v - t1v * t2u);
+    }
+    return (area > 0) ? (float) Math.sqrt(textureArea / area) : 0;
+  }
+
+  /**
+   * Whether this was built from the given mesh
+   */
+  boolean isBuiltFrom(PolygonMesh<?> mesh) {
+    return source == mesh;
+  }
+
+  /**
+   * Get the number of triangles in this mesh
+   */
+  int getTriangleCount() {
+    return triangles.length / 3;
+  }
+
+  /**
+   * Get how far the texture coordinates move per unit of distance on the
+   * surface of this mesh, on average, or 0 if it has none
+   */
+  float getTextureDensity() {
+    return textureDensity;
+  }
+
+  /**
+   * Get the minimum corner of the bounding box of this mesh, or null if it
+   * has no triangles
+   */
+  Vector4f getMinimumBounds() {
+    return (getTriangleCount() > 0) ? new Vector4f(minBounds) : null;
+  }
+
+  /**
+   * Get the maximum corner of the bounding box of this mesh, or null if it
+   * has no triangles
+   */
+  Vector4f getMaximumBounds() {
+    return (getTriangleCount() > 0) ? new Vector4f(maxBounds) : null;
+  }
+
+  /**
+   * Intersect the given ray in the coordinate system of this mesh with it.
+   * If a triangle is hit closer than the time in the hit record, the time,
+   * the normal (in the coordinate system of this mesh) and the texture
+   * coordinates of the hit record are updated and this returns true.
+   */
+  boolean intersect(Ray ray, HitRecord hitRecord, TraceContext context) {
+    float time = hitRecord.time;
+    setup(ray, context);
+    bvh.intersect(ray, hitRecord, this, context.meshTraversal, context);
+    return hitRecord.time < time;
+  }
+
+  /**
+   * Determine whether the given ray in the coordinate system of this mesh hits
+   * any of its triangles before the given time
+   */
+  boolean occluded(Ray ray, float maximumTime, TraceContext context) {
+    setup(ray, context);
+    return bvh.occluded(ray, maximumTime, this, context.meshTraversal, context);
+  }
+
+  @Override
+  public void intersect(int primitive, Ray ray, HitRecord hitRecord, TraceContext context) {
+    context.statistics.tests[RTStatistics.TRIANGLE]++;
+    int a = triangles[3 * primitive];
+    int b = triangles[3 * primitive + 1];
+    int c = triangles[3 * primitive + 2];
+
+    float u = edge(b, c, context);
+    float v = edge(c, a, context);
+    float w = edge(a, b, context);
+    if ((u == 0) || (v == 0) || (w == 0)) {
+      //on an edge in single precision, so decide in double precision
+      u = edgeExact(b, c, context);
+      v = edgeExact(c, a, context);
+      w = edgeExact(a, b, context);
+    }
+    if (((u < 0) || (v < 0) || (w < 0)) && ((u > 0) || (v > 0) || (w > 0))) {
+      return;
+    }
+    float determinant = u + v + w;
+    if (determinant == 0) {
+      return;
+    }
+
+    float t = scaledTime(a, b, c, u, v, w, context) / determinant;
+    if (!(t > 0) || (t >= hitRecord.time)) {
+      return;
+    }
+
+    //the barycentric coordinates of the hit
+    u /= determinant;
+    v /= determinant;
+    w /= determinant;
+
+    float nx = 0, ny = 0, nz = 0;
+    if (normals != null) {
+      nx = u * normals[3 * a] + v * normals[3 * b] + w * normals[3 * c];
+      ny = u * normals[3 * a + 1] + v * normals[3 * b + 1] + w * normals[3 * c + 1];
+      nz = u * normals[3 * a + 2] + v * normals[3 * b + 2] + w * normals[3 * c + 2];
+    }
+    if (nx * nx + ny * ny + nz * nz == 0) {
+      //no usable vertex normals, so use the normal of the triangle
+      float e1x = positions[3 * b] - positions[3 * a];
+      float e1y = positions[3 * b + 1] - positions[3 * a + 1];
+      float e1z = positions[3 * b + 2] - positions[3 * a + 2];
+      float e2x = positions[3 * c] - positions[3 * a];
+      float e2y = positions[3 * c + 1] - positions[3 * a + 1];
+      float e2z = positions[3 * c + 2] - positions[3 * a + 2];
+      nx = e1y * e2z - e1z * e2y;
+      ny = e1z * e2x - e1x * e2z;
+      nz = e1x * e2y - e1y * e2x;
+    }
+
+    hitRecord.time = t;
+    hitRecord.normal.set(nx, ny, nz, 0);
+    if (texcoords != null) {
+      hitRecord.texcoord.set(
+              u * texcoords[2 * a] + v * texcoords[2 * b] + w * texcoords[2 * c],
+              u * texcoords[2 * a + 1] + v * texcoords[2 * b + 1] + w * texcoords[2 * c + 1]);
+    } else {
+      hitRecord.texcoord.set(0, 0);
+    }
+  }
+
+  @Override
+  public boolean occluded(int primitive, Ray ray, float maximumTime, TraceContext context) {
+    context.statistics.tests[RTStatistics.TRIANGLE]++;
+    int a = triangles[3 * primitive];
+    int b = triangles[3 * primitive + 1];
+    int c = triangles[3 * primitive + 2];
+
+    float u = edge(b, c, context);
+    float v = edge(c, a, context);
+    float w = edge(a, b, context);
+    if ((u == 0) || (v == 0) || (w == 0)) {
+      u = edgeExact(b, c, context);
+      v = edgeExact(c, a, context);
+      w = edgeExact(a, b, context);
+    }
+    if (((u < 0) || (v < 0) || (w < 0)) && ((u > 0) || (v > 0) || (w > 0))) {
+      return false;
+    }
+    float determinant = u + v + w;
+    if (determinant == 0) {
+      return false;
+    }
+    float t = scaledTime(a, b, c, u, v, w, context) / determinant;
+    return (t > 0) && (t < maximumTime);
+  }
+
+  /**
+   * Set up the constants of the watertight test for the given ray: the
+   * dimension in which its direction is largest becomes z, and the shear
+   * that takes its direction to the z axis is computed
+   */
+  private static void setup(Ray ray, TraceContext context) {
+    float dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+    float ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+    int kz = (ax > ay) ? ((ax > az) ? 0 : 2) : ((ay > az) ? 1 : 2);
+    int kx = (kz + 1) % 3;
+    int ky = (kx + 1) % 3;
+    float directionZ = component(dx, dy, dz, kz);
+    if (directionZ < 0) {
+      //swap to keep the winding of the triangles
+      int temp = kx;
+      kx = ky;
+      ky = temp;
+    }
+
+    context.axisX = kx;
+    context.axisY = ky;
+    context.axisZ = kz;
+    context.startX = component(ray.start.x, ray.start.y, ray.start.z, kx);
+    context.startY = component(ray.start.x, ray.start.y, ray.start.z, ky);
+    context.startZ = component(ray.start.x, ray.start.y, ray.start.z, kz);
+    context.shearX = component(dx, dy, dz, kx) / directionZ;
+    context.shearY = component(dx, dy, dz, ky) / directionZ;
+    context.shearZ = 1.0f / directionZ;
+  }
+
+  private static float component(float x, float y, float z, int axis) {
+    return (axis == 0) ? x : ((axis == 1) ? y : z);
+  }
+
+  /**
+   * The edge function of the edge from vertex p to vertex q, with both
+   * vertices relative to the start of the ray and sheared. Its sign tells
+   * which side of the edge the ray passes.
+   */
+  private float edge(int p, int q, TraceContext context) {
+    float pz = positions[3 * p + context.axisZ] - context.startZ;
+    float px = positions[3 * p + context.axisX] - context.startX - context.shearX * pz;
+    float py = positions[3 * p + context.axisY] - context.startY - context.shearY * pz;
+    float qz = positions[3 * q + context.axisZ] - context.startZ;
+    float qx = positions[3 * q + context.axisX] - context.startX - context.shearX * qz;
+    float qy = positions[3 * q + context.axisY] - context.startY - context.shearY * qz;
+    return px * qy - py * qx;
+  }
+
+  private float edgeExact(int p, int q, TraceContext context) {
+    float pz = positions[3 * p + context.axisZ] - context.startZ;
+    float px = positions[3 * p + context.axisX] - context.startX - context.shearX * pz;
+    float py = positions[3 * p + context.axisY] - context.startY - context.shearY * pz;
+    float qz = positions[3 * q + context.axisZ] - context.startZ;
+    float qx = positions[3 * q + context.axisX] - context.startX - context.shearX * qz;
+    float qy = positions[3 * q + context.axisY] - context.startY - context.shearY * qz;
+    return (float) ((double) px * qy - (double) py * qx);
+  }
+
+  /**
+   * The time of the hit with the given unnormalized barycentric
+   * coordinates, multiplied by their sum
+   */
+  private float scaledTime(int a, int b, int c, float u, float v, float w,
+                           TraceContext context) {
+    int kz = context.axisZ;
+    float az = context.shearZ * (positions[3 * a + kz] - context.startZ);
+    float bz = context.shearZ * (positions[3 * b + kz] - context.startZ);
+    float cz = context.shearZ * (positions[3 * c + kz] - context.startZ);
+    return u * az + v * bz + w * cz;
+  }
+}